@@ -18,6 +18,10 @@ import ca.uhn.fhir.interceptor.api.Interceptor;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import jakarta.annotation.Nonnull;
 import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
 
 import static org.apache.commons.lang3.StringUtils.isBlank;
 
@@ -28,31 +32,32 @@ import static org.apache.commons.lang3.StringUtils.isBlank;
  * <p>
  * Responses are cached, so this pointcut will not be repeatedly invoked
  * every time a partition is accessed and this interceptor is therefore
- * not considered performance critical if latency is incurred.
+ * not considered performance critical if latency is incurred. The partitions
+ * come from a {@link MegaScalePartitionRegistry}, so partitions added to the
+ * registry file can be used without a restart.
+ * <p>
+ * On a read node, set <code>MEGASCALE_USE_READ_REPLICAS=true</code> to connect to
+ * each partition's read replicas instead of its primary. Partitions are spread
+ * round robin across their replicas, offset by <code>MEGASCALE_READ_NODE_INDEX</code>
+ * (default 0) so that several read nodes can be given different replicas.
  */
 @Interceptor
 public class BenchmarkMegaScaleConnectionProvidingInterceptor {
+	private static final Logger ourLog = LoggerFactory.getLogger(BenchmarkMegaScaleConnectionProvidingInterceptor.class);
 
-	private final int myMegaScaleCount;
-	private final String[] myUrls;
-	private final String[] myUsers;
-	private final String[] myPasswords;
+	private final MegaScalePartitionRegistry myRegistry;
+	private final boolean myUseReadReplicas;
+	private final int myReadNodeIndex;
 
 	/**
-	 * Constructor``
+	 * Constructor
 	 */
 	public BenchmarkMegaScaleConnectionProvidingInterceptor() {
-		myMegaScaleCount = Integer.parseInt(getPropertyNotNull("MEGASCALE_COUNT"));
-
-		myUrls = new String[myMegaScaleCount];
-		myUsers = new String[myMegaScaleCount];
-		myPasswords = new String[myMegaScaleCount];
-
-		for (int i = 1; i <= myMegaScaleCount; i++) {
-			myUrls[i - 1] = getPropertyNotNull("MEGASCALE_URL_" + i);
-			myUsers[i - 1] = getPropertyNotNull("MEGASCALE_USER_" + i);
-			myPasswords[i - 1] = getPropertyNotNull("MEGASCALE_PASS_" + i);
-		}
+		myRegistry = MegaScalePartitionRegistry.fromProperties();
+		myUseReadReplicas = Boolean.parseBoolean(MegaScalePartitionRegistry.getProperty("MEGASCALE_USE_READ_REPLICAS"));
+		String readNodeIndex = MegaScalePartitionRegistry.getProperty("MEGASCALE_READ_NODE_INDEX");
+		myReadNodeIndex = readNodeIndex != null ? Integer.parseInt(readNodeIndex) : 0;
+		ourLog.info("Providing connections for {} MegaScale partitions{}", myRegistry.getSnapshot().getPartitionCount(), myUseReadReplicas ? " using read replicas" : "");
 	}
 
 	@CdrHook(CdrPointcut.STORAGE_MEGASCALE_PROVIDE_DB_INFO)
@@ -75,16 +80,25 @@ public class BenchmarkMegaScaleConnectionProvidingInterceptor {
 
 	@Nonnull
 	private MegaScaleCredentialResponseJson createCredentialResponse(int partitionNumber) {
-		Validate.isTrue(partitionNumber >= 1, "Invalid partition number: %s", partitionNumber);
-		Validate.isTrue(partitionNumber <= myMegaScaleCount, "Invalid partition number %s must be <= %s", partitionNumber, myMegaScaleCount);
+		MegaScalePartitionRegistry.Partition partition = myRegistry.getSnapshot().getPartition(partitionNumber);
+		MegaScalePartitionRegistry.Connection connection = selectConnection(partition);
+		ourLog.info("Partition MS{} will use {}", partitionNumber, connection.getUrl());
 
 		MegaScaleCredentialResponseJson retVal = new MegaScaleCredentialResponseJson();
-		retVal.setDatabaseUrl(myUrls[partitionNumber - 1]);
-		retVal.setDatabaseUsername(myUsers[partitionNumber - 1]);
-		retVal.setDatabasePassword(myPasswords[partitionNumber - 1]);
+		retVal.setDatabaseUrl(connection.getUrl());
+		retVal.setDatabaseUsername(connection.getUsername());
+		retVal.setDatabasePassword(connection.getPassword());
 		return retVal;
 	}
 
+	private MegaScalePartitionRegistry.Connection selectConnection(MegaScalePartitionRegistry.Partition thePartition) {
+		List<MegaScalePartitionRegistry.Connection> replicas = thePartition.getReplicas();
+		if (!myUseReadReplicas || replicas.isEmpty()) {
+			return thePartition.getPrimary();
+		}
+		return replicas.get(Math.floorMod(thePartition.getId() - 1 + myReadNodeIndex, replicas.size()));
+	}
+
 	static String getPropertyNotNull(String thePropertyName) {
 		String retVal = System.getProperty(thePropertyName);
 		if (isBlank(retVal)) {
@@ -9,6 +9,7 @@ import ca.cdr.api.fhirgw.model.TransactionRequest;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Observation;
@@ -19,12 +20,69 @@ import org.slf4j.LoggerFactory;
 
 import static com.smilecdr.demo.benchmark2.BenchmarkMegaScaleConnectionProvidingInterceptor.getPropertyNotNull;
 
+/**
+ * Routes each request to the MegaScale DB holding its patient. The gateway calls
+ * the <code>*_TARGET_PREINVOKE</code> hooks once for every target, so for
+ * transactions and creates the partition is worked out on the first call and
+ * stored in the request resource's user data for the rest. The target IDs for
+ * each partition are built up front, so deciding whether to skip a target is an
+ * array lookup and a string comparison.
+ * <p>
+ * If <code>MEGASCALE_REGISTRY_FILE</code> is set, the partition count and strategy
+ * come from the {@link MegaScalePartitionRegistry} and the routing is rebuilt whenever
+ * the registry is reloaded. A reload that would move most patients (changing the
+ * strategy, or the count with <code>legacy</code> partitioning) is refused, and the
+ * old routing is kept until a restart. Otherwise the routing comes from
+ * <code>MEGASCALE_COUNT</code> and never changes.
+ */
 public class GatewayInterceptor {
 	private static final Logger ourLog = LoggerFactory.getLogger(GatewayInterceptor.class);
-	private final int myMegaScaleCount;
+	private static final String PARTITION_USER_DATA_KEY = GatewayInterceptor.class.getName() + ".partition";
+	private static final String PATIENT_ID_PREFIX = "Patient/ms";
+	private final MegaScalePartitionRegistry myRegistry;
+	private volatile Routing myRouting;
 
 	public GatewayInterceptor() {
-		myMegaScaleCount = Integer.parseInt(getPropertyNotNull("MEGASCALE_COUNT"));
+		if (MegaScalePartitionRegistry.isFileConfigured()) {
+			myRegistry = MegaScalePartitionRegistry.fromProperties();
+			MegaScalePartitionRegistry.Snapshot snapshot = myRegistry.getSnapshot();
+			myRouting = new Routing(snapshot.getPartitionStrategy(), snapshot);
+		} else {
+			myRegistry = null;
+			myRouting = new Routing(PartitionStrategy.fromProperties(Integer.parseInt(getPropertyNotNull("MEGASCALE_COUNT"))), null);
+		}
+		ourLog.info("Routing across {} MegaScale DBs with {} partitioning", myRouting.myMegaScaleCount, myRouting.myPartitionStrategy.getName());
+	}
+
+	private Routing getRouting() {
+		Routing retVal = myRouting;
+		if (myRegistry != null) {
+			MegaScalePartitionRegistry.Snapshot snapshot = myRegistry.getSnapshot();
+			if (snapshot != retVal.mySource) {
+				retVal = updateRouting(snapshot);
+			}
+		}
+		return retVal;
+	}
+
+	private synchronized Routing updateRouting(MegaScalePartitionRegistry.Snapshot theSnapshot) {
+		Routing previous = myRouting;
+		if (previous.mySource == theSnapshot) {
+			return previous;
+		}
+		PartitionStrategy strategy = theSnapshot.getPartitionStrategy();
+		String previousName = previous.myPartitionStrategy.getName();
+		if (!strategy.getName().equals(previousName)) {
+			ourLog.error("The MegaScale registry changed PARTITION_STRATEGY from {} to {}, which would move most patients. Still routing across {} DBs with {} partitioning until a restart", previousName, strategy.getName(), previous.myMegaScaleCount, previousName);
+			myRouting = new Routing(previous, theSnapshot);
+		} else if (PartitionStrategy.LEGACY.equals(previousName) && strategy.getPartitionCount() != previous.myMegaScaleCount) {
+			ourLog.error("The MegaScale registry changed MEGASCALE_COUNT from {} to {}, which would move most patients with {} partitioning. Still routing across {} DBs until a restart", previous.myMegaScaleCount, strategy.getPartitionCount(), previousName, previous.myMegaScaleCount);
+			myRouting = new Routing(previous, theSnapshot);
+		} else {
+			myRouting = new Routing(strategy, theSnapshot);
+			ourLog.info("Now routing across {} MegaScale DBs (was {})", strategy.getPartitionCount(), previous.myMegaScaleCount);
+		}
+		return myRouting;
 	}
 
 	@CdrHook(CdrPointcut.FHIRGW_SEARCH_TARGET_PREINVOKE)
@@ -39,64 +97,168 @@ public class GatewayInterceptor {
 		if (patientIdRaw == null) {
 			return;
 		}
-		if (!patientIdRaw.startsWith("Patient/ms") || !patientIdRaw.contains("-")) {
+		int partition = parsePartition(patientIdRaw);
+		if (partition == -1) {
 			throw new InvalidRequestException("Invalid 'patient' parameter provided: " + patientIdRaw);
 		}
 
-		String partitionId = patientIdRaw.substring("Patient/ms".length(), patientIdRaw.indexOf('-'));
-		int partition = Integer.parseInt(partitionId);
-		boolean skip = !theTarget.getId().equals("Read-ms" + partition);
+		boolean skip = !isTarget(getRouting().myReadTargetIds, partition, theTarget);
 		theRequest.setSkip(skip);
 	}
 
 	@CdrHook(CdrPointcut.FHIRGW_CREATE_TARGET_PREINVOKE)
 	public void createSelectRoute(CreateRequest theRequest, GatewayTargetJson theTarget) {
+		IBaseResource resource = theRequest.getResource();
+		int partition = getCachedPartition(resource);
+		if (partition == -1) {
+			partition = createPartition(resource);
+			setCachedPartition(resource, partition);
+		}
+		boolean skip = !isTarget(getRouting().myWriteTargetIds, partition, theTarget);
+		theRequest.setSkip(skip);
+	}
 
+	/**
+	 * Package-private so the microbenchmarks can call it without a gateway request
+	 */
+	int createPartition(IBaseResource theResource) {
 		String patientIdRaw;
-		if (theRequest.getResource() instanceof Patient) {
-			Patient patient = (Patient) theRequest.getResource();
+		if (theResource instanceof Patient) {
+			Patient patient = (Patient) theResource;
 			patientIdRaw = patient.getIdElement().toUnqualifiedVersionless().getValue();
-		} else if (theRequest.getResource() instanceof Observation) {
-			Observation obs = (Observation) theRequest.getResource();
+		} else if (theResource instanceof Observation) {
+			Observation obs = (Observation) theResource;
 			patientIdRaw = obs.getSubject().getReference();
 		} else {
 			throw new InvalidRequestException("This interceptor only currently supports creating Patient and Observation resources");
 		}
 
-        if (!patientIdRaw.startsWith("Patient/ms") || !patientIdRaw.contains("-")) {
+		int retVal = parsePartition(patientIdRaw);
+		if (retVal == -1) {
 			throw new InvalidRequestException("Invalid patient/subject ID provided: " + patientIdRaw + " (must be in the form Patient/ms[index]-[id])");
 		}
-
-		String partitionId = patientIdRaw.substring("Patient/ms".length(), patientIdRaw.indexOf('-'));
-		int partition = Integer.parseInt(partitionId);
-		boolean skip = !theTarget.getId().equals("Write-ms" + partition);
-		theRequest.setSkip(skip);
+		return retVal;
 	}
 
 	@CdrHook(CdrPointcut.FHIRGW_TRANSACTION_TARGET_PREINVOKE)
 	public void transactionSelectRoute(TransactionRequest theRequest, GatewayTargetJson theTarget) {
 		Bundle requestBundle = (Bundle) theRequest.getRequestBundle();
-
-		Resource patient = requestBundle
-			.getEntry()
-			.stream()
-			.map(t -> t.getResource())
-			.filter(t -> t instanceof Patient)
-			.findFirst()
-			.orElseThrow(() -> new InternalErrorException("No Patient resource found in bundle"));
-		String patientId = patient.getIdElement().getIdPart();
-		int partition = patientIdToPartitionId(patientId);
-		boolean skip = !theTarget.getId().equals("Write-ms" + partition + "-noprefix");
+		int partition = getCachedPartition(requestBundle);
+		if (partition == -1) {
+			partition = transactionPartition(requestBundle);
+			setCachedPartition(requestBundle, partition);
+		}
+		boolean skip = !isTarget(getRouting().myTransactionTargetIds, partition, theTarget);
 		theRequest.setSkip(skip);
 	}
 
+	/**
+	 * Package-private so the microbenchmarks can call it without a gateway request
+	 */
+	int transactionPartition(Bundle theRequestBundle) {
+		for (Bundle.BundleEntryComponent next : theRequestBundle.getEntry()) {
+			Resource resource = next.getResource();
+			if (resource instanceof Patient) {
+				return patientIdToPartitionId(resource.getIdElement().getIdPart());
+			}
+		}
+		throw new InternalErrorException("No Patient resource found in bundle");
+	}
 
-	private int patientIdToPartitionId(String patientIdRaw) {
-		String patientId = new IdType(patientIdRaw).getIdPart();
+
+	int patientIdToPartitionId(String patientIdRaw) {
+		// Only parse the ID if it actually has a resource type or version to strip
+		String patientId = patientIdRaw != null && patientIdRaw.indexOf('/') == -1 ? patientIdRaw : new IdType(patientIdRaw).getIdPart();
 		Validate.notBlank(patientId, "No patient ID provided");
-		int partition = Math.abs(patientId.hashCode() % myMegaScaleCount) + 1;
-		return partition;
+		return getRouting().myPartitionStrategy.partitionFor(patientId);
+	}
+
+	private static boolean isTarget(String[] theTargetIds, int thePartition, GatewayTargetJson theTarget) {
+		return thePartition > 0 && thePartition < theTargetIds.length && theTargetIds[thePartition].equals(theTarget.getId());
+	}
+
+	/**
+	 * The gateway may call the hooks for different targets from different
+	 * threads, and the user data map isn't thread safe, so access is
+	 * synchronized on the resource
+	 *
+	 * @return The partition stored by an earlier hook call for the same request, or -1
+	 */
+	private static int getCachedPartition(IBaseResource theResource) {
+		synchronized (theResource) {
+			Integer retVal = (Integer) theResource.getUserData(PARTITION_USER_DATA_KEY);
+			return retVal != null ? retVal : -1;
+		}
+	}
+
+	private static void setCachedPartition(IBaseResource theResource, int thePartition) {
+		synchronized (theResource) {
+			theResource.setUserData(PARTITION_USER_DATA_KEY, thePartition);
+		}
 	}
 
+	/**
+	 * Parses the index out of an ID in the form <code>Patient/ms[index]-[id]</code>
+	 * without creating any substrings
+	 *
+	 * @return The index, or -1 if the ID isn't in that form
+	 */
+	static int parsePartition(String thePatientId) {
+		if (!thePatientId.startsWith(PATIENT_ID_PREFIX)) {
+			return -1;
+		}
+		int retVal = 0;
+		int digits = 0;
+		for (int i = PATIENT_ID_PREFIX.length(); i < thePatientId.length(); i++) {
+			char next = thePatientId.charAt(i);
+			if (next == '-') {
+				return digits > 0 ? retVal : -1;
+			}
+			if (next < '0' || next > '9' || ++digits > 9) {
+				return -1;
+			}
+			retVal = retVal * 10 + (next - '0');
+		}
+		return -1;
+	}
+
+	/**
+	 * Everything that depends on the partition count and strategy, replaced as a whole when they change
+	 */
+	private static class Routing {
+		private final int myMegaScaleCount;
+		private final PartitionStrategy myPartitionStrategy;
+		private final String[] myReadTargetIds;
+		private final String[] myWriteTargetIds;
+		private final String[] myTransactionTargetIds;
+		private final MegaScalePartitionRegistry.Snapshot mySource;
+
+		private Routing(PartitionStrategy thePartitionStrategy, MegaScalePartitionRegistry.Snapshot theSource) {
+			myMegaScaleCount = thePartitionStrategy.getPartitionCount();
+			myPartitionStrategy = thePartitionStrategy;
+			mySource = theSource;
 
+			// Indexed by partition, which is 1-indexed
+			myReadTargetIds = new String[myMegaScaleCount + 1];
+			myWriteTargetIds = new String[myMegaScaleCount + 1];
+			myTransactionTargetIds = new String[myMegaScaleCount + 1];
+			for (int i = 1; i <= myMegaScaleCount; i++) {
+				myReadTargetIds[i] = "Read-ms" + i;
+				myWriteTargetIds[i] = "Write-ms" + i;
+				myTransactionTargetIds[i] = "Write-ms" + i + "-noprefix";
+			}
+		}
+
+		/**
+		 * The same routing, marked as up to date with a snapshot it wasn't rebuilt for
+		 */
+		private Routing(Routing theRouting, MegaScalePartitionRegistry.Snapshot theSource) {
+			myMegaScaleCount = theRouting.myMegaScaleCount;
+			myPartitionStrategy = theRouting.myPartitionStrategy;
+			myReadTargetIds = theRouting.myReadTargetIds;
+			myWriteTargetIds = theRouting.myWriteTargetIds;
+			myTransactionTargetIds = theRouting.myTransactionTargetIds;
+			mySource = theSource;
+		}
+	}
 }
@@ -0,0 +1,274 @@
+package com.smilecdr.demo.benchmark2;
+
+import ca.uhn.fhir.context.ConfigurationException;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * The MegaScale DBs and how to connect to them. The settings are read from the
+ * properties file named by <code>MEGASCALE_REGISTRY_FILE</code> if it is set, or
+ * from system properties and env variables as before. The keys are the same
+ * either way:
+ * <ul>
+ *    <li><code>MEGASCALE_COUNT</code> - the number of partitions</li>
+ *    <li><code>MEGASCALE_URL_[n]</code>, <code>MEGASCALE_USER_[n]</code>, <code>MEGASCALE_PASS_[n]</code> -
+ *    the primary for partition <code>n</code>. The user and password fall back to
+ *    <code>MEGASCALE_USER</code> and <code>MEGASCALE_PASS</code>, so they don't need to
+ *    be repeated for hundreds of partitions.</li>
+ *    <li><code>MEGASCALE_REPLICA_URLS_[n]</code> - optional comma separated read replicas
+ *    of partition <code>n</code>, using <code>MEGASCALE_REPLICA_USER_[n]</code> and
+ *    <code>MEGASCALE_REPLICA_PASS_[n]</code> if set, or the primary's user and password</li>
+ *    <li><code>PARTITION_STRATEGY</code> and <code>PARTITION_WEIGHTS</code> - see
+ *    {@link PartitionStrategy}. If the file doesn't set them, the system properties
+ *    and env variables are used.</li>
+ * </ul>
+ * A background thread checks the file for changes every
+ * <code>MEGASCALE_REGISTRY_CHECK_MILLIS</code> (default 5000) and reloads it if it
+ * has changed, so request threads never wait on the disk. If the new contents are
+ * invalid, the error is logged and the previous registry is kept.
+ */
+public class MegaScalePartitionRegistry {
+	private static final Logger ourLog = LoggerFactory.getLogger(MegaScalePartitionRegistry.class);
+
+	private final File myFile;
+	private volatile Snapshot mySnapshot;
+	/**
+	 * Only used by the reload thread
+	 */
+	private long myLastModified;
+	private long myLastLength;
+
+	private MegaScalePartitionRegistry(Snapshot theSnapshot) {
+		myFile = null;
+		mySnapshot = theSnapshot;
+	}
+
+	private MegaScalePartitionRegistry(File theFile, long theCheckIntervalMillis) {
+		myFile = theFile;
+		myLastModified = theFile.lastModified();
+		myLastLength = theFile.length();
+		try {
+			mySnapshot = loadFile(theFile);
+		} catch (Exception e) {
+			throw new ConfigurationException("Failed to load MegaScale registry " + theFile + ": " + e.getMessage(), e);
+		}
+		ourLog.info("Loaded MegaScale registry {} with {} partitions", theFile, mySnapshot.getPartitionCount());
+
+		ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread retVal = new Thread(r, "megascale-registry-reload");
+			retVal.setDaemon(true);
+			return retVal;
+		});
+		reloader.scheduleWithFixedDelay(this::checkForChanges, theCheckIntervalMillis, theCheckIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return <code>true</code> if <code>MEGASCALE_REGISTRY_FILE</code> is set
+	 */
+	public static boolean isFileConfigured() {
+		return isNotBlank(getProperty("MEGASCALE_REGISTRY_FILE"));
+	}
+
+	public static MegaScalePartitionRegistry fromProperties() {
+		String file = getProperty("MEGASCALE_REGISTRY_FILE");
+		if (isNotBlank(file)) {
+			String checkMillis = getProperty("MEGASCALE_REGISTRY_CHECK_MILLIS");
+			return new MegaScalePartitionRegistry(new File(file), isNotBlank(checkMillis) ? Long.parseLong(checkMillis) : 5000);
+		}
+		return new MegaScalePartitionRegistry(Snapshot.parse(MegaScalePartitionRegistry::getProperty));
+	}
+
+	/**
+	 * Callers that need several values to agree should fetch the snapshot once and
+	 * use it for all of them.
+	 */
+	public Snapshot getSnapshot() {
+		return mySnapshot;
+	}
+
+	/**
+	 * Runs on the reload thread. Nothing may escape from here, or the scheduled
+	 * checks would stop.
+	 */
+	private void checkForChanges() {
+		long lastModified = myFile.lastModified();
+		long length = myFile.length();
+		if (lastModified == myLastModified && length == myLastLength) {
+			return;
+		}
+		myLastModified = lastModified;
+		myLastLength = length;
+
+		try {
+			Snapshot previous = mySnapshot;
+			mySnapshot = loadFile(myFile);
+			ourLog.info("Reloaded MegaScale registry {}, now {} partitions (was {})", myFile, mySnapshot.getPartitionCount(), previous.getPartitionCount());
+		} catch (Exception e) {
+			ourLog.error("Failed to reload MegaScale registry {}, keeping the previous {} partitions: {}", myFile, mySnapshot.getPartitionCount(), e.toString());
+		}
+	}
+
+	private static Snapshot loadFile(File theFile) throws IOException {
+		Properties props = new Properties();
+		try (FileReader reader = new FileReader(theFile, StandardCharsets.UTF_8)) {
+			props.load(reader);
+		}
+		return Snapshot.parse(t -> props.getProperty(t));
+	}
+
+	/**
+	 * @return The system property, or else the env variable, or null if neither is set to a non-blank value
+	 */
+	static String getProperty(String theName) {
+		String retVal = System.getProperty(theName);
+		if (isBlank(retVal)) {
+			retVal = System.getenv(theName);
+		}
+		return isBlank(retVal) ? null : retVal.trim();
+	}
+
+	/**
+	 * The registry as it was when it was last loaded. This never changes, a reload
+	 * replaces it with a new one.
+	 */
+	public static class Snapshot {
+		private final Partition[] myPartitions;
+		private final PartitionStrategy myPartitionStrategy;
+
+		private Snapshot(Partition[] thePartitions, PartitionStrategy thePartitionStrategy) {
+			myPartitions = thePartitions;
+			myPartitionStrategy = thePartitionStrategy;
+		}
+
+		public int getPartitionCount() {
+			return myPartitions.length;
+		}
+
+		public PartitionStrategy getPartitionStrategy() {
+			return myPartitionStrategy;
+		}
+
+		/**
+		 * @param thePartitionId 1-indexed
+		 */
+		public Partition getPartition(int thePartitionId) {
+			Validate.isTrue(thePartitionId >= 1, "Invalid partition number: %s", thePartitionId);
+			Validate.isTrue(thePartitionId <= myPartitions.length, "Invalid partition number %s must be <= %s", thePartitionId, myPartitions.length);
+			return myPartitions[thePartitionId - 1];
+		}
+
+		private static Snapshot parse(Function<String, String> theLookup) {
+			int count = Integer.parseInt(getNotNull(theLookup, "MEGASCALE_COUNT").trim());
+			Validate.isTrue(count > 0, "MEGASCALE_COUNT must be positive: %s", count);
+			String defaultUser = theLookup.apply("MEGASCALE_USER");
+			String defaultPassword = theLookup.apply("MEGASCALE_PASS");
+
+			Partition[] partitions = new Partition[count];
+			for (int i = 1; i <= count; i++) {
+				String url = getNotNull(theLookup, "MEGASCALE_URL_" + i);
+				String user = getOrDefault(theLookup, "MEGASCALE_USER_" + i, defaultUser);
+				String password = getOrDefault(theLookup, "MEGASCALE_PASS_" + i, defaultPassword);
+				Validate.notBlank(user, "No value for MEGASCALE_USER_%s or MEGASCALE_USER", i);
+				Validate.notBlank(password, "No value for MEGASCALE_PASS_%s or MEGASCALE_PASS", i);
+				Connection primary = new Connection(url.trim(), user, password);
+
+				List<Connection> replicas = new ArrayList<>();
+				String replicaUrls = theLookup.apply("MEGASCALE_REPLICA_URLS_" + i);
+				if (isNotBlank(replicaUrls)) {
+					String replicaUser = getOrDefault(theLookup, "MEGASCALE_REPLICA_USER_" + i, user);
+					String replicaPassword = getOrDefault(theLookup, "MEGASCALE_REPLICA_PASS_" + i, password);
+					for (String next : replicaUrls.split(",")) {
+						if (isNotBlank(next)) {
+							replicas.add(new Connection(next.trim(), replicaUser, replicaPassword));
+						}
+					}
+				}
+				partitions[i - 1] = new Partition(i, primary, replicas);
+			}
+
+			String strategy = getOrDefault(theLookup, "PARTITION_STRATEGY", getProperty("PARTITION_STRATEGY"));
+			String weights = getOrDefault(theLookup, "PARTITION_WEIGHTS", getProperty("PARTITION_WEIGHTS"));
+			PartitionStrategy partitionStrategy = PartitionStrategy.create(isBlank(strategy) ? PartitionStrategy.LEGACY : strategy.trim(), count, isBlank(weights) ? null : PartitionStrategy.parseWeights(weights));
+
+			return new Snapshot(partitions, partitionStrategy);
+		}
+
+		private static String getNotNull(Function<String, String> theLookup, String theName) {
+			String retVal = theLookup.apply(theName);
+			if (isBlank(retVal)) {
+				throw new ConfigurationException("No value for " + theName);
+			}
+			return retVal;
+		}
+
+		private static String getOrDefault(Function<String, String> theLookup, String theName, String theDefault) {
+			String retVal = theLookup.apply(theName);
+			return isBlank(retVal) ? theDefault : retVal;
+		}
+	}
+
+	public static class Partition {
+		private final int myId;
+		private final Connection myPrimary;
+		private final List<Connection> myReplicas;
+
+		private Partition(int theId, Connection thePrimary, List<Connection> theReplicas) {
+			myId = theId;
+			myPrimary = thePrimary;
+			myReplicas = Collections.unmodifiableList(theReplicas);
+		}
+
+		public int getId() {
+			return myId;
+		}
+
+		public Connection getPrimary() {
+			return myPrimary;
+		}
+
+		public List<Connection> getReplicas() {
+			return myReplicas;
+		}
+	}
+
+	public static class Connection {
+		private final String myUrl;
+		private final String myUsername;
+		private final String myPassword;
+
+		private Connection(String theUrl, String theUsername, String thePassword) {
+			myUrl = theUrl;
+			myUsername = theUsername;
+			myPassword = thePassword;
+		}
+
+		public String getUrl() {
+			return myUrl;
+		}
+
+		public String getUsername() {
+			return myUsername;
+		}
+
+		public String getPassword() {
+			return myPassword;
+		}
+	}
+}
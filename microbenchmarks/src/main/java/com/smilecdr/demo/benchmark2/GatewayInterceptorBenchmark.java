@@ -0,0 +1,99 @@
+package com.smilecdr.demo.benchmark2;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The routing decisions {@link GatewayInterceptor} makes for every transaction
+ * and create that goes through the gateway. Each call routes the next bundle or
+ * resource in turn, so the results are averaged over the whole data set.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GatewayInterceptorBenchmark {
+
+	@Param({"2", "8"})
+	public int megascaleCount;
+
+	private GatewayInterceptor myInterceptor;
+	private Bundle[] myBundles;
+	private String[] myPatientIds;
+	private Patient[] myPatients;
+	private Observation[] myObservations;
+	private int myIndex;
+
+	@Setup
+	public void setup() {
+		System.setProperty("MEGASCALE_COUNT", Integer.toString(megascaleCount));
+		myInterceptor = new GatewayInterceptor();
+
+		List<Bundle> bundles = SyntheaData.getParsedBundles();
+		myBundles = bundles.toArray(new Bundle[0]);
+		myPatientIds = new String[myBundles.length];
+		myPatients = new Patient[myBundles.length];
+		myObservations = new Observation[myBundles.length];
+		for (int i = 0; i < myBundles.length; i++) {
+			String patientId = myBundles[i]
+				.getEntry()
+				.stream()
+				.filter(t -> t.getResource() instanceof Patient)
+				.findFirst()
+				.orElseThrow()
+				.getFullUrl();
+			patientId = StringUtils.removeStart(patientId, "urn:uuid:");
+			String gatewayId = "Patient/ms" + (i % megascaleCount + 1) + "-" + patientId;
+			myPatientIds[i] = patientId;
+			myPatients[i] = new Patient();
+			myPatients[i].setId(gatewayId);
+			myObservations[i] = new Observation();
+			myObservations[i].setSubject(new Reference(gatewayId));
+		}
+	}
+
+	private int nextIndex() {
+		int retVal = myIndex;
+		myIndex = retVal + 1 == myBundles.length ? 0 : retVal + 1;
+		return retVal;
+	}
+
+	@Benchmark
+	public int transactionSelectRoute() {
+		return myInterceptor.transactionPartition(myBundles[nextIndex()]);
+	}
+
+	@Benchmark
+	public int createSelectRoutePatient() {
+		return myInterceptor.createPartition(myPatients[nextIndex()]);
+	}
+
+	@Benchmark
+	public int createSelectRouteObservation() {
+		return myInterceptor.createPartition(myObservations[nextIndex()]);
+	}
+
+	@Benchmark
+	public int patientIdToPartitionId() {
+		return myInterceptor.patientIdToPartitionId(myPatientIds[nextIndex()]);
+	}
+}
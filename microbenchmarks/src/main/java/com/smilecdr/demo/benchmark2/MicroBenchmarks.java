@@ -0,0 +1,29 @@
+package com.smilecdr.demo.benchmark2;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line options. The GC profiler
+ * is added unless other profilers are asked for, so allocation per operation
+ * is always reported alongside throughput and time per operation.
+ */
+public class MicroBenchmarks {
+
+	public static void main(String[] theArgs) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(theArgs);
+		if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+			org.openjdk.jmh.Main.main(theArgs);
+			return;
+		}
+
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+		if (commandLine.getProfilers().isEmpty()) {
+			options.addProfiler(GCProfiler.class);
+		}
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,132 @@
+package com.smilecdr.demo.benchmark2;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * The request bodies <code>Benchmarker</code> sends for updates and creates,
+ * built by encoding a resource with HAPI each time (as it used to) and by
+ * filling in a pre-serialized <code>RequestTemplate</code> (as it does now).
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PayloadEncodingBenchmark {
+
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+	private static final Encounter.EncounterStatus[] STATUSES = Arrays
+		.stream(Encounter.EncounterStatus.values())
+		.filter(t -> t != Encounter.EncounterStatus.NULL)
+		.toArray(Encounter.EncounterStatus[]::new);
+
+	private Encounter myEncounter;
+	private Object myEncounterTemplate;
+	private byte[][] myStatusValues;
+	private Object myObservationTemplate;
+	private byte[] myEffectiveTime;
+	private String[] myPatientIds;
+	private int myIndex;
+
+	@Setup
+	public void setup() throws Throwable {
+		List<Bundle> bundles = SyntheaData.getParsedBundles();
+		myPatientIds = bundles
+			.stream()
+			.flatMap(t -> t.getEntry().stream())
+			.filter(t -> t.getResource() instanceof Patient)
+			.map(t -> "ms1-" + StringUtils.removeStart(t.getFullUrl(), "urn:uuid:"))
+			.toArray(String[]::new);
+		myEncounter = bundles
+			.stream()
+			.flatMap(t -> t.getEntry().stream())
+			.filter(t -> t.getResource() instanceof Encounter)
+			.map(t -> (Encounter) t.getResource())
+			.findFirst()
+			.orElseThrow();
+		myEncounter.setId("Encounter/ms1-" + StringUtils.removeStart(myEncounter.getIdElement().getValue(), "urn:uuid:"));
+		myEncounter.setStatus(STATUSES[0]);
+
+		String encounterJson = ourCtx.newJsonParser().encodeResourceToString(myEncounter);
+		myEncounterTemplate = (Object) Perftest.REQUEST_TEMPLATE_CREATE.invokeExact(encounterJson, new String[]{"status"});
+		List<byte[]> statusValues = Arrays.stream(STATUSES).map(t -> toValue(t.toCode())).collect(Collectors.toList());
+		myStatusValues = statusValues.toArray(new byte[0][]);
+
+		String observationJson = ourCtx.newJsonParser().encodeResourceToString(newObservation("Patient/ms1-0"));
+		myObservationTemplate = (Object) Perftest.REQUEST_TEMPLATE_CREATE.invokeExact(observationJson, new String[]{"subject.reference", "effectiveDateTime"});
+		myEffectiveTime = toValue(DateTimeType.now().getValueAsString());
+	}
+
+	private static byte[] toValue(String theValue) {
+		try {
+			return (byte[]) Perftest.REQUEST_TEMPLATE_TO_VALUE.invokeExact(theValue);
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Observation newObservation(String thePatientId) {
+		Observation obs = new Observation();
+		obs.setStatus(Observation.ObservationStatus.FINAL);
+		obs.getCategoryFirstRep().addCoding().setSystem("http://terminology.hl7.org/CodeSystem/observation-category").setCode("vital-signs");
+		obs.setSubject(new Reference(thePatientId));
+		obs.setEffective(DateTimeType.now());
+		obs.setValue(new StringType("This is the value"));
+		return obs;
+	}
+
+	private int nextIndex(int theLength) {
+		myIndex = myIndex + 1 >= theLength ? 0 : myIndex + 1;
+		return myIndex;
+	}
+
+	@Benchmark
+	public byte[] updateHapiEncode() {
+		myEncounter.setStatus(STATUSES[nextIndex(STATUSES.length)]);
+		return ourCtx.newJsonParser().encodeResourceToString(myEncounter).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public byte[] updateTemplate() throws Throwable {
+		byte[][] values = {myStatusValues[nextIndex(myStatusValues.length)]};
+		return (byte[]) Perftest.REQUEST_TEMPLATE_RENDER.invokeExact(myEncounterTemplate, values);
+	}
+
+	@Benchmark
+	public byte[] createHapiEncode() {
+		Observation obs = newObservation("Patient/" + myPatientIds[nextIndex(myPatientIds.length)]);
+		return ourCtx.newJsonParser().encodeResourceToString(obs).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public byte[] createTemplate() throws Throwable {
+		byte[] subject = toValue("Patient/" + myPatientIds[nextIndex(myPatientIds.length)]);
+		byte[][] values = {subject, myEffectiveTime};
+		return (byte[]) Perftest.REQUEST_TEMPLATE_RENDER.invokeExact(myObservationTemplate, values);
+	}
+}
@@ -0,0 +1,48 @@
+package com.smilecdr.demo.benchmark2;
+
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The perftest classes are in the default package, which can't be imported from
+ * here (and JMH doesn't allow benchmarks in the default package), so they are
+ * called through method handles. The handles are static final, so the JIT
+ * inlines them the same as a direct call.
+ */
+class Perftest {
+
+	static final MethodHandle COUNT_RESOURCES;
+	static final MethodHandle EXTRACT_PATIENT_ID;
+	static final MethodHandle REQUEST_TEMPLATE_CREATE;
+	static final MethodHandle REQUEST_TEMPLATE_RENDER;
+	static final MethodHandle REQUEST_TEMPLATE_TO_VALUE;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> counter = Class.forName("GzipResourceCounter");
+			COUNT_RESOURCES = lookup.findStatic(counter, "countResources", MethodType.methodType(int.class, ReadableByteChannel.class));
+
+			Class<?> extractor = Class.forName("PatientIdExtractor");
+			EXTRACT_PATIENT_ID = lookup.findStatic(extractor, "extractPatientId", MethodType.methodType(String.class, InputStream.class));
+
+			Class<?> template = Class.forName("RequestTemplate");
+			REQUEST_TEMPLATE_CREATE = lookup
+				.findStatic(template, "create", MethodType.methodType(template, String.class, String[].class))
+				.asType(MethodType.methodType(Object.class, String.class, String[].class));
+			REQUEST_TEMPLATE_RENDER = lookup
+				.findVirtual(template, "render", MethodType.methodType(byte[].class, byte[][].class))
+				.asType(MethodType.methodType(byte[].class, Object.class, byte[][].class));
+			REQUEST_TEMPLATE_TO_VALUE = lookup.findStatic(template, "toValue", MethodType.methodType(byte[].class, String.class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private Perftest() {
+		// static utility
+	}
+}
@@ -0,0 +1,72 @@
+package com.smilecdr.demo.benchmark2;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * What the uploaders do with every gzipped bundle before sending it: count its
+ * resources, and for <code>UploaderDirect</code> find the patient ID to route it
+ * by. <code>gunzipToStringAndCount</code> is how resources were counted before
+ * the streaming counter, as a reference point.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ResourceCountingBenchmark {
+
+	private byte[][] myBundles;
+	private int myIndex;
+
+	@Setup
+	public void setup() {
+		myBundles = SyntheaData.getGzippedBundles().toArray(new byte[0][]);
+	}
+
+	private byte[] nextBundle() {
+		byte[] retVal = myBundles[myIndex];
+		myIndex = myIndex + 1 == myBundles.length ? 0 : myIndex + 1;
+		return retVal;
+	}
+
+	@Benchmark
+	public int countResources() throws Throwable {
+		ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(nextBundle()));
+		return (int) Perftest.COUNT_RESOURCES.invokeExact(channel);
+	}
+
+	@Benchmark
+	public int gunzipToStringAndCount() throws Exception {
+		try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(nextBundle()))) {
+			String raw = IOUtils.toString(is, StandardCharsets.UTF_8);
+			return StringUtils.countMatches(raw, "\"resourceType\"");
+		}
+	}
+
+	@Benchmark
+	public String extractPatientId() throws Throwable {
+		try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(nextBundle()), 16 * 1024)) {
+			return (String) Perftest.EXTRACT_PATIENT_ID.invokeExact(is);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.smilecdr.demo.benchmark2;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * The bundles the benchmarks run against. These are the gzipped Synthea files
+ * in <code>SYNTHEA_DIR</code> (a system property or env variable), skipping the
+ * practitioner and hospital files the same way the uploaders do, up to
+ * <code>SYNTHEA_FILES</code> (default 100) of them. Without a directory, bundles
+ * of the same shape are generated: a Patient, and Encounters each followed by
+ * Observations, all linked by <code>urn:uuid</code> references.
+ */
+public class SyntheaData {
+
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+	private static List<byte[]> ourBundles;
+
+	private SyntheaData() {
+		// static utility
+	}
+
+	/**
+	 * @return The gzipped bundles. These are loaded once and shared, so they must not be modified.
+	 */
+	public static synchronized List<byte[]> getGzippedBundles() {
+		if (ourBundles == null) {
+			int maxFiles = Integer.parseInt(getProperty("SYNTHEA_FILES", "100"));
+			String directory = getProperty("SYNTHEA_DIR", null);
+			ourBundles = directory != null ? readDirectory(new File(directory), maxFiles) : generate(maxFiles);
+		}
+		return ourBundles;
+	}
+
+	public static List<Bundle> getParsedBundles() {
+		return getGzippedBundles()
+			.stream()
+			.map(t -> ourCtx.newJsonParser().parseResource(Bundle.class, new String(gunzip(t), StandardCharsets.UTF_8)))
+			.collect(Collectors.toList());
+	}
+
+	public static byte[] gunzip(byte[] theGzipped) {
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(theGzipped))) {
+			return in.readAllBytes();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static List<byte[]> readDirectory(File theDirectory, int theMaxFiles) {
+		try (Stream<Path> files = Files.walk(theDirectory.toPath())) {
+			List<Path> paths = files
+				.filter(Files::isRegularFile)
+				.filter(t -> t.getFileName().toString().endsWith(".gz"))
+				.filter(t -> !t.getFileName().toString().startsWith("practitioner") && !t.getFileName().toString().startsWith("hospital"))
+				.sorted()
+				.limit(theMaxFiles)
+				.collect(Collectors.toList());
+			List<byte[]> retVal = new ArrayList<>();
+			for (Path next : paths) {
+				retVal.add(Files.readAllBytes(next));
+			}
+			if (retVal.isEmpty()) {
+				throw new IllegalStateException("No Synthea files found in " + theDirectory);
+			}
+			return retVal;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Between 50 and 350 resources per bundle, which is close to what Synthea
+	 * produces for a patient with a few years of history
+	 */
+	private static List<byte[]> generate(int theCount) {
+		Random random = new Random(42);
+		List<byte[]> retVal = new ArrayList<>();
+		for (int i = 0; i < theCount; i++) {
+			Bundle bundle = new Bundle();
+			bundle.setType(Bundle.BundleType.TRANSACTION);
+			String patientId = new UUID(random.nextLong(), random.nextLong()).toString();
+			Patient patient = new Patient();
+			patient.setId(patientId);
+			patient.addName().setFamily("Family" + i).addGiven("Given");
+			bundle.addEntry().setFullUrl("urn:uuid:" + patientId).setResource(patient).getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+
+			String encounterId = null;
+			int resourceCount = 50 + random.nextInt(300);
+			for (int j = 0; j < resourceCount; j++) {
+				if (j % 10 == 0) {
+					encounterId = new UUID(random.nextLong(), random.nextLong()).toString();
+					Encounter encounter = new Encounter();
+					encounter.setId(encounterId);
+					encounter.setStatus(Encounter.EncounterStatus.FINISHED);
+					encounter.setSubject(new Reference("urn:uuid:" + patientId));
+					bundle.addEntry().setFullUrl("urn:uuid:" + encounterId).setResource(encounter).getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Encounter");
+				} else {
+					String observationId = new UUID(random.nextLong(), random.nextLong()).toString();
+					Observation observation = new Observation();
+					observation.setId(observationId);
+					observation.setStatus(Observation.ObservationStatus.FINAL);
+					observation.getCode().addCoding().setSystem("http://loinc.org").setCode("8302-2").setDisplay("Body Height");
+					observation.setSubject(new Reference("urn:uuid:" + patientId));
+					observation.setEncounter(new Reference("urn:uuid:" + encounterId));
+					observation.setValue(new Quantity().setValue(random.nextInt(200)).setUnit("cm"));
+					bundle.addEntry().setFullUrl("urn:uuid:" + observationId).setResource(observation).getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Observation");
+				}
+			}
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+				out.write(ourCtx.newJsonParser().encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			retVal.add(bytes.toByteArray());
+		}
+		return retVal;
+	}
+
+	private static String getProperty(String theName, String theDefault) {
+		String retVal = System.getProperty(theName);
+		if (isNotBlank(retVal)) {
+			return retVal;
+		}
+		retVal = System.getenv(theName);
+		return isNotBlank(retVal) ? retVal : theDefault;
+	}
+}
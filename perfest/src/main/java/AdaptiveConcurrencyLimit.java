@@ -0,0 +1,188 @@
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of concurrent uploads to a value that is tuned while the
+ * run is going, using a gradient limiter along the lines of Netflix's
+ * <code>Gradient2Limit</code>.
+ * <p>
+ * Latency is tracked per uploaded resource, since Synthea bundles vary a lot in
+ * size. Once per sample window (about a second) the average latency of the
+ * window is compared with the baseline, which is the lowest window average
+ * seen in the last minute:
+ * <ul>
+ *    <li>While the latency stays within <code>ADAPTIVE_TOLERANCE</code> x the baseline
+ *    the limit grows by about its square root, so it keeps probing for more throughput.</li>
+ *    <li>When the latency rises above that, requests are queueing on the server and the
+ *    limit shrinks in proportion (by at most half per window).</li>
+ *    <li>Any overload error (5xx, 429 or an IO failure) in the window cuts the limit by
+ *    25% regardless of latency.</li>
+ * </ul>
+ * The limit is never raised above the configured maximum (the thread count or
+ * async window), and is not raised while the uploader isn't using at least
+ * half of it.
+ */
+public class AdaptiveConcurrencyLimit {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(AdaptiveConcurrencyLimit.class);
+	private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final int WINDOW_MIN_SAMPLES = 5;
+	private static final double SMOOTHING = 0.2;
+	private static final int BASELINE_WINDOWS = 60;
+	private static final double ERROR_BACKOFF_RATIO = 0.75;
+
+	private final int myMinLimit;
+	private final int myMaxLimit;
+	private final double myTolerance;
+	private final ReentrantLock myLock = new ReentrantLock();
+	private final Condition myPermitReleased = myLock.newCondition();
+	private final double[] myRecentRtts = new double[BASELINE_WINDOWS];
+	// Only written while holding the lock, volatile so getLimit() can read it without taking the lock
+	private volatile double myLimit;
+	private int myInFlight;
+	private int myRecentRttCount;
+	private long myWindowStart = System.nanoTime();
+	private int myWindowSamples;
+	private double myWindowRttSum;
+	private int myWindowErrors;
+	private int myWindowMaxInFlight;
+
+	public AdaptiveConcurrencyLimit(int theInitialLimit, int theMinLimit, int theMaxLimit, double theTolerance) {
+		Validate.isTrue(theMinLimit > 0 && theMinLimit <= theMaxLimit, "Invalid limit range %s - %s", theMinLimit, theMaxLimit);
+		Validate.isTrue(theTolerance >= 1.0, "Tolerance must be at least 1.0");
+		myMinLimit = theMinLimit;
+		myMaxLimit = theMaxLimit;
+		myTolerance = theTolerance;
+		myLimit = clamp(theInitialLimit, theMinLimit, theMaxLimit);
+		ourLog.info("Adaptive concurrency starting at {} (min {}, max {})", getLimit(), theMinLimit, theMaxLimit);
+	}
+
+	/**
+	 * Blocks until fewer than {@link #getLimit()} uploads are in progress
+	 */
+	public void acquire() throws InterruptedException {
+		myLock.lockInterruptibly();
+		try {
+			while (myInFlight >= getLimit()) {
+				myPermitReleased.await();
+			}
+			myInFlight++;
+			myWindowMaxInFlight = Math.max(myWindowMaxInFlight, myInFlight);
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	public void release() {
+		myLock.lock();
+		try {
+			myInFlight--;
+			myPermitReleased.signal();
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	/**
+	 * Records the round trip time of one successful request
+	 */
+	public void onSuccess(long theLatencyNanos, int theResourceCount) {
+		myLock.lock();
+		try {
+			myWindowSamples++;
+			myWindowRttSum += (double) theLatencyNanos / Math.max(1, theResourceCount);
+			maybeUpdateLimit();
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	/**
+	 * Records a request that failed in a way that suggests the server is overloaded
+	 */
+	public void onOverload() {
+		myLock.lock();
+		try {
+			myWindowErrors++;
+			maybeUpdateLimit();
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	public int getLimit() {
+		return (int) myLimit;
+	}
+
+	private void maybeUpdateLimit() {
+		long now = System.nanoTime();
+		if (now - myWindowStart < WINDOW_NANOS || myWindowSamples + myWindowErrors < WINDOW_MIN_SAMPLES) {
+			return;
+		}
+
+		int oldLimit = getLimit();
+		if (myWindowErrors > 0) {
+			myLimit = Math.max(myMinLimit, myLimit * ERROR_BACKOFF_RATIO);
+		} else {
+			double rtt = myWindowRttSum / myWindowSamples;
+			double baselineRtt = updateBaseline(rtt);
+
+			boolean appLimited = myWindowMaxInFlight < myLimit / 2;
+			if (!appLimited) {
+				double gradient = clamp(myTolerance * baselineRtt / rtt, 0.5, 1.0);
+				double newLimit = myLimit * gradient + Math.sqrt(myLimit);
+				myLimit = clamp(myLimit * (1 - SMOOTHING) + newLimit * SMOOTHING, myMinLimit, myMaxLimit);
+			}
+		}
+
+		myWindowStart = now;
+		myWindowSamples = 0;
+		myWindowRttSum = 0;
+		myWindowErrors = 0;
+		myWindowMaxInFlight = myInFlight;
+
+		int newLimit = getLimit();
+		if (newLimit != oldLimit) {
+			ourLog.debug("Concurrency limit changed from {} to {}", oldLimit, newLimit);
+			myPermitReleased.signalAll();
+		}
+	}
+
+	/**
+	 * Adds the latest window to the ring of recent windows and returns the lowest
+	 * one. Using a sliding minimum means the baseline can't creep upwards while
+	 * the server is queueing, but still follows the server if it really does get
+	 * slower for more than a minute.
+	 */
+	private double updateBaseline(double theRtt) {
+		myRecentRtts[myRecentRttCount++ % BASELINE_WINDOWS] = theRtt;
+		double retVal = Double.MAX_VALUE;
+		for (int i = 0; i < Math.min(myRecentRttCount, BASELINE_WINDOWS); i++) {
+			retVal = Math.min(retVal, myRecentRtts[i]);
+		}
+		return retVal;
+	}
+
+	private static double clamp(double theValue, double theMin, double theMax) {
+		return Math.max(theMin, Math.min(theMax, theValue));
+	}
+
+	/**
+	 * Creates a limiter if <code>ADAPTIVE_CONCURRENCY</code> is enabled, otherwise
+	 * returns <code>null</code>
+	 */
+	public static AdaptiveConcurrencyLimit newLimitIfEnabled(int theMaxLimit) {
+		if (!PerfTestProperties.getBoolean("ADAPTIVE_CONCURRENCY", false)) {
+			return null;
+		}
+		int initialLimit = PerfTestProperties.getInt("ADAPTIVE_INITIAL_LIMIT", Math.min(theMaxLimit, 4));
+		int minLimit = PerfTestProperties.getInt("ADAPTIVE_MIN_LIMIT", 1);
+		double tolerance = PerfTestProperties.getDouble("ADAPTIVE_TOLERANCE", 1.5);
+		return new AdaptiveConcurrencyLimit(initialLimit, minLimit, theMaxLimit, tolerance);
+	}
+}
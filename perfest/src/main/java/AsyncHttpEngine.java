@@ -0,0 +1,117 @@
+import ca.uhn.fhir.rest.client.impl.HttpBasicAuthInterceptor;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.time.DateUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.client.DefaultClientConnectionReuseStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Non-blocking alternative to the client from {@link Uploader#createHttpClient(boolean)}.
+ * Requests are multiplexed over a small number of IO reactor threads, and the
+ * number of requests in flight is capped by a window rather than by the size
+ * of a thread pool.
+ * <p>
+ * Callers take a slot in the window with {@link #acquire()} (which blocks while
+ * the window is full), send one or more requests with {@link #send(HttpAsyncRequestProducer, FutureCallback)},
+ * and give the slot back with {@link #release()} once they are done. Callbacks
+ * run on a reactor thread, so they must never block.
+ */
+public class AsyncHttpEngine implements Closeable {
+
+	public static final String ENGINE_BLOCKING = "blocking";
+	public static final String ENGINE_ASYNC = "async";
+
+	private static final Logger ourLog = LoggerFactory.getLogger(AsyncHttpEngine.class);
+	private final CloseableHttpAsyncClient myClient;
+	private final Semaphore myWindow;
+	private final int myWindowSize;
+
+	public AsyncHttpEngine(int theWindowSize, int theIoThreadCount) throws IOReactorException {
+		Validate.isTrue(theWindowSize > 0, "Window size must be positive");
+		Validate.isTrue(theIoThreadCount > 0, "IO thread count must be positive");
+		myWindowSize = theWindowSize;
+		myWindow = new Semaphore(theWindowSize);
+
+		IOReactorConfig reactorConfig = IOReactorConfig
+			.custom()
+			.setIoThreadCount(theIoThreadCount)
+			.setSoTimeout((int) (600 * DateUtils.MILLIS_PER_SECOND))
+			.setSoKeepAlive(true)
+			.build();
+		PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactorConfig));
+		connectionManager.setMaxTotal(10000);
+		connectionManager.setDefaultMaxPerRoute(10000);
+
+		myClient = HttpAsyncClients
+			.custom()
+			.setConnectionReuseStrategy(new DefaultClientConnectionReuseStrategy())
+			.setConnectionManager(connectionManager)
+			.addInterceptorFirst(new HttpBasicAuthInterceptor("admin", "password"))
+			.build();
+		myClient.start();
+
+		ourLog.info("Started async HTTP engine with {} IO threads and a window of {} requests", theIoThreadCount, theWindowSize);
+	}
+
+	/**
+	 * Blocks until there is room in the window for another request
+	 */
+	public void acquire() throws InterruptedException {
+		myWindow.acquire();
+	}
+
+	public void release() {
+		myWindow.release();
+	}
+
+	/**
+	 * Sends a request. The caller must already hold a slot from {@link #acquire()}.
+	 * A retry can be sent from inside the callback using the same slot.
+	 */
+	public void send(HttpAsyncRequestProducer theRequest, FutureCallback<HttpResponse> theCallback) {
+		myClient.execute(theRequest, HttpAsyncMethods.createConsumer(), theCallback);
+	}
+
+	public int getWindowSize() {
+		return myWindowSize;
+	}
+
+	public int getInFlightCount() {
+		return myWindowSize - myWindow.availablePermits();
+	}
+
+	@Override
+	public void close() throws IOException {
+		myClient.close();
+	}
+
+	public static boolean isAsyncEnabled() {
+		String engine = PerfTestProperties.getString("HTTP_ENGINE", ENGINE_BLOCKING);
+		Validate.isTrue(ENGINE_BLOCKING.equals(engine) || ENGINE_ASYNC.equals(engine), "Unknown HTTP_ENGINE: %s", engine);
+		return ENGINE_ASYNC.equals(engine);
+	}
+
+	/**
+	 * Creates an engine using the <code>ASYNC_WINDOW</code> and <code>ASYNC_IO_THREADS</code>
+	 * settings, falling back to the given defaults.
+	 */
+	public static AsyncHttpEngine newEngine(int theDefaultWindowSize) throws IOReactorException {
+		int windowSize = PerfTestProperties.getInt("ASYNC_WINDOW", theDefaultWindowSize);
+		int ioThreads = PerfTestProperties.getInt("ASYNC_IO_THREADS", Runtime.getRuntime().availableProcessors());
+		return new AsyncHttpEngine(windowSize, ioThreads);
+	}
+}
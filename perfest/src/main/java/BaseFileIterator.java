@@ -1,33 +1,119 @@
-import ca.uhn.fhir.jpa.dao.GZipUtil;
 import ca.uhn.fhir.util.StopWatch;
-import ca.uhn.fhir.util.ThreadPoolUtil;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.time.DateUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
 
 import static java.util.Comparator.comparing;
 
 public abstract class BaseFileIterator {
 	private static final Logger ourLog = LoggerFactory.getLogger(BaseFileIterator.class);
-	protected int myTotalFiles;
+	private static final String SCAN_MODE_SORTED = "sorted";
+	private static final String SCAN_MODE_PARALLEL = "parallel";
+	private static final String PIPELINE_MODE_SINGLE = "single";
+	private static final String PIPELINE_MODE_STAGED = "staged";
+	private static final File END_OF_FILES = new File("");
+	private static final int PACK_READ_BUFFER_SIZE = 1024 * 1024;
+	protected volatile int myTotalFiles;
 	protected StopWatch mySw;
 	protected final AtomicLong myFilesUploadedCount = new AtomicLong(0);
 	protected final AtomicLong myResourcesUploadedCount = new AtomicLong(0);
 
+	/**
+	 * If set, files already marked as completed in the journal are skipped, and
+	 * subclasses record each file's outcome with {@link #recordCompleted(File)}
+	 * and {@link #recordFailed(File)}. The journal is closed once processing
+	 * finishes.
+	 */
+	protected UploadJournal myJournal;
+	private Path mySourceDir;
+	private StagedPipeline myPipeline;
+
+	/**
+	 * Processes every file in the directory, or every bundle in it if it is a
+	 * {@link DatasetPack pack directory}
+	 */
 	protected void processFilesInDirectory(File sourceDir, int threadCount, int theStartIndex) throws Exception {
+		Validate.isTrue(theStartIndex == 0 || myJournal == null, "A start index can't be combined with a journal");
+		mySourceDir = sourceDir.toPath();
+
+		if (DatasetPack.isPackDirectory(sourceDir)) {
+			Validate.isTrue(theStartIndex == 0, "A start index can't be used with a pack directory, use a journal instead");
+			try {
+				processPacks(sourceDir, threadCount);
+			} finally {
+				if (myJournal != null) {
+					myJournal.close();
+				}
+			}
+			return;
+		}
+
+		String scanMode = PerfTestProperties.getString("SCAN_MODE", SCAN_MODE_SORTED);
+		String pipelineMode = PerfTestProperties.getString("PIPELINE_MODE", PIPELINE_MODE_SINGLE);
+		Validate.isTrue(PIPELINE_MODE_SINGLE.equals(pipelineMode) || PIPELINE_MODE_STAGED.equals(pipelineMode), "Unknown PIPELINE_MODE: %s", pipelineMode);
+		if (PIPELINE_MODE_STAGED.equals(pipelineMode)) {
+			myPipeline = new StagedPipeline(threadCount);
+		}
+		try {
+			switch (scanMode) {
+				case SCAN_MODE_SORTED:
+					processFilesInDirectorySorted(sourceDir, threadCount, theStartIndex);
+					break;
+				case SCAN_MODE_PARALLEL:
+					Validate.isTrue(theStartIndex == 0, "A start index can only be used with SCAN_MODE=" + SCAN_MODE_SORTED);
+					processFilesInDirectoryParallel(sourceDir, threadCount);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown SCAN_MODE: " + scanMode);
+			}
+		} finally {
+			if (myJournal != null) {
+				myJournal.close();
+			}
+		}
+	}
+
+	/**
+	 * Scans the whole directory up front and processes the files in name order. This is
+	 * slower to start on very large directories, but the file indexes are stable between
+	 * runs so a start index can be used to resume.
+	 */
+	private void processFilesInDirectorySorted(File sourceDir, int threadCount, int theStartIndex) throws Exception {
 		ourLog.info("Scanning directory for files...");
 		StopWatch fileSw = new StopWatch();
 		Iterator<File> fileIterator = FileUtils
@@ -44,11 +130,16 @@ public abstract class BaseFileIterator {
 			}
 		}
 
-		myTotalFiles = files.size();
-
 		ourLog.info("Finished scanning directory, have {} files", files.size());
 
-		ThreadPoolTaskExecutor threadPool = ThreadPoolUtil.newThreadPool(threadCount, threadCount, "worker-", 100);
+		if (myJournal != null) {
+			files.removeIf(this::isAlreadyCompleted);
+			ourLog.info("Have {} files left to process after skipping completed files in journal", files.size());
+		}
+
+		myTotalFiles = files.size();
+
+		ExecutorService threadPool = myPipeline == null ? PerfTestExecutors.newExecutor(threadCount, "worker-", 100) : null;
 
 		mySw = new StopWatch();
 
@@ -62,21 +153,251 @@ public abstract class BaseFileIterator {
 					continue;
 				}
                 File nextFile = iterator.next();
-                if (nextFile.getName().startsWith("practitioner") || nextFile.getName().startsWith("hospital")) {
+                if (isSkipped(nextFile)) {
 					ourLog.info("Skipping file {}: {}", index, nextFile.getName());
                     continue;
                 }
+				if (myPipeline != null) {
+					myPipeline.submit(nextFile, index);
+					continue;
+				}
                 futures.add(threadPool.submit(() -> processFile(nextFile, index)));
             }
 			for (var next : futures) {
 				next.get();
 			}
+			if (myPipeline != null) {
+				myPipeline.awaitCompletion();
+			}
+		} finally {
+			if (threadPool != null) {
+				threadPool.shutdown();
+			}
+			if (myPipeline != null) {
+				myPipeline.shutdown();
+			}
+			finishing();
+		}
+	}
+
+	/**
+	 * Walks the directory tree with a fork/join pool and feeds the files into a bounded
+	 * queue that the workers drain while the scan is still running. Nothing is held per
+	 * file once it has been processed, but the processing order (and therefore the file
+	 * index) is not stable between runs. With the staged pipeline, the scan feeds
+	 * the pipeline directly instead.
+	 */
+	private void processFilesInDirectoryParallel(File sourceDir, int threadCount) throws Exception {
+		int scanThreadCount = PerfTestProperties.getInt("SCAN_THREADS", 4);
+		int queueSize = PerfTestProperties.getInt("SCAN_QUEUE_SIZE", threadCount * 10);
+		ourLog.info("Scanning directory for files with {} scan threads and a queue size of {}", scanThreadCount, queueSize);
+
+		BlockingQueue<File> queue = new ArrayBlockingQueue<>(queueSize);
+		AtomicInteger foundCount = new AtomicInteger(0);
+		AtomicReference<Exception> failure = new AtomicReference<>();
+		ForkJoinPool scanPool = new ForkJoinPool(scanThreadCount);
+		int workerCount = myPipeline == null ? threadCount : 0;
+		ExecutorService threadPool = myPipeline == null ? PerfTestExecutors.newExecutor(threadCount, "worker-", 0) : null;
+		AtomicInteger index = new AtomicInteger(0);
+		Consumer<File> sink;
+		if (myPipeline != null) {
+			sink = t -> myPipeline.submit(t, index.getAndIncrement());
+		} else {
+			sink = t -> putUninterruptibly(queue, t);
+		}
+
+		mySw = new StopWatch();
+
+		starting();
+
+		try {
+			StopWatch fileSw = new StopWatch();
+			Thread scanThread = new Thread(() -> {
+				try {
+					scanPool.invoke(new DirectoryScanTask(sourceDir.toPath(), sink, foundCount, fileSw));
+					ourLog.info("Finished scanning directory, have {} files", foundCount.get());
+				} catch (Exception e) {
+					ourLog.error("Failure scanning directory", e);
+					failure.compareAndSet(null, e);
+				} finally {
+					for (int i = 0; i < workerCount; i++) {
+						putUninterruptibly(queue, END_OF_FILES);
+					}
+				}
+			}, "scanner");
+			scanThread.start();
+
+			List<Future<?>> workers = new ArrayList<>();
+			for (int i = 0; i < workerCount; i++) {
+				workers.add(threadPool.submit(() -> {
+					while (true) {
+						File nextFile = takeUninterruptibly(queue);
+						if (nextFile == END_OF_FILES) {
+							return;
+						}
+						try {
+							processFile(nextFile, index.getAndIncrement());
+						} catch (Exception e) {
+							ourLog.error("Failure processing file {}", nextFile.getName(), e);
+							failure.compareAndSet(null, e);
+						}
+					}
+				}));
+			}
+			for (var next : workers) {
+				next.get();
+			}
+			scanThread.join();
+			if (myPipeline != null) {
+				myPipeline.awaitCompletion();
+			}
+
+			if (failure.get() != null) {
+				throw failure.get();
+			}
+		} finally {
+			scanPool.shutdown();
+			if (threadPool != null) {
+				threadPool.shutdown();
+			}
+			if (myPipeline != null) {
+				myPipeline.shutdown();
+			}
+			finishing();
+		}
+	}
+
+	/**
+	 * Reads the packs with <code>PACK_READ_THREADS</code> reader threads, each of which
+	 * streams through one pack at a time and hands the bundles to the worker
+	 * threads. Payloads stay in memory until the handler releases them, and the
+	 * readers wait once <code>PACK_BUFFER_MB</code> worth of payloads is held. The
+	 * worker threads are a {@link PipelineStage}, so how long the readers waited on
+	 * them is logged at the end.
+	 */
+	private void processPacks(File thePackDir, int threadCount) throws Exception {
+		List<File> packs = DatasetPack.listPacks(thePackDir);
+		int readThreadCount = Math.max(1, Math.min(packs.size(), PerfTestProperties.getInt("PACK_READ_THREADS", 4)));
+		int bufferKb = PerfTestProperties.getInt("PACK_BUFFER_MB", 256) * 1024;
+		ourLog.info("Reading {} packs with {} reader threads and a buffer of {}MB", packs.size(), readThreadCount, bufferKb / 1024);
+
+		// The indexes are small, so the total is known before any pack is opened
+		int total = 0;
+		for (File next : packs) {
+			for (DatasetPack.IndexEntry nextEntry : DatasetPack.readIndex(next)) {
+				if (!isAlreadyCompleted(nextEntry.getName())) {
+					total++;
+				}
+			}
+		}
+		myTotalFiles = total;
+		ourLog.info("Have {} bundles to process", total);
+
+		Semaphore buffer = new Semaphore(bufferKb);
+		AtomicInteger index = new AtomicInteger(0);
+		AtomicReference<Exception> failure = new AtomicReference<>();
+		ExecutorService readerPool = PerfTestExecutors.newExecutor(readThreadCount, "pack-reader-", packs.size());
+		PipelineStage handleStage = new PipelineStage("handle", threadCount, threadCount * 10);
+
+		mySw = new StopWatch();
+
+		starting();
+
+		try {
+			List<Future<?>> readers = new ArrayList<>();
+			for (File nextPack : packs) {
+				readers.add(readerPool.submit(() -> {
+					readPack(nextPack, buffer, bufferKb, handleStage, index, failure);
+					return null;
+				}));
+			}
+			for (var next : readers) {
+				next.get();
+			}
+			handleStage.awaitCompletion();
+			PipelineStage.logStages(List.of(handleStage));
+
+			if (failure.get() != null) {
+				throw failure.get();
+			}
 		} finally {
-			threadPool.shutdown();
+			readerPool.shutdown();
+			handleStage.shutdown();
 			finishing();
 		}
 	}
 
+	private void readPack(File thePack, Semaphore theBuffer, int theBufferKb, PipelineStage theHandleStage, AtomicInteger theIndex, AtomicReference<Exception> theFailure) throws Exception {
+		ourLog.info("Reading pack {}", thePack.getName());
+		try (DatasetPack.Reader reader = new DatasetPack.Reader(thePack, PACK_READ_BUFFER_SIZE)) {
+			DatasetPack.Entry next;
+			while ((next = reader.nextEntry()) != null) {
+				if (isAlreadyCompleted(next.getName())) {
+					reader.skipPayload(next);
+					continue;
+				}
+
+				next.setReleaseCallback(acquireBuffer(theBuffer, theBufferKb, next.getLength()));
+				reader.readPayload(next);
+
+				DatasetPack.Entry entry = next;
+				theHandleStage.submit(() -> {
+					try {
+						handlePackEntry(entry, theIndex.getAndIncrement());
+					} catch (Exception e) {
+						ourLog.error("Failure processing {}", entry.getName(), e);
+						entry.release();
+						theFailure.compareAndSet(null, e);
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Waits until the payload fits in the buffer budget
+	 *
+	 * @return Releases the payload's share of the budget again
+	 */
+	private static Runnable acquireBuffer(Semaphore theBuffer, int theBufferKb, long theLength) throws InterruptedException {
+		int permits = (int) Math.min(theBufferKb, (theLength + 1023) / 1024);
+		theBuffer.acquire(permits);
+		return () -> theBuffer.release(permits);
+	}
+
+	static boolean isSkipped(File theFile) {
+		return theFile.getName().startsWith("practitioner") || theFile.getName().startsWith("hospital");
+	}
+
+	private boolean isAlreadyCompleted(File theFile) {
+		return isAlreadyCompleted(getJournalKey(theFile));
+	}
+
+	private boolean isAlreadyCompleted(String theJournalKey) {
+		return myJournal != null && myJournal.isCompleted(theJournalKey);
+	}
+
+	/**
+	 * Files are journaled by their path relative to the source directory, so the
+	 * journal stays valid if the dataset is moved or mounted somewhere else. Bundles
+	 * in a pack keep the key of the file they were packed from.
+	 */
+	protected String getJournalKey(File theFile) {
+		return mySourceDir.relativize(theFile.toPath()).toString().replace(File.separatorChar, '/');
+	}
+
+	protected void recordCompleted(String theJournalKey) {
+		if (myJournal != null) {
+			myJournal.recordCompleted(theJournalKey);
+		}
+	}
+
+	protected void recordFailed(String theJournalKey) {
+		if (myJournal != null) {
+			myJournal.recordFailed(theJournalKey);
+		}
+	}
+
 	/** For overriding */
 	protected void finishing() throws Exception {
 		// nothing
@@ -87,21 +408,327 @@ public abstract class BaseFileIterator {
 		// nothing
 	}
 
+	/**
+	 * Tools that route by patient override this, so that with <code>PIPELINE_MODE=staged</code>
+	 * the decode stage finds the patient ID of each file for {@link StagedFile#getPatientId()}.
+	 * Other tools don't pay for the lookup, and don't fail on bundles without a Patient.
+	 */
+	protected boolean isPatientIdNeeded() {
+		return false;
+	}
 
-	private void processFile(File theFile, int theIndex) {
-		try (FileInputStream fis = new FileInputStream(theFile)) {
-			byte[] bytes = IOUtils.toByteArray(fis);
-			String raw = GZipUtil.decompress(bytes);
-			int resources = StringUtils.countMatches(raw, "\"resourceType\"") - 1;
 
+	private void processFile(File theFile, int theIndex) {
+		try (FileChannel channel = FileChannel.open(theFile.toPath(), StandardOpenOption.READ)) {
+			// Subtract 1 for the Bundle itself
+			int resources = GzipResourceCounter.countResources(channel) - 1;
 
-			handleFile(theFile, bytes, resources, theIndex);
+			handleFile(theFile, resources, theIndex);
 		} catch (Exception theE) {
 			throw new RuntimeException(theE);
 		}
 	}
 
-	protected abstract void handleFile(File theFile, byte[] bytes, int theResourceCount, int theIndex);
+	/**
+	 * Called once for each file. The file contents are not loaded into memory
+	 * up front, use {@link #readFile(File)} if the bytes are actually needed.
+	 */
+	protected abstract void handleFile(File theFile, int theResourceCount, int theIndex);
+
+	/**
+	 * Called once for each bundle when reading from a {@link DatasetPack pack directory}.
+	 * The entry must be {@link DatasetPack.Entry#release() released} once its payload
+	 * is no longer needed, or the readers will eventually stop.
+	 */
+	protected abstract void handlePackEntry(DatasetPack.Entry theEntry, int theIndex);
+
+	/**
+	 * Called instead of {@link #handleFile(File, int, int)} for each file with
+	 * <code>PIPELINE_MODE=staged</code>. The file must be {@link StagedFile#release() released}
+	 * once its payload is no longer needed, or the pipeline will eventually stop.
+	 */
+	protected abstract void handleStagedFile(StagedFile theFile, int theIndex);
+
+	protected static byte[] readFile(File theFile) throws IOException {
+		try (FileInputStream fis = new FileInputStream(theFile)) {
+			return IOUtils.toByteArray(fis);
+		}
+	}
+
+	private static void putUninterruptibly(BlockingQueue<File> theQueue, File theFile) {
+		try {
+			theQueue.put(theFile);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static File takeUninterruptibly(BlockingQueue<File> theQueue) {
+		try {
+			return theQueue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Splits the work on each file between three {@link PipelineStage stages}, so
+	 * that disk reads, CPU work and the (usually blocking) handler can each be given
+	 * the right number of threads:
+	 * <ol>
+	 *    <li><b>read</b> - reads the gzipped file into memory (<code>PIPELINE_READ_THREADS</code>, default 4)</li>
+	 *    <li><b>decode</b> - counts the resources, and finds the patient ID in the same pass if the tool
+	 *    {@link #isPatientIdNeeded() needs it} (<code>PIPELINE_DECODE_THREADS</code>, default the number of
+	 *    CPU cores)</li>
+	 *    <li><b>handle</b> - passes the file to {@link #handleStagedFile(StagedFile, int)}, using the
+	 *    tool's thread count</li>
+	 * </ol>
+	 * Each stage has a queue of <code>PIPELINE_QUEUE_SIZE</code> (default 100), and
+	 * payloads held anywhere in the pipeline (including by the handler) count
+	 * towards <code>PIPELINE_BUFFER_MB</code> (default 256). Stage metrics are logged
+	 * every <code>PIPELINE_LOG_SECONDS</code> (default 60) and at the end.
+	 */
+	private class StagedPipeline {
+		private final PipelineStage myReadStage;
+		private final PipelineStage myDecodeStage;
+		private final PipelineStage myHandleStage;
+		private final List<PipelineStage> myStages;
+		private final Semaphore myBuffer;
+		private final int myBufferKb;
+		private final Timer myLogTimer;
+		private final AtomicReference<Exception> myFailure = new AtomicReference<>();
+
+		private StagedPipeline(int theHandleThreadCount) {
+			int queueSize = PerfTestProperties.getInt("PIPELINE_QUEUE_SIZE", 100);
+			myReadStage = new PipelineStage("read", PerfTestProperties.getInt("PIPELINE_READ_THREADS", 4), queueSize);
+			myDecodeStage = new PipelineStage("decode", PerfTestProperties.getInt("PIPELINE_DECODE_THREADS", Runtime.getRuntime().availableProcessors()), queueSize);
+			myHandleStage = new PipelineStage("handle", theHandleThreadCount, queueSize);
+			myStages = List.of(myReadStage, myDecodeStage, myHandleStage);
+			myBufferKb = PerfTestProperties.getInt("PIPELINE_BUFFER_MB", 256) * 1024;
+			myBuffer = new Semaphore(myBufferKb);
+
+			long logMillis = PerfTestProperties.getInt("PIPELINE_LOG_SECONDS", 60) * DateUtils.MILLIS_PER_SECOND;
+			myLogTimer = new Timer("pipeline-log", true);
+			myLogTimer.scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					PipelineStage.logStages(myStages);
+				}
+			}, logMillis, logMillis);
+		}
+
+		private void submit(File theFile, int theIndex) {
+			myReadStage.submit(() -> {
+				Runnable release = null;
+				try {
+					release = acquireBuffer(myBuffer, myBufferKb, theFile.length());
+					byte[] payload = readFile(theFile);
+					Runnable releaseBuffer = release;
+					myDecodeStage.submit(() -> decode(theFile, theIndex, payload, releaseBuffer));
+				} catch (Exception e) {
+					failed(theFile.getName(), e, release);
+				}
+			});
+		}
+
+		private void decode(File theFile, int theIndex, byte[] thePayload, Runnable theRelease) {
+			StagedFile stagedFile;
+			try {
+				int resources;
+				String patientId = null;
+				if (isPatientIdNeeded()) {
+					try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(thePayload), 16 * 1024)) {
+						GzipResourceCounter.CountingInputStream countingStream = new GzipResourceCounter.CountingInputStream(is);
+						patientId = PatientIdExtractor.extractPatientId(countingStream);
+						resources = countingStream.finish();
+					}
+				} else {
+					resources = GzipResourceCounter.countResources(thePayload);
+				}
+				// Subtract 1 for the Bundle itself
+				stagedFile = new StagedFile(theFile, patientId, resources - 1, thePayload, theRelease);
+			} catch (Exception e) {
+				failed(theFile.getName(), e, theRelease);
+				return;
+			}
+
+			myHandleStage.submit(() -> {
+				try {
+					handleStagedFile(stagedFile, theIndex);
+				} catch (Exception e) {
+					failed(theFile.getName(), e, stagedFile::release);
+				}
+			});
+		}
+
+		private void failed(String theName, Exception theException, Runnable theRelease) {
+			ourLog.error("Failure processing file {}", theName, theException);
+			myFailure.compareAndSet(null, theException);
+			if (theRelease != null) {
+				theRelease.run();
+			}
+		}
+
+		/**
+		 * Waits for every submitted file to go through all of the stages. Must
+		 * only be called once nothing else will be submitted.
+		 */
+		private void awaitCompletion() throws Exception {
+			for (PipelineStage next : myStages) {
+				next.awaitCompletion();
+			}
+			myLogTimer.cancel();
+			PipelineStage.logStages(myStages);
+			if (myFailure.get() != null) {
+				throw myFailure.get();
+			}
+		}
+
+		private void shutdown() {
+			myLogTimer.cancel();
+			myStages.forEach(PipelineStage::shutdown);
+		}
+	}
+
+	/**
+	 * A plain file that the staged pipeline has read into memory and decoded
+	 */
+	protected static class StagedFile {
+		private final File myFile;
+		private final String myPatientId;
+		private final int myResourceCount;
+		private final Runnable myReleaseCallback;
+		private final AtomicBoolean myReleased = new AtomicBoolean(false);
+		private byte[] myPayload;
+
+		private StagedFile(File theFile, String thePatientId, int theResourceCount, byte[] thePayload, Runnable theReleaseCallback) {
+			myFile = theFile;
+			myPatientId = thePatientId;
+			myResourceCount = theResourceCount;
+			myPayload = thePayload;
+			myReleaseCallback = theReleaseCallback;
+		}
+
+		public File getFile() {
+			return myFile;
+		}
+
+		/**
+		 * Only available to tools that {@link BaseFileIterator#isPatientIdNeeded() need it}
+		 */
+		public String getPatientId() {
+			Validate.validState(myPatientId != null, "Patient ID for %s was not extracted", myFile.getName());
+			return myPatientId;
+		}
+
+		/**
+		 * @return The number of resources in the bundle, not counting the Bundle itself
+		 */
+		public int getResourceCount() {
+			return myResourceCount;
+		}
+
+		public byte[] getPayload() {
+			Validate.validState(myPayload != null, "Payload for %s was already released", myFile.getName());
+			return myPayload;
+		}
+
+		public void release() {
+			if (myReleased.compareAndSet(false, true)) {
+				myPayload = null;
+				myReleaseCallback.run();
+			}
+		}
+	}
+
+	/**
+	 * Streams the entries of one directory into the work queue (or the staged
+	 * pipeline), forking a new task for each subdirectory. Blocking on the queue
+	 * is what throttles the scan to the speed of the workers.
+	 */
+	private class DirectoryScanTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Path myDirectory;
+		private final Consumer<File> mySink;
+		private final AtomicInteger myFoundCount;
+		private final StopWatch myScanSw;
+
+		private DirectoryScanTask(Path theDirectory, Consumer<File> theSink, AtomicInteger theFoundCount, StopWatch theScanSw) {
+			myDirectory = theDirectory;
+			mySink = theSink;
+			myFoundCount = theFoundCount;
+			myScanSw = theScanSw;
+		}
+
+		@Override
+		protected void compute() {
+			List<DirectoryScanTask> subTasks = new ArrayList<>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(myDirectory)) {
+				for (Path next : entries) {
+					if (Files.isDirectory(next)) {
+						DirectoryScanTask subTask = new DirectoryScanTask(next, mySink, myFoundCount, myScanSw);
+						subTask.fork();
+						subTasks.add(subTask);
+						continue;
+					}
+
+					File nextFile = next.toFile();
+					if (!nextFile.getName().endsWith(".gz")) {
+						continue;
+					}
+					if (isSkipped(nextFile)) {
+						ourLog.info("Skipping file: {}", nextFile.getName());
+						continue;
+					}
+					if (isAlreadyCompleted(nextFile)) {
+						continue;
+					}
+
+					acceptManaged(nextFile);
+					int found = myFoundCount.incrementAndGet();
+					myTotalFiles = found;
+					if (found % 100000 == 0) {
+						ourLog.info(" * Found {} files ({}/sec)", found, myScanSw.getThroughput(found, TimeUnit.SECONDS));
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			for (DirectoryScanTask next : subTasks) {
+				next.join();
+			}
+		}
+
+		/**
+		 * The sink blocks while the queue is full, so let the pool add a thread
+		 * rather than have every scan thread stuck waiting
+		 */
+		private void acceptManaged(File theFile) {
+			try {
+				ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+					private boolean myAccepted;
+
+					@Override
+					public boolean block() {
+						mySink.accept(theFile);
+						myAccepted = true;
+						return true;
+					}
+
+					@Override
+					public boolean isReleasable() {
+						return myAccepted;
+					}
+				});
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+		}
+	}
 
 
 }
@@ -0,0 +1,725 @@
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.util.StopWatch;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Snapshot;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.lang3.time.DateUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.client.methods.ZeroCopyPost;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.r4.model.InstantType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+import static ca.uhn.fhir.rest.api.Constants.CT_FHIR_JSON_NEW;
+import static ca.uhn.fhir.rest.api.Constants.ENCODING_GZIP;
+import static ca.uhn.fhir.rest.api.Constants.HEADER_CONTENT_ENCODING;
+import static ca.uhn.fhir.rest.api.Constants.HEADER_CONTENT_TYPE;
+import static ca.uhn.fhir.rest.api.Constants.HEADER_PREFER;
+import static ca.uhn.fhir.rest.api.Constants.HEADER_PREFER_RETURN;
+import static ca.uhn.fhir.rest.api.Constants.HEADER_PREFER_RETURN_MINIMAL;
+
+/**
+ * Common upload, retry and progress reporting logic shared by {@link Uploader}
+ * and {@link UploaderDirect}. Subclasses only decide where each file is sent.
+ */
+public abstract class BaseUploader extends BaseFileIterator {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(BaseUploader.class);
+	private final AtomicInteger myFailureCount = new AtomicInteger(0);
+	private final AtomicInteger myRetryCount = new AtomicInteger(0);
+	private Meter myResourcesUploadedMeter;
+	private final AtomicInteger myRetryQueueDepth = new AtomicInteger(0);
+	private final AtomicLong myBackoffMillis = new AtomicLong(0);
+	private final AtomicInteger myPendingUploads = new AtomicInteger(0);
+	private final ReentrantLock myPendingLock = new ReentrantLock();
+	private final Condition myPendingDone = myPendingLock.newCondition();
+	private final ReentrantLock myLaneLock = new ReentrantLock();
+	private final Condition myLaneDrained = myLaneLock.newCondition();
+	private final AtomicInteger myLaneWaiters = new AtomicInteger(0);
+	private final Map<String, UploadTarget> myTargets = new ConcurrentHashMap<>();
+	private int myDefaultConcurrency;
+	private int myDefaultIoThreads;
+	private ScheduledThreadPoolExecutor myRetryExecutor;
+	private int myMaxRetries;
+	private int myBackoffBaseMillis;
+	private int myBackoffMaxMillis;
+	private Timer myLogTimer;
+	private FileWriter myCsvWriter;
+	private FileWriter myTargetCsvWriter;
+	private Rebundler myRebundler;
+	private Semaphore myRebundlePermits;
+
+	/**
+	 * The last uploader argument used to be a numeric start index. It can now also be
+	 * the path to an {@link UploadJournal}, which is the preferred way to resume.
+	 *
+	 * @return The start index, or 0 if a journal was opened instead
+	 */
+	protected int parseStartIndexOrJournal(String theArgument) throws IOException {
+		if (NumberUtils.isDigits(theArgument)) {
+			return Integer.parseInt(theArgument);
+		}
+		ourLog.info("Using upload journal: {}", theArgument);
+		myJournal = new UploadJournal(new File(theArgument));
+		return 0;
+	}
+
+	/**
+	 * Reads the HTTP engine settings. Each upload target gets its own client (or
+	 * {@link AsyncHttpEngine}), created the first time a file is sent to it. In async
+	 * mode the in-flight window defaults to the thread count, so that both engines
+	 * keep the same number of requests outstanding unless <code>ASYNC_WINDOW</code>
+	 * is set.
+	 * <p>
+	 * With <code>ADAPTIVE_CONCURRENCY</code> enabled the thread count (or window)
+	 * becomes the upper bound for an {@link AdaptiveConcurrencyLimit}.
+	 */
+	protected void initHttpEngine(int theThreadCount) {
+		if (AsyncHttpEngine.isAsyncEnabled()) {
+			myDefaultConcurrency = PerfTestProperties.getInt("ASYNC_WINDOW", theThreadCount);
+		} else {
+			myDefaultConcurrency = theThreadCount;
+		}
+		myDefaultIoThreads = PerfTestProperties.getInt("ASYNC_IO_THREADS", Runtime.getRuntime().availableProcessors());
+
+		myMaxRetries = PerfTestProperties.getInt("RETRY_MAX", 3);
+		myBackoffBaseMillis = PerfTestProperties.getInt("RETRY_BACKOFF_MILLIS", 1000);
+		myBackoffMaxMillis = PerfTestProperties.getInt("RETRY_BACKOFF_MAX_MILLIS", 60000);
+		int retryThreads = PerfTestProperties.getInt("RETRY_THREADS", Math.max(2, theThreadCount / 4));
+		myRetryExecutor = new ScheduledThreadPoolExecutor(retryThreads, new BasicThreadFactory.Builder().namingPattern("retry-%d").daemon(true).build());
+	}
+
+	/**
+	 * Creates a separate lane for each of the given targets. The thread count (or
+	 * async window) and IO threads are split evenly between the lanes unless
+	 * <code>LANE_CONCURRENCY</code> is set. Handing a file to a lane never
+	 * blocks, even if that lane is backed up, so one slow partition doesn't hold up
+	 * the others. The worker threads only wait once every lane has at least
+	 * <code>LANE_QUEUE_SIZE</code> files queued. Must be called after
+	 * {@link #initHttpEngine(int)}.
+	 */
+	protected void initLanes(List<String> theTargetNames) throws IOException {
+		Validate.isTrue(!theTargetNames.isEmpty(), "No lanes");
+		int concurrency = PerfTestProperties.getInt("LANE_CONCURRENCY", Math.max(1, myDefaultConcurrency / theTargetNames.size()));
+		int ioThreads = Math.max(1, myDefaultIoThreads / theTargetNames.size());
+		int queueSize = PerfTestProperties.getInt("LANE_QUEUE_SIZE", 10000);
+		for (String next : theTargetNames) {
+			myTargets.put(next, new UploadTarget(next, concurrency, ioThreads, queueSize, this::laneDrained));
+		}
+	}
+
+	/**
+	 * Enables the {@link Rebundler} if <code>REBUNDLE_TARGET_SIZE</code> is set.
+	 * Small bundles are only merged if the megascale count is known. Re-chunked
+	 * bundles are held in memory as parsed JSON, so no more than
+	 * <code>REBUNDLE_MAX_PENDING</code> of them are buffered or queued at once.
+	 * Must be called after {@link #initHttpEngine(int)}.
+	 */
+	protected void initRebundler(int theMegascaleCount) {
+		int targetSize = PerfTestProperties.getInt("REBUNDLE_TARGET_SIZE", 0);
+		if (targetSize > 0) {
+			int lingerMillis = PerfTestProperties.getInt("REBUNDLE_LINGER_MILLIS", 1000);
+			myRebundlePermits = new Semaphore(PerfTestProperties.getInt("REBUNDLE_MAX_PENDING", Math.max(4, myDefaultConcurrency * 2)));
+			myRebundler = new Rebundler(targetSize, theMegascaleCount, lingerMillis, t -> dispatch(new Upload(t, getTarget(t.getTargetName()))));
+		}
+	}
+
+	private UploadTarget getTarget(String theTargetName) {
+		return myTargets.computeIfAbsent(theTargetName, t -> {
+			try {
+				return new UploadTarget(t, myDefaultConcurrency, myDefaultIoThreads, 0, null);
+			} catch (IOException e) {
+				throw new InternalErrorException(e);
+			}
+		});
+	}
+
+	private int getConcurrencyLimit() {
+		return myTargets.values().stream().mapToInt(UploadTarget::getConcurrencyLimit).sum();
+	}
+
+	/**
+	 * Posts the file to the given URL. The request entity streams the gzipped file
+	 * straight from disk, so the payload is never held on the heap (and a retry
+	 * simply re-reads the file).
+	 * <p>
+	 * Unless the target is a lane, the first attempt is made from the calling
+	 * thread, which blocks while the circuit breaker for the target is open or
+	 * there is no free request slot. A failed attempt never blocks the caller
+	 * though: the file goes onto a delayed retry queue and is retried (at the
+	 * front of the target's lane, or from the retry threads) up to
+	 * <code>RETRY_MAX</code> times, with exponential backoff and full jitter.
+	 * <p>
+	 * Bundles that are too big or too small for the {@link Rebundler} (if enabled)
+	 * are read into memory and go through it instead.
+	 */
+	protected void uploadFile(File theFile, String theUrl, String theTargetName, int theResourceCount, int theIndex) {
+		if (myRebundler != null && myRebundler.isRebundled(theResourceCount)) {
+			byte[] payload;
+			try {
+				payload = readFile(theFile);
+			} catch (IOException e) {
+				throw new InternalErrorException(e);
+			}
+			rebundle(theUrl, theTargetName, theFile.getName(), getJournalKey(theFile), theIndex, payload, null);
+			return;
+		}
+		if (myJournal != null) {
+			Rebundler.warnIfPartlyUploaded(theFile.getName(), myJournal.getPieceProgress(getJournalKey(theFile)));
+		}
+		UploadTarget target = getTarget(theTargetName);
+		dispatch(new Upload(theFile, null, null, theFile.getName(), getJournalKey(theFile), theUrl, target, theResourceCount, theIndex));
+	}
+
+	/**
+	 * Posts a bundle read from a {@link DatasetPack}, the same way as {@link #uploadFile(File, String, String, int, int)}.
+	 * The payload is already in memory, and the entry is released once the upload
+	 * has succeeded or given up.
+	 */
+	protected void uploadPackEntry(DatasetPack.Entry theEntry, String theUrl, String theTargetName, int theIndex) {
+		if (myRebundler != null && myRebundler.isRebundled(theEntry.getResourceCount())) {
+			rebundle(theUrl, theTargetName, theEntry.getName(), theEntry.getName(), theIndex, theEntry.getPayload(), theEntry::release);
+			return;
+		}
+		if (myJournal != null) {
+			Rebundler.warnIfPartlyUploaded(theEntry.getName(), myJournal.getPieceProgress(theEntry.getName()));
+		}
+		UploadTarget target = getTarget(theTargetName);
+		dispatch(new Upload(null, theEntry.getPayload(), theEntry::release, theEntry.getName(), theEntry.getName(), theUrl, target, theEntry.getResourceCount(), theIndex));
+	}
+
+	/**
+	 * Posts a file read by the staged pipeline, the same way as {@link #uploadFile(File, String, String, int, int)}.
+	 * The payload is already in memory, and the file is released once the upload
+	 * has succeeded or given up.
+	 */
+	protected void uploadStagedFile(StagedFile theFile, String theUrl, String theTargetName, int theIndex) {
+		String name = theFile.getFile().getName();
+		String journalKey = getJournalKey(theFile.getFile());
+		if (myRebundler != null && myRebundler.isRebundled(theFile.getResourceCount())) {
+			rebundle(theUrl, theTargetName, name, journalKey, theIndex, theFile.getPayload(), theFile::release);
+			return;
+		}
+		if (myJournal != null) {
+			Rebundler.warnIfPartlyUploaded(name, myJournal.getPieceProgress(journalKey));
+		}
+		UploadTarget target = getTarget(theTargetName);
+		dispatch(new Upload(null, theFile.getPayload(), theFile::release, name, journalKey, theUrl, target, theFile.getResourceCount(), theIndex));
+	}
+
+	private void rebundle(String theUrl, String theTargetName, String theName, String theJournalKey, int theIndex, byte[] thePayload, Runnable theRelease) {
+		if (!myRebundlePermits.tryAcquire()) {
+			// Bundles waiting to be merged hold permits too, so send them rather than wait on them
+			myRebundler.flush();
+			myRebundlePermits.acquireUninterruptibly();
+		}
+		Runnable release = () -> {
+			myRebundlePermits.release();
+			if (theRelease != null) {
+				theRelease.run();
+			}
+		};
+
+		try {
+			UploadJournal.PieceProgress progress = myJournal != null ? myJournal.getPieceProgress(theJournalKey) : null;
+			myRebundler.add(theUrl, theTargetName, theName, theJournalKey, theIndex, thePayload, release, progress);
+		} catch (Exception e) {
+			ourLog.error("Failed to re-chunk File[{}]", theName, e);
+			myFailureCount.incrementAndGet();
+			recordFailed(theJournalKey);
+			release.run();
+		}
+	}
+
+	private void dispatch(Upload theUpload) {
+		if (theUpload.myTarget.isLane()) {
+			awaitLaneSpace();
+		}
+		myPendingUploads.incrementAndGet();
+		theUpload.myTarget.dispatch(() -> attemptOrGiveUp(theUpload));
+	}
+
+	/**
+	 * Retries and the later pieces of a transaction skip the lane queue, and never
+	 * wait for it
+	 */
+	private void redispatch(Upload theUpload) {
+		theUpload.myTarget.dispatchFirst(() -> attemptOrGiveUp(theUpload));
+	}
+
+	private boolean isEveryLaneFull() {
+		return myTargets.values().stream().allMatch(UploadTarget::isLaneFull);
+	}
+
+	private void awaitLaneSpace() {
+		if (!isEveryLaneFull()) {
+			return;
+		}
+		myLaneLock.lock();
+		myLaneWaiters.incrementAndGet();
+		try {
+			while (isEveryLaneFull()) {
+				myLaneDrained.awaitUninterruptibly();
+			}
+		} finally {
+			myLaneWaiters.decrementAndGet();
+			myLaneLock.unlock();
+		}
+	}
+
+	private void laneDrained() {
+		if (myLaneWaiters.get() > 0) {
+			myLaneLock.lock();
+			try {
+				myLaneDrained.signalAll();
+			} finally {
+				myLaneLock.unlock();
+			}
+		}
+	}
+
+	private void attemptOrGiveUp(Upload theUpload) {
+		try {
+			attempt(theUpload);
+		} catch (Exception e) {
+			ourLog.error("Failed to upload File[{}]", theUpload.myName, e);
+			giveUp(theUpload);
+		}
+	}
+
+	private void attempt(Upload theUpload) throws IOException {
+		UploadTarget target = theUpload.myTarget;
+		// Built before taking a slot, since a re-chunked piece may have to be encoded first
+		HttpPost request = theUpload.createRequest();
+		try {
+			theUpload.myPermit = target.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			ourLog.warn("Interrupted before uploading File[{}]", theUpload.myName);
+			giveUp(theUpload);
+			return;
+		}
+
+		theUpload.myAttemptStart = System.nanoTime();
+		if (target.getAsyncEngine() != null) {
+			try {
+				target.getAsyncEngine().send(theUpload.createAsyncRequest(request), theUpload);
+			} catch (Exception e) {
+				theUpload.failed(e);
+			}
+			return;
+		}
+
+		int statusCode;
+		String respContent = null;
+		try (CloseableHttpResponse resp = target.getClient().execute(request)) {
+			statusCode = resp.getStatusLine().getStatusCode();
+			if (statusCode != 200 || theUpload.hasMorePieces()) {
+				respContent = IOUtils.toString(resp.getEntity().getContent(), StandardCharsets.UTF_8);
+			}
+		} catch (Exception e) {
+			target.release();
+			attemptFailed(theUpload, e);
+			return;
+		}
+		target.release();
+		attemptCompleted(theUpload, statusCode, respContent);
+	}
+
+	private void attemptCompleted(Upload theUpload, int theStatusCode, String theResponseContent) {
+		theUpload.myTarget.recordResponse(theUpload.myPermit, theStatusCode, System.nanoTime() - theUpload.myAttemptStart, theUpload.getAttemptResourceCount());
+		if (theStatusCode == 200 && theUpload.hasMorePieces()) {
+			try {
+				int piece = theUpload.myTransaction.getPieceIndex();
+				Map<String, String> resolvedReferences = theUpload.myTransaction.pieceCompleted(theResponseContent);
+				if (myJournal != null) {
+					// Splits always have a single source
+					myJournal.recordPieceCompleted(theUpload.myJournalKeys.get(0), theUpload.myTransaction.getPieceCount(), piece, resolvedReferences);
+				}
+			} catch (Exception e) {
+				ourLog.error("Failed to read the transaction response for File[{}]", theUpload.myName, e);
+				giveUp(theUpload);
+				return;
+			}
+			// The next piece is sent like a retry without a delay, so an IO thread never waits for a slot
+			myRetryExecutor.execute(() -> redispatch(theUpload));
+			return;
+		}
+		if (theStatusCode == 200) {
+			try {
+				uploadSucceeded(theUpload);
+			} finally {
+				uploadDone(theUpload);
+			}
+			return;
+		}
+
+		ourLog.warn("Failure in File[{}] HTTP {}: {}", theUpload.myName, theStatusCode, theResponseContent);
+		retryOrGiveUp(theUpload);
+	}
+
+	private void attemptFailed(Upload theUpload, Exception theException) {
+		ourLog.warn("Failure in File[{}]: {} - Cause {}", theUpload.myName, theException, theException.getCause() != null ? theException.getCause().toString() : null);
+		theUpload.myTarget.recordIoFailure(theUpload.myPermit);
+		retryOrGiveUp(theUpload);
+	}
+
+	private void retryOrGiveUp(Upload theUpload) {
+		theUpload.myErrors++;
+		if (theUpload.myErrors > myMaxRetries) {
+			giveUp(theUpload);
+			return;
+		}
+
+		long delay = getBackoffMillis(theUpload.myErrors);
+		myRetryCount.incrementAndGet();
+		theUpload.myTarget.recordRetry();
+		myRetryQueueDepth.incrementAndGet();
+		myBackoffMillis.addAndGet(delay);
+		myRetryExecutor.schedule(() -> {
+			myRetryQueueDepth.decrementAndGet();
+			redispatch(theUpload);
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Exponential backoff with full jitter: a random delay between zero and
+	 * <code>RETRY_BACKOFF_MILLIS x 2^(retry - 1)</code>, capped at
+	 * <code>RETRY_BACKOFF_MAX_MILLIS</code>
+	 */
+	private long getBackoffMillis(int theRetry) {
+		long ceiling = Math.min(myBackoffMaxMillis, (long) myBackoffBaseMillis << Math.min(theRetry - 1, 30));
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	private void giveUp(Upload theUpload) {
+		try {
+			uploadFailed(theUpload);
+		} finally {
+			uploadDone(theUpload);
+		}
+	}
+
+	private void uploadDone(Upload theUpload) {
+		if (theUpload.myRelease != null) {
+			theUpload.myRelease.run();
+		}
+		if (theUpload.myTransaction != null) {
+			theUpload.myTransaction.getSources().forEach(Rebundler.Source::release);
+		}
+		if (myPendingUploads.decrementAndGet() == 0) {
+			myPendingLock.lock();
+			try {
+				myPendingDone.signalAll();
+			} finally {
+				myPendingLock.unlock();
+			}
+		}
+	}
+
+	private void awaitPendingUploads() throws InterruptedException {
+		myPendingLock.lock();
+		try {
+			while (myPendingUploads.get() > 0) {
+				myPendingDone.await(1, TimeUnit.SECONDS);
+			}
+		} finally {
+			myPendingLock.unlock();
+		}
+	}
+
+	private static void addUploadHeaders(HttpRequest theRequest) {
+		theRequest.addHeader(HEADER_CONTENT_ENCODING, ENCODING_GZIP);
+		theRequest.addHeader(HEADER_CONTENT_TYPE, CT_FHIR_JSON_NEW);
+		theRequest.addHeader(HEADER_PREFER, HEADER_PREFER_RETURN + "=" + HEADER_PREFER_RETURN_MINIMAL);
+	}
+
+	private void uploadFailed(Upload theUpload) {
+		myFailureCount.addAndGet(theUpload.myJournalKeys.size());
+		theUpload.myTarget.recordFailed();
+		theUpload.myJournalKeys.forEach(this::recordFailed);
+	}
+
+	private void uploadSucceeded(Upload theUpload) {
+		theUpload.myJournalKeys.forEach(this::recordCompleted);
+		theUpload.myTarget.recordUploaded(theUpload.myJournalKeys.size(), theUpload.myResourceCount);
+
+		long filesUploaded = myFilesUploadedCount.addAndGet(theUpload.myJournalKeys.size());
+		long resourcesUploaded = myResourcesUploadedCount.addAndGet(theUpload.myResourceCount);
+		int resourcePerSecondOverall = (int) mySw.getThroughput(resourcesUploaded, TimeUnit.SECONDS);
+		int filesPerSecondOverall = (int) mySw.getThroughput(filesUploaded, TimeUnit.SECONDS);
+		int resourcePerSecondFile = (int) theUpload.myFileSw.getThroughput(theUpload.myResourceCount, TimeUnit.SECONDS);
+
+		myResourcesUploadedMeter.mark(theUpload.myResourceCount);
+		int resourcesPerSecondSliding = (int) myResourcesUploadedMeter.getOneMinuteRate();
+
+		String estRemaining = mySw.getEstimatedTimeRemaining(filesUploaded, myTotalFiles);
+		int retryCount = myRetryCount.get();
+		int failureCount = myFailureCount.get();
+		ourLog.info("Uploaded file {}/{} to {} in {} ({} res/sec), {} resources - {} files/sec(overall) - {} res/sec(sliding) - {} res/sec(overall) - Retry[{}] Fail[{}] Limit[{}] EstRemaining {}: {}", theUpload.myIndex, myTotalFiles, theUpload.myTarget.getName(), theUpload.myFileSw, resourcePerSecondFile, resourcesUploaded, filesPerSecondOverall, resourcesPerSecondSliding, resourcePerSecondOverall, retryCount, failureCount, theUpload.myTarget.getConcurrencyLimit(), estRemaining, theUpload.myName);
+	}
+
+	@Override
+	protected void starting() throws Exception {
+		super.starting();
+
+		myResourcesUploadedMeter = Uploader.newMeter();
+
+		myCsvWriter = new FileWriter("upload-synthea.csv", true);
+		myCsvWriter.append("\n\n# Written: " + InstantType.now().asStringValue());
+		myCsvWriter.append("\n# MillisSinceStart, TimeSinceStart, FilesPerSecond, ResPerSecondOverall, ResPerSecondMovingAvg, Retries, Failures, ConcurrencyLimit, RetryQueueDepth, BackoffMillis, OpenBreakers\n");
+		myCsvWriter.flush();
+
+		myTargetCsvWriter = new FileWriter("upload-targets.csv", true);
+		myTargetCsvWriter.append("\n\n# Written: " + InstantType.now().asStringValue());
+		myTargetCsvWriter.append("\n# MillisSinceStart, Target, Files, Resources, ResPerSecondMovingAvg, LatencyMeanMillis, Latency95thMillis, InFlight, Queued, ConcurrencyLimit, Retries, Failures, BreakerOpen\n");
+		myTargetCsvWriter.flush();
+
+		myLogTimer = new Timer();
+		long delay = DateUtils.MILLIS_PER_MINUTE;
+		myLogTimer.scheduleAtFixedRate(new LogTask(), 0, delay);
+	}
+
+	@Override
+	protected void finishing() throws Exception {
+		if (myRebundler != null) {
+			myRebundler.close();
+		}
+		ourLog.info("Waiting for {} in-flight uploads and {} queued retries to complete", myPendingUploads.get() - myRetryQueueDepth.get(), myRetryQueueDepth.get());
+		awaitPendingUploads();
+		myRetryExecutor.shutdown();
+		myLogTimer.cancel();
+		new LogTask().run();
+		for (UploadTarget next : myTargets.values()) {
+			next.close();
+		}
+		myCsvWriter.close();
+		myTargetCsvWriter.close();
+	}
+
+	/**
+	 * One file (or pack entry, or re-chunked transaction) being uploaded, across all of its attempts. In async mode this is
+	 * also the completion callback for the current attempt. Callbacks run on an
+	 * IO reactor thread, so they release the request slot straight away and never
+	 * block (a retry is only scheduled, not sent).
+	 */
+	private class Upload implements FutureCallback<HttpResponse> {
+		private final File myFile;
+		private final byte[] myPayload;
+		private final Runnable myRelease;
+		private final Rebundler.Transaction myTransaction;
+		private final String myName;
+		private final List<String> myJournalKeys;
+		private final String myUrl;
+		private final UploadTarget myTarget;
+		private final int myResourceCount;
+		private final int myIndex;
+		private final StopWatch myFileSw = new StopWatch();
+		private int myErrors;
+		private long myAttemptStart;
+		private CircuitBreaker.Permit myPermit;
+
+		/**
+		 * @param thePayload Used instead of the file if not <code>null</code>
+		 * @param theRelease Called once the upload has succeeded or given up, may be <code>null</code>
+		 */
+		private Upload(File theFile, byte[] thePayload, Runnable theRelease, String theName, String theJournalKey, String theUrl, UploadTarget theTarget, int theResourceCount, int theIndex) {
+			myFile = theFile;
+			myPayload = thePayload;
+			myRelease = theRelease;
+			myTransaction = null;
+			myName = theName;
+			myJournalKeys = Collections.singletonList(theJournalKey);
+			myUrl = theUrl;
+			myTarget = theTarget;
+			myResourceCount = theResourceCount;
+			myIndex = theIndex;
+		}
+
+		private Upload(Rebundler.Transaction theTransaction, UploadTarget theTarget) {
+			List<Rebundler.Source> sources = theTransaction.getSources();
+			myFile = null;
+			myPayload = null;
+			myRelease = null;
+			myTransaction = theTransaction;
+			myName = sources.size() == 1 ? sources.get(0).getName() : sources.get(0).getName() + " (+" + (sources.size() - 1) + " merged)";
+			myJournalKeys = sources.stream().map(Rebundler.Source::getJournalKey).collect(Collectors.toList());
+			myUrl = theTransaction.getUrl();
+			myTarget = theTarget;
+			myResourceCount = theTransaction.getResourceCount();
+			myIndex = sources.get(0).getIndex();
+		}
+
+		private boolean hasMorePieces() {
+			return myTransaction != null && myTransaction.hasMorePieces();
+		}
+
+		private int getAttemptResourceCount() {
+			return myTransaction != null ? myTransaction.getPieceResourceCount() : myResourceCount;
+		}
+
+		private HttpPost createRequest() throws IOException {
+			HttpPost retVal = new HttpPost(myUrl);
+			if (myFile != null) {
+				retVal.setEntity(new FileEntity(myFile));
+			} else if (myPayload != null) {
+				retVal.setEntity(new NByteArrayEntity(myPayload));
+			} else {
+				retVal.setEntity(new NByteArrayEntity(myTransaction.getPayload()));
+			}
+			addUploadHeaders(retVal);
+			return retVal;
+		}
+
+		private HttpAsyncRequestProducer createAsyncRequest(HttpPost theRequest) throws FileNotFoundException {
+			if (myFile != null) {
+				return new GzipFilePost(URI.create(myUrl), myFile);
+			}
+			return HttpAsyncMethods.create(theRequest);
+		}
+
+		@Override
+		public void completed(HttpResponse theResponse) {
+			int statusCode = theResponse.getStatusLine().getStatusCode();
+			String respContent = null;
+			try {
+				if ((statusCode != 200 || hasMorePieces()) && theResponse.getEntity() != null) {
+					respContent = EntityUtils.toString(theResponse.getEntity(), StandardCharsets.UTF_8);
+				}
+			} catch (Exception e) {
+				respContent = e.toString();
+			}
+			myTarget.release();
+			attemptCompleted(this, statusCode, respContent);
+		}
+
+		@Override
+		public void failed(Exception theException) {
+			myTarget.release();
+			attemptFailed(this, theException);
+		}
+
+		@Override
+		public void cancelled() {
+			failed(new CancellationException("Upload cancelled"));
+		}
+	}
+
+	/**
+	 * Sends the gzipped file with the same headers as the blocking upload. The
+	 * body is copied from the file channel to the socket without going through
+	 * the heap.
+	 */
+	private static class GzipFilePost extends ZeroCopyPost {
+		private GzipFilePost(URI theUri, File theFile) throws FileNotFoundException {
+			super(theUri, theFile, ContentType.create(CT_FHIR_JSON_NEW));
+		}
+
+		@Override
+		protected HttpEntityEnclosingRequest createRequest(URI theRequestUri, HttpEntity theEntity) {
+			HttpEntityEnclosingRequest retVal = super.createRequest(theRequestUri, theEntity);
+			addUploadHeaders(retVal);
+			return retVal;
+		}
+	}
+
+	private class LogTask extends TimerTask {
+		@Override
+		public void run() {
+			long filesUploaded = myFilesUploadedCount.get();
+			long resourcesUploaded = myResourcesUploadedCount.get();
+			int resourcePerSecondOverall = (int) mySw.getThroughput(resourcesUploaded, TimeUnit.SECONDS);
+			int filesPerSecondOverall = (int) mySw.getThroughput(filesUploaded, TimeUnit.SECONDS);
+
+			int resourcesPerSecondSliding = (int) myResourcesUploadedMeter.getOneMinuteRate();
+
+			int retryCount = myRetryCount.get();
+			int failureCount = myFailureCount.get();
+			long openBreakers = myTargets.values().stream().filter(t -> !t.isBreakerClosed()).count();
+
+			try {
+				long millis = mySw.getMillis();
+				millis = millis - (millis % 1000);
+				myCsvWriter.append(
+					millis + "," +
+						StopWatch.formatMillis(millis) + "," +
+						filesPerSecondOverall + "," +
+						resourcePerSecondOverall + "," +
+						resourcesPerSecondSliding + "," +
+						retryCount + "," +
+						failureCount + "," +
+						getConcurrencyLimit() + "," +
+						myRetryQueueDepth.get() + "," +
+						myBackoffMillis.get() + "," +
+						openBreakers +
+						"\n"
+				);
+				myCsvWriter.flush();
+
+				for (UploadTarget next : new TreeMap<>(myTargets).values()) {
+					Snapshot latency = next.getLatencyHistogram().getSnapshot();
+					ourLog.info("Target {}: {} files - {} res/sec(sliding) - latency {}ms(mean) {}ms(95th) - InFlight[{}] Queued[{}] Limit[{}] Retry[{}] Fail[{}] Breaker[{}]", next.getName(), next.getFilesUploadedCount(), next.getResourcesPerSecondSliding(), (int) latency.getMean(), (int) latency.get95thPercentile(), next.getInFlightCount(), next.getQueuedCount(), next.getConcurrencyLimit(), next.getRetryCount(), next.getFailureCount(), next.isBreakerClosed() ? "closed" : "open");
+					myTargetCsvWriter.append(
+						millis + "," +
+							next.getName() + "," +
+							next.getFilesUploadedCount() + "," +
+							next.getResourcesUploadedCount() + "," +
+							next.getResourcesPerSecondSliding() + "," +
+							(int) latency.getMean() + "," +
+							(int) latency.get95thPercentile() + "," +
+							next.getInFlightCount() + "," +
+							next.getQueuedCount() + "," +
+							next.getConcurrencyLimit() + "," +
+							next.getRetryCount() + "," +
+							next.getFailureCount() + "," +
+							!next.isBreakerClosed() +
+							"\n"
+					);
+				}
+				myTargetCsvWriter.flush();
+			} catch (IOException e) {
+				ourLog.error("Failed to write CSV row", e);
+				System.exit(0);
+			}
+		}
+	}
+}
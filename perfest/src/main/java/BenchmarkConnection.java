@@ -0,0 +1,90 @@
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One end of the socket between a {@link BenchmarkCoordinator} and a
+ * {@link BenchmarkWorker}. Messages are JSON objects, one per line, with a
+ * <code>type</code> property:
+ * <ul>
+ *    <li><code>hello</code> - worker to coordinator when it connects</li>
+ *    <li><code>assign</code> - coordinator to worker: the worker's arguments, settings and slice of the data</li>
+ *    <li><code>start</code> - coordinator to worker once every worker is ready</li>
+ *    <li><code>report</code> - worker to coordinator every second: running totals and interval histograms</li>
+ * </ul>
+ */
+public class BenchmarkConnection implements Closeable {
+
+	public static final String TYPE_HELLO = "hello";
+	public static final String TYPE_ASSIGN = "assign";
+	public static final String TYPE_START = "start";
+	public static final String TYPE_REPORT = "report";
+	private static final ObjectMapper ourObjectMapper = new ObjectMapper();
+
+	private final Socket mySocket;
+	private final BufferedReader myReader;
+	private final Writer myWriter;
+
+	public BenchmarkConnection(Socket theSocket) throws IOException {
+		mySocket = theSocket;
+		mySocket.setTcpNoDelay(true);
+		myReader = new BufferedReader(new InputStreamReader(theSocket.getInputStream(), StandardCharsets.UTF_8));
+		myWriter = new BufferedWriter(new OutputStreamWriter(theSocket.getOutputStream(), StandardCharsets.UTF_8));
+	}
+
+	public String getRemoteAddress() {
+		return mySocket.getRemoteSocketAddress().toString();
+	}
+
+	public synchronized void send(ObjectNode theMessage) throws IOException {
+		myWriter.write(ourObjectMapper.writeValueAsString(theMessage));
+		myWriter.write('\n');
+		myWriter.flush();
+	}
+
+	/**
+	 * @return The next message, or <code>null</code> if the other end has closed the connection
+	 */
+	public ObjectNode receive() throws IOException {
+		String line = myReader.readLine();
+		if (line == null) {
+			return null;
+		}
+		return (ObjectNode) ourObjectMapper.readTree(line);
+	}
+
+	/**
+	 * Receives the next message and checks its type
+	 */
+	public ObjectNode receive(String theExpectedType) throws IOException {
+		ObjectNode retVal = receive();
+		if (retVal == null) {
+			throw new IOException("Connection to " + getRemoteAddress() + " closed while waiting for a " + theExpectedType + " message");
+		}
+		String type = retVal.path("type").asText();
+		if (!theExpectedType.equals(type)) {
+			throw new IOException("Expected a " + theExpectedType + " message from " + getRemoteAddress() + " but got " + type);
+		}
+		return retVal;
+	}
+
+	public static ObjectNode newMessage(String theType) {
+		ObjectNode retVal = ourObjectMapper.createObjectNode();
+		retVal.put("type", theType);
+		return retVal;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mySocket.close();
+	}
+}
@@ -0,0 +1,217 @@
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs {@link Benchmarker} across several {@link BenchmarkWorker} processes, for
+ * when one JVM runs out of CPU or sockets before the server does.
+ * <p>
+ * The coordinator loads the patient and encounter IDs, starts
+ * <code>BENCHMARK_LOCAL_WORKERS</code> (default: all of them) worker processes on
+ * this machine, and waits on <code>BENCHMARK_COORDINATOR_PORT</code> (default 8890)
+ * for the rest to connect from other machines. Each worker gets an equal slice of
+ * the IDs, the thread count and the arrival rates, plus the coordinator's load
+ * settings. The coordinator sends no requests itself; it merges the workers'
+ * reports into <code>benchmark.csv</code> and the latency log as they arrive.
+ */
+public class BenchmarkCoordinator {
+
+	/**
+	 * Settings that are copied to every worker as they are
+	 */
+	static final List<String> FORWARDED_PROPERTIES = List.of(
+		"LOAD_MODEL",
+		"OPERATION_WEIGHTS",
+		"ARRIVAL_LATE_MILLIS",
+		"LATENCY_EXPECTED_INTERVAL_MILLIS",
+		"THREAD_MODE",
+		"KEY_DISTRIBUTION",
+		"KEY_DISTRIBUTION_READ",
+		"KEY_DISTRIBUTION_SEARCH",
+		"KEY_DISTRIBUTION_UPDATE",
+		"KEY_DISTRIBUTION_CREATE",
+		"KEY_SEED",
+		"KEY_ZIPF_EXPONENT",
+		"KEY_HOT_SET_FRACTION",
+		"KEY_HOT_ACCESS_FRACTION",
+		"KEY_RECENT_WINDOW_FRACTION",
+		"KEY_RECENT_CYCLE_SECONDS"
+	);
+	/**
+	 * Rates that are split between the workers
+	 */
+	static final List<String> DIVIDED_PROPERTIES = List.of(
+		"ARRIVAL_RATE_READ",
+		"ARRIVAL_RATE_SEARCH",
+		"ARRIVAL_RATE_UPDATE",
+		"ARRIVAL_RATE_CREATE"
+	);
+	private static final Logger ourLog = LoggerFactory.getLogger(BenchmarkCoordinator.class);
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+
+	private final Map<Integer, Integer> myWorkerThreadCounts = new ConcurrentHashMap<>();
+	private final List<Process> myLocalWorkers = new ArrayList<>();
+	private Benchmarker myBenchmarker;
+
+	private void run(String[] theArgs) throws Exception {
+		String syntaxMsg = "Syntax: " + BenchmarkCoordinator.class.getName() + " [gateway base URL] [read node base URL] [megascale DB count] [thread count] [compression true/false] [ramp up mins] [worker count]";
+		Validate.isTrue(theArgs.length == 7, syntaxMsg);
+		String[] benchmarkerArgs = Arrays.copyOf(theArgs, 6);
+		int threadCount = Integer.parseInt(theArgs[3]);
+		int workerCount = Integer.parseInt(theArgs[6]);
+		Validate.isTrue(workerCount > 0, "Worker count must be positive");
+		Validate.isTrue(threadCount >= workerCount, "Thread count (%s) must be at least the worker count (%s)", threadCount, workerCount);
+		int port = PerfTestProperties.getInt("BENCHMARK_COORDINATOR_PORT", 8890);
+		int localWorkerCount = PerfTestProperties.getInt("BENCHMARK_LOCAL_WORKERS", workerCount);
+		Validate.isTrue(localWorkerCount <= workerCount, "BENCHMARK_LOCAL_WORKERS can't be more than the worker count");
+
+		myBenchmarker = new Benchmarker(benchmarkerArgs);
+		myBenchmarker.loadData();
+
+		List<BenchmarkConnection> workers = new ArrayList<>();
+		try (ServerSocket serverSocket = new ServerSocket(port)) {
+			ourLog.info("Coordinator listening on port {} for {} workers", port, workerCount);
+			Runtime.getRuntime().addShutdownHook(new Thread(this::stopLocalWorkers));
+			for (int i = 0; i < localWorkerCount; i++) {
+				startLocalWorker(i, port);
+			}
+
+			while (workers.size() < workerCount) {
+				BenchmarkConnection connection = new BenchmarkConnection(serverSocket.accept());
+				JsonNode hello = connection.receive(BenchmarkConnection.TYPE_HELLO);
+				int index = workers.size();
+				int workerThreadCount = threadCount / workerCount + (index < threadCount % workerCount ? 1 : 0);
+				ourLog.info("Worker {} ({} at {}) connected, assigning {} threads", index, hello.path("name").asText(), connection.getRemoteAddress(), workerThreadCount);
+				connection.send(createAssignment(index, workerCount, benchmarkerArgs, workerThreadCount));
+				workers.add(connection);
+			}
+		}
+
+		ourLog.info("All {} workers are ready, starting the benchmark", workerCount);
+		myBenchmarker.startReporting();
+		for (int i = 0; i < workers.size(); i++) {
+			BenchmarkConnection next = workers.get(i);
+			next.send(BenchmarkConnection.newMessage(BenchmarkConnection.TYPE_START));
+			int index = i;
+			Thread reportReader = new Thread(() -> readReports(index, next), "worker-" + i + "-reports");
+			reportReader.start();
+		}
+	}
+
+	private ObjectNode createAssignment(int theIndex, int theWorkerCount, String[] theBenchmarkerArgs, int theThreadCount) {
+		// A worker without threads would never send any load, however long it ramps up
+		Validate.isTrue(theThreadCount > 0, "Worker %s would get no threads", theIndex);
+		ObjectNode retVal = BenchmarkConnection.newMessage(BenchmarkConnection.TYPE_ASSIGN);
+		retVal.put("index", theIndex);
+		retVal.put("count", theWorkerCount);
+
+		ArrayNode args = retVal.putArray("args");
+		for (int i = 0; i < theBenchmarkerArgs.length; i++) {
+			args.add(i == 3 ? Integer.toString(theThreadCount) : theBenchmarkerArgs[i]);
+		}
+
+		ObjectNode properties = retVal.putObject("properties");
+		for (String next : FORWARDED_PROPERTIES) {
+			String value = PerfTestProperties.getString(next, null);
+			if (value != null) {
+				properties.put(next, value);
+			}
+		}
+		properties.put("ARRIVAL_RATE", Double.toString(PerfTestProperties.getDouble("ARRIVAL_RATE", 40.0) / theWorkerCount));
+		for (String next : DIVIDED_PROPERTIES) {
+			String value = PerfTestProperties.getString(next, null);
+			if (value != null) {
+				properties.put(next, Double.toString(Double.parseDouble(value) / theWorkerCount));
+			}
+		}
+
+		ArrayNode patientIds = retVal.putArray("patientIds");
+		List<IIdType> allPatientIds = myBenchmarker.getPatientIds();
+		for (int i = theIndex; i < allPatientIds.size(); i += theWorkerCount) {
+			patientIds.add(allPatientIds.get(i).getValue());
+		}
+		ArrayNode encounters = retVal.putArray("encounters");
+		List<Encounter> allEncounters = myBenchmarker.getEncounters();
+		for (int i = theIndex; i < allEncounters.size(); i += theWorkerCount) {
+			encounters.add(ourCtx.newJsonParser().encodeResourceToString(allEncounters.get(i)));
+		}
+		return retVal;
+	}
+
+	private void readReports(int theIndex, BenchmarkConnection theConnection) {
+		Map<String, Long> previousTotals = new HashMap<>();
+		try {
+			ObjectNode report;
+			while ((report = theConnection.receive()) != null) {
+				Map<String, Long> totals = new HashMap<>();
+				Map<String, Long> deltas = new HashMap<>();
+				for (Iterator<Map.Entry<String, JsonNode>> iter = report.path("totals").fields(); iter.hasNext(); ) {
+					Map.Entry<String, JsonNode> next = iter.next();
+					long total = next.getValue().asLong();
+					totals.put(next.getKey(), total);
+					deltas.put(next.getKey(), total - previousTotals.getOrDefault(next.getKey(), 0L));
+				}
+				previousTotals = totals;
+				myBenchmarker.addRemoteTotals(deltas);
+
+				JsonNode histograms = report.path("histograms");
+				for (LatencyRecorder next : myBenchmarker.getLatencyRecorders()) {
+					JsonNode response = histograms.get(next.getName());
+					JsonNode service = histograms.get(next.getName() + "-service");
+					if (response != null && service != null) {
+						next.addRemoteInterval(LatencyRecorder.decode(response.asText()), LatencyRecorder.decode(service.asText()));
+					}
+				}
+
+				myWorkerThreadCounts.put(theIndex, report.path("threads").asInt());
+				myBenchmarker.setActiveThreadCount(myWorkerThreadCounts.values().stream().mapToInt(t -> t).sum());
+			}
+			ourLog.warn("Worker {} at {} disconnected", theIndex, theConnection.getRemoteAddress());
+		} catch (Exception e) {
+			ourLog.error("Failed to read reports from worker {} at {}", theIndex, theConnection.getRemoteAddress(), e);
+		} finally {
+			myWorkerThreadCounts.remove(theIndex);
+			myBenchmarker.setActiveThreadCount(myWorkerThreadCounts.values().stream().mapToInt(t -> t).sum());
+		}
+	}
+
+	/**
+	 * Local workers run with the same JVM and classpath as the coordinator, and log
+	 * to <code>benchmark-worker-[index].log</code>
+	 */
+	private void startLocalWorker(int theIndex, int thePort) throws IOException {
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), BenchmarkWorker.class.getName(), "localhost", Integer.toString(thePort));
+		File logFile = new File("benchmark-worker-" + theIndex + ".log");
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(logFile);
+		myLocalWorkers.add(builder.start());
+		ourLog.info("Started local worker process, logging to {}", logFile.getAbsolutePath());
+	}
+
+	private void stopLocalWorkers() {
+		myLocalWorkers.forEach(Process::destroy);
+	}
+
+	public static void main(String[] theArgs) throws Exception {
+		new BenchmarkCoordinator().run(theArgs);
+	}
+}
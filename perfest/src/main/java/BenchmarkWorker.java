@@ -0,0 +1,121 @@
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.time.DateUtils;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.IdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * A load generator for a {@link BenchmarkCoordinator}. It connects to the
+ * coordinator, runs a {@link Benchmarker} with the slice of the data and load it
+ * is given, and reports back every second. The worker exits when the coordinator
+ * goes away.
+ */
+public class BenchmarkWorker {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(BenchmarkWorker.class);
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+
+	private BenchmarkConnection myConnection;
+	private Benchmarker myBenchmarker;
+
+	private void run(String[] theArgs) throws Exception {
+		String syntaxMsg = "Syntax: " + BenchmarkWorker.class.getName() + " [coordinator host] [coordinator port]";
+		Validate.isTrue(theArgs.length == 2, syntaxMsg);
+		myConnection = connect(theArgs[0], Integer.parseInt(theArgs[1]));
+
+		ObjectNode hello = BenchmarkConnection.newMessage(BenchmarkConnection.TYPE_HELLO);
+		hello.put("name", ManagementFactory.getRuntimeMXBean().getName());
+		myConnection.send(hello);
+
+		ObjectNode assignment = myConnection.receive(BenchmarkConnection.TYPE_ASSIGN);
+		ourLog.info("Assigned worker {} of {}", assignment.path("index").asInt(), assignment.path("count").asInt());
+		for (Iterator<Map.Entry<String, JsonNode>> iter = assignment.path("properties").fields(); iter.hasNext(); ) {
+			Map.Entry<String, JsonNode> next = iter.next();
+			System.setProperty(next.getKey(), next.getValue().asText());
+		}
+
+		List<String> args = new ArrayList<>();
+		assignment.path("args").forEach(t -> args.add(t.asText()));
+		List<IIdType> patientIds = new ArrayList<>();
+		assignment.path("patientIds").forEach(t -> patientIds.add(new IdType(t.asText())));
+		List<Encounter> encounters = new ArrayList<>();
+		assignment.path("encounters").forEach(t -> encounters.add(ourCtx.newJsonParser().parseResource(Encounter.class, t.asText())));
+
+		myBenchmarker = new Benchmarker(args.toArray(new String[0]));
+		myBenchmarker.addData(patientIds, encounters);
+		ourLog.info("Worker has {} patient IDs and {} encounters", patientIds.size(), encounters.size());
+
+		myConnection.receive(BenchmarkConnection.TYPE_START);
+		myBenchmarker.startLoad();
+		Timer reportTimer = new Timer(true);
+		reportTimer.scheduleAtFixedRate(new ReportTask(), DateUtils.MILLIS_PER_SECOND, DateUtils.MILLIS_PER_SECOND);
+
+		while (myConnection.receive() != null) {
+			// The coordinator sends nothing else, this just waits for it to go away
+		}
+		ourLog.info("Coordinator disconnected, exiting");
+		System.exit(0);
+	}
+
+	/**
+	 * The coordinator may still be starting up, so this keeps trying for a minute
+	 */
+	private BenchmarkConnection connect(String theHost, int thePort) throws IOException, InterruptedException {
+		long giveUpAt = System.currentTimeMillis() + DateUtils.MILLIS_PER_MINUTE;
+		while (true) {
+			try {
+				BenchmarkConnection retVal = new BenchmarkConnection(new Socket(theHost, thePort));
+				ourLog.info("Connected to coordinator at {}:{}", theHost, thePort);
+				return retVal;
+			} catch (ConnectException e) {
+				if (System.currentTimeMillis() > giveUpAt) {
+					throw e;
+				}
+				Thread.sleep(1000);
+			}
+		}
+	}
+
+	private class ReportTask extends TimerTask {
+		@Override
+		public void run() {
+			ObjectNode report = BenchmarkConnection.newMessage(BenchmarkConnection.TYPE_REPORT);
+			report.put("threads", myBenchmarker.getActiveThreadCount());
+			ObjectNode totals = report.putObject("totals");
+			myBenchmarker.getTotals().forEach(totals::put);
+			ObjectNode histograms = report.putObject("histograms");
+			for (LatencyRecorder next : myBenchmarker.getLatencyRecorders()) {
+				next.sampleInterval();
+				histograms.put(next.getName(), LatencyRecorder.encode(next.getResponseInterval()));
+				histograms.put(next.getName() + "-service", LatencyRecorder.encode(next.getServiceInterval()));
+			}
+
+			try {
+				myConnection.send(report);
+			} catch (IOException e) {
+				ourLog.error("Failed to send report to coordinator, exiting", e);
+				System.exit(1);
+			}
+		}
+	}
+
+	public static void main(String[] theArgs) throws Exception {
+		new BenchmarkWorker().run(theArgs);
+	}
+}
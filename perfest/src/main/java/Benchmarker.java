@@ -1,4 +1,5 @@
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
 import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
@@ -7,10 +8,9 @@ import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.util.ResourceReferenceInfo;
 import ca.uhn.fhir.util.StopWatch;
 import ca.uhn.fhir.util.StringUtil;
-import ca.uhn.fhir.util.ThreadPoolUtil;
-import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
-import com.codahale.metrics.Snapshot;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
 import org.apache.commons.collections4.ListUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.Validate;
@@ -21,7 +21,7 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.Bundle;
@@ -36,23 +36,31 @@ import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.UUID;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static ca.uhn.fhir.rest.api.Constants.HEADER_PREFER;
@@ -74,12 +82,14 @@ public class Benchmarker {
 		Encounter.EncounterStatus.TRIAGED,
 		Encounter.EncounterStatus.UNKNOWN
 	};
+	public static final String LOAD_MODEL_CLOSED = "closed";
+	public static final String LOAD_MODEL_OPEN = "open";
+	private static final int OPERATION_COUNT = 4;
+	private static final int PATIENT_PAGE_SIZE = 500;
+	private static final int ENCOUNTER_PAGE_SIZE = 100;
+	private static final int ENCOUNTER_SEARCH_PATIENT_COUNT = 10;
 	private static final Logger ourLog = LoggerFactory.getLogger(Benchmarker.class);
 	private static final FhirContext ourCtx = FhirContext.forR4Cached();
-	private final Semaphore myReadSemaphore;
-	private final Semaphore mySearchSemaphore;
-	private final Semaphore myUpdateSemaphore;
-	private final Semaphore myCreateSemaphore;
 	private final IGenericClient myGatewayFhirClient;
 	private final List<IIdType> myPatientIds = new ArrayList<>();
 	private final List<IIdType> myEncounterIds = new ArrayList<>();
@@ -103,22 +113,27 @@ public class Benchmarker {
 	private final UpdateTask myUpdateTask;
 	private final String myReadNodeBaseUrl;
 	private final CreateTask myCreateTask;
-	private final FileWriter myCsvWriter;
+	private FileWriter myCsvWriter;
 	private final Meter myRequestBytesMeter;
 	private final Meter myResponseBytesMeter;
-	private final Histogram myReadLatencyHistogram;
-	private final Histogram mySearchLatencyHistogram;
-	private final Histogram myUpdateLatencyHistogram;
-	private final Histogram myCreateLatencyHistogram;
+	private final LatencyRecorder myReadLatency;
+	private final LatencyRecorder mySearchLatency;
+	private final LatencyRecorder myUpdateLatency;
+	private final LatencyRecorder myCreateLatency;
+	private final List<LatencyRecorder> myLatencyRecorders;
+	private final List<OperationScheduler.Operation> myOperations;
+	private HistogramLogWriter myLatencyLogWriter;
 	private final boolean myCompression;
 	private final int myMaxThreadCount;
-	private final int myThreadIncrementPerMinute;
+	private final int myRampUpMins;
 	private final Timer myThreadIncrementer;
 	private final int myMegascaleDbCount;
-	private int myActiveThreadCount;
+	private final int myInitialThreadCount;
+	private final boolean myOpenModel;
+	private final OperationScheduler myScheduler;
+	private volatile int myActiveThreadCount;
 
-	@SuppressWarnings("StringConcatenationInsideStringBufferAppend")
-	private Benchmarker(String[] theArgs) throws IOException {
+	Benchmarker(String[] theArgs) {
 		String syntaxMsg = "Syntax: " + Benchmarker.class.getName() + " [gateway base URL] [read node base URL] [megascale DB count] [thread count] [compression true/false] [ramp up mins]";
 		Validate.isTrue(theArgs.length == 6, syntaxMsg);
 		myGatewayBaseUrl = StringUtil.chompCharacter(theArgs[0], '/');
@@ -126,56 +141,61 @@ public class Benchmarker {
 		myMegascaleDbCount = Integer.parseInt(theArgs[2]);
 		myMaxThreadCount = Integer.parseInt(theArgs[3]);
 		myCompression = Boolean.parseBoolean(theArgs[4]);
+		Validate.isTrue(myMaxThreadCount > 0, "Thread count must be positive");
 
-		int rampUpMins = Integer.parseInt(theArgs[5]);
+		myRampUpMins = Integer.parseInt(theArgs[5]);
+		Validate.isTrue(myRampUpMins >= 0, "Ramp up mins can't be negative");
 		int initialThreadCount;
-		if (rampUpMins > 0) {
-			myThreadIncrementPerMinute = myMaxThreadCount / rampUpMins;
+		if (myRampUpMins > 0) {
 			initialThreadCount = 1;
-			ourLog.info("Benchmarker starting with {} threads, ramping up by {} per minute to a maximum of {}", initialThreadCount, myThreadIncrementPerMinute, myMaxThreadCount);
+			ourLog.info("Benchmarker starting with {} threads, ramping up over {} minutes to a maximum of {}", initialThreadCount, myRampUpMins, myMaxThreadCount);
 		} else {
 			initialThreadCount = myMaxThreadCount;
-			myThreadIncrementPerMinute = 0;
 			ourLog.info("Benchmarker starting with {} thread count", myMaxThreadCount);
 		}
 
+		String loadModel = PerfTestProperties.getString("LOAD_MODEL", LOAD_MODEL_CLOSED);
+		Validate.isTrue(LOAD_MODEL_CLOSED.equals(loadModel) || LOAD_MODEL_OPEN.equals(loadModel), "Unknown LOAD_MODEL: %s", loadModel);
+		myOpenModel = LOAD_MODEL_OPEN.equals(loadModel);
+
 		myGatewayFhirClient = ourCtx.newRestfulGenericClient(myGatewayBaseUrl);
 		myGatewayFhirClient.registerInterceptor(new BasicAuthInterceptor("admin", "password"));
 
-		loadData(myMegascaleDbCount);
-
-		ThreadPoolTaskExecutor readThreadPool = ThreadPoolUtil.newThreadPool(myMaxThreadCount, myMaxThreadCount, "read-", 100);
-		ThreadPoolTaskExecutor searchThreadPool = ThreadPoolUtil.newThreadPool(myMaxThreadCount, myMaxThreadCount, "search-", 100);
-		ThreadPoolTaskExecutor updateThreadPool = ThreadPoolUtil.newThreadPool(myMaxThreadCount, myMaxThreadCount, "update-", 100);
-		ThreadPoolTaskExecutor createThreadPool = ThreadPoolUtil.newThreadPool(myMaxThreadCount, myMaxThreadCount, "create-", 100);
-
-		myReadSemaphore = new Semaphore(0, false);
-		mySearchSemaphore = new Semaphore(0, false);
-		myUpdateSemaphore = new Semaphore(0, false);
-		myCreateSemaphore = new Semaphore(0, false);
-
-		addSemaphores(initialThreadCount);
+		myInitialThreadCount = initialThreadCount;
 
 		myReadThroughputMeter = Uploader.newMeter();
-		myReadLatencyHistogram = Uploader.newHistogram();
+		myReadLatency = new LatencyRecorder("read", !myOpenModel);
 		mySearchThroughputMeter = Uploader.newMeter();
-		mySearchLatencyHistogram = Uploader.newHistogram();
+		mySearchLatency = new LatencyRecorder("search", !myOpenModel);
 		myUpdateThroughputMeter = Uploader.newMeter();
-		myUpdateLatencyHistogram = Uploader.newHistogram();
+		myUpdateLatency = new LatencyRecorder("update", !myOpenModel);
 		myCreateThroughputMeter = Uploader.newMeter();
-		myCreateLatencyHistogram = Uploader.newHistogram();
+		myCreateLatency = new LatencyRecorder("create", !myOpenModel);
+		myLatencyRecorders = List.of(myReadLatency, mySearchLatency, myUpdateLatency, myCreateLatency);
 		myFailureMeter = Uploader.newMeter();
 		myRequestBytesMeter = Uploader.newMeter();
 		myResponseBytesMeter = Uploader.newMeter();
 
 		mySw = new StopWatch();
 
-		myReadTask = new ReadTask(readThreadPool, myReadSemaphore);
-		mySearchTask = new SearchTask(searchThreadPool, mySearchSemaphore);
-		myUpdateTask = new UpdateTask(updateThreadPool, myUpdateSemaphore);
-		myCreateTask = new CreateTask(createThreadPool, myCreateSemaphore);
+		myReadTask = new ReadTask();
+		mySearchTask = new SearchTask();
+		myUpdateTask = new UpdateTask();
+		myCreateTask = new CreateTask();
+		myOperations = List.of(myReadTask, mySearchTask, myUpdateTask, myCreateTask);
+		configureMix(myOperations);
+		long lateThresholdNanos = TimeUnit.MILLISECONDS.toNanos(PerfTestProperties.getInt("ARRIVAL_LATE_MILLIS", 10));
+		myScheduler = new OperationScheduler(myOperations, myMaxThreadCount * OPERATION_COUNT, myOpenModel, lateThresholdNanos);
 		myThreadIncrementer = new Timer();
+	}
 
+	/**
+	 * Starts writing <code>benchmark.csv</code> and the latency log, and logging
+	 * progress every second
+	 */
+	@SuppressWarnings("StringConcatenationInsideStringBufferAppend")
+	void startReporting() throws IOException {
+		mySw.restart();
 		myCsvWriter = new FileWriter("benchmark.csv");
 		myCsvWriter.append("\n\n# Written: " + InstantType.now().asStringValue());
 		myCsvWriter.append("\n# MillisSinceStart, " +
@@ -187,178 +207,175 @@ public class Benchmarker {
 			"TotalFailures, MovingAvgFailuresPerSec, " +
 			"MovingAvgRequestBytesPerSec, MovingAvgResponseBytesPerSec, " +
 			"ThreadCountPerOperation, " +
-			"CachePct" +
+			"CachePct, " +
+			"ReadP50Ms, ReadP90Ms, ReadP99Ms, ReadP999Ms, ReadMaxMs, ReadServiceP99Ms, " +
+			"SearchP50Ms, SearchP90Ms, SearchP99Ms, SearchP999Ms, SearchMaxMs, SearchServiceP99Ms, " +
+			"UpdateP50Ms, UpdateP90Ms, UpdateP99Ms, UpdateP999Ms, UpdateMaxMs, UpdateServiceP99Ms, " +
+			"CreateP50Ms, CreateP90Ms, CreateP99Ms, CreateP999Ms, CreateMaxMs, CreateServiceP99Ms, " +
+			"ReadLate, ReadDropped, SearchLate, SearchDropped, UpdateLate, UpdateDropped, CreateLate, CreateDropped" +
 			"\n");
 
+		File latencyLogFile = new File(PerfTestProperties.getString("LATENCY_LOG_FILE", "benchmark-latency.hlog"));
+		myLatencyLogWriter = new HistogramLogWriter(latencyLogFile);
+		long now = System.currentTimeMillis();
+		myLatencyLogWriter.outputComment("Benchmarker latency log, response time tags are corrected for coordinated omission, -service tags are not");
+		myLatencyLogWriter.outputLogFormatVersion();
+		myLatencyLogWriter.outputStartTime(now);
+		myLatencyLogWriter.setBaseTime(now);
+		myLatencyLogWriter.outputBaseTime(now);
+		myLatencyLogWriter.outputLegend();
+		ourLog.info("Writing interval latency histograms to {}", latencyLogFile.getAbsolutePath());
+		Runtime.getRuntime().addShutdownHook(new Thread(this::logLatencySummary));
+
 		Timer loggerTimer = new Timer();
 		loggerTimer.scheduleAtFixedRate(new ProgressLogger(), 0L, DateUtils.MILLIS_PER_SECOND);
 	}
 
-	private void addSemaphores(int theThreadCount) {
-		myReadSemaphore.release(theThreadCount);
-		mySearchSemaphore.release(theThreadCount);
-		myCreateSemaphore.release(theThreadCount);
-		myUpdateSemaphore.release(theThreadCount);
+	/**
+	 * The thread count is per operation, so the shared worker pool gets one worker
+	 * per operation for each thread. With the default even mix this keeps as many
+	 * requests of each type in flight as when each operation had its own pool.
+	 */
+	private void addThreads(int theThreadCount) {
+		myScheduler.addWorkers(theThreadCount * OPERATION_COUNT);
 		myActiveThreadCount += theThreadCount;
 	}
 
-
-	private void loadData(int theMegascaleDbCount) {
-		int idsPerMegaScaleDb = 1000 / theMegascaleDbCount;
-
-		ourCtx.getRestfulClientFactory().setConnectTimeout(120_000);
-		ourCtx.getRestfulClientFactory().setSocketTimeout(120_000);
-		for (int i = 1; i <= theMegascaleDbCount; i++) {
-			IGenericClient client = ourCtx.newRestfulGenericClient(myReadNodeBaseUrl);
-			client.registerInterceptor(new BasicAuthInterceptor("admin", "password"));
-			client.registerInterceptor(new UrlTenantSelectionInterceptor("MS" + i));
-
-			loadDataPatients(idsPerMegaScaleDb, i, client);
+	/**
+	 * Sets each operation's share of the closed-loop mix from <code>OPERATION_WEIGHTS</code>
+	 * (e.g. <code>read=70,search=20,update=7,create=3</code>, operations left out get
+	 * a weight of 0), and its open model arrival rate. The arrival rate is
+	 * <code>ARRIVAL_RATE_[operation]</code> if set, and otherwise the operation's share
+	 * of <code>ARRIVAL_RATE</code> (default 40 requests/sec).
+	 */
+	private void configureMix(List<OperationScheduler.Operation> theOperations) {
+		String weights = PerfTestProperties.getString("OPERATION_WEIGHTS", null);
+		if (weights != null) {
+			Map<String, Integer> weightMap = new HashMap<>();
+			for (String next : weights.split(",")) {
+				String[] parts = next.trim().split("=");
+				Validate.isTrue(parts.length == 2, "Invalid OPERATION_WEIGHTS entry: %s", next);
+				weightMap.put(parts[0].trim().toLowerCase(), Integer.parseInt(parts[1].trim()));
+			}
+			Set<String> names = theOperations.stream().map(OperationScheduler.Operation::getName).collect(Collectors.toSet());
+			Validate.isTrue(names.containsAll(weightMap.keySet()), "Unknown operation in OPERATION_WEIGHTS: %s (valid names are %s)", weights, names);
+			theOperations.forEach(t -> t.setWeight(weightMap.getOrDefault(t.getName(), 0)));
 		}
 
+		int totalWeight = theOperations.stream().mapToInt(OperationScheduler.Operation::getWeight).sum();
+		Validate.isTrue(totalWeight > 0, "OPERATION_WEIGHTS must give at least one operation a weight above 0");
+		double totalRate = PerfTestProperties.getDouble("ARRIVAL_RATE", 40.0);
+		for (OperationScheduler.Operation next : theOperations) {
+			double defaultRate = totalRate * next.getWeight() / totalWeight;
+			next.setArrivalRate(PerfTestProperties.getDouble("ARRIVAL_RATE_" + next.getName().toUpperCase(), defaultRate));
+			ourLog.info("Operation {} has a weight of {}/{}", next.getName(), next.getWeight(), totalWeight);
+		}
 	}
 
-	private void loadDataPatients(int theIdsToLoad, int theMegascaleDb, IGenericClient theClient) {
-		List<IIdType> gatewayFriendlyPatientIds = new ArrayList<>();
-		List<IIdType> originalPatientIds = new ArrayList<>();
-		ourLog.info("Loading Patient List Page 0 for MegaScale DB {}...", theMegascaleDb);
-		Bundle outcome = theClient
-			.search()
-			.forResource(Patient.class)
-			.count(100)
-			.elementsSubset("id")
-			.returnBundle(Bundle.class)
-			.execute();
-		int pageIndex = 0;
-		while (true) {
-			List<IIdType> ids = outcome
-				.getEntry()
-				.stream()
-				.map(Bundle.BundleEntryComponent::getResource)
-				.filter(Objects::nonNull)
-				.map(Resource::getIdElement)
-				.collect(Collectors.toList());
-			for (var next : ids) {
-				if (gatewayFriendlyPatientIds.size() <= theIdsToLoad) {
-					gatewayFriendlyPatientIds.add(new IdType(myGatewayBaseUrl, next.getResourceType(), "ms" + theMegascaleDb + "-" + next.getIdPart(), null));
-				}
-				if (originalPatientIds.size() < 100) {
-					originalPatientIds.add(next.toUnqualifiedVersionless());
-				}
-			}
-			if (outcome.getLink("next") == null || gatewayFriendlyPatientIds.size() >= theIdsToLoad) {
-				ourLog.info("Done loading Patient list for MegaScale DB {}, have {} IDs...", theMegascaleDb, gatewayFriendlyPatientIds.size());
-				break;
-			}
-
-			ourLog.info("Loading Patient List Page {} for MegaScale DB {}, have {} IDs...", ++pageIndex, theMegascaleDb, gatewayFriendlyPatientIds.size());
-			outcome = myGatewayFhirClient.loadPage().next(outcome).execute();
-
+	private void logLatencySummary() {
+		for (LatencyRecorder next : myLatencyRecorders) {
+			ourLog.info("Latency {}: {} requests - Response[{}] - Service[{}]", next.getName(), next.getResponseTotal().getTotalCount(), LatencyRecorder.describe(next.getResponseTotal()), LatencyRecorder.describe(next.getServiceTotal()));
 		}
-
-		myPatientIds.addAll(gatewayFriendlyPatientIds);
-
-		loadDataEncounters(theIdsToLoad, theMegascaleDb, originalPatientIds, theClient);
 	}
 
-	private void loadDataEncounters(int theIdsPerMegaScaleDb, int theMegaScaleDbIndex, List<IIdType> thePatientIds, IGenericClient theClient) {
-		List<Encounter> encounters = new ArrayList<>();
 
-		List<List<IIdType>> partitions = ListUtils.partition(thePatientIds, 5);
-		for (var nextPartition: partitions) {
-			loadEncounters(theIdsPerMegaScaleDb, theMegaScaleDbIndex, nextPartition, theClient, encounters);
+	/**
+	 * Loads <code>WORKING_SET_SIZE</code> (default 1000) patient IDs and as many
+	 * encounters, split evenly between the MegaScale DBs. The working set is saved
+	 * to <code>WORKING_SET_CACHE</code> (default <code>benchmark-working-set.cache</code>,
+	 * or <code>none</code> to not save it), and later runs with the same read node,
+	 * DB count and size load it from there instead of searching again.
+	 */
+	void loadData() throws Exception {
+		int idsPerMegaScaleDb = PerfTestProperties.getInt("WORKING_SET_SIZE", 1000) / myMegascaleDbCount;
+		Validate.isTrue(idsPerMegaScaleDb > 0, "WORKING_SET_SIZE must be at least the megascale DB count");
+		String cacheFileName = PerfTestProperties.getString("WORKING_SET_CACHE", "benchmark-working-set.cache");
+		File cacheFile = "none".equals(cacheFileName) ? null : new File(cacheFileName);
+		String cacheKey = myReadNodeBaseUrl + " megascaleDbs=" + myMegascaleDbCount + " idsPerDb=" + idsPerMegaScaleDb;
+
+		WorkingSet workingSet = cacheFile != null ? WorkingSet.read(cacheFile, cacheKey) : null;
+		if (workingSet == null) {
+			workingSet = searchWorkingSet(idsPerMegaScaleDb);
+			if (cacheFile != null) {
+				workingSet.write(cacheFile, cacheKey);
+			}
 		}
 
-		for (var next : encounters) {
-			IIdType nextId = next.getIdElement().toUnqualifiedVersionless();
-			myEncounterIds.add(nextId);
-			myEncounters.put(nextId.getValue(), next);
-		}
+		List<IIdType> patientIds = workingSet
+			.getPatientIds()
+			.stream()
+			.map(t -> new IdType(myGatewayBaseUrl, "Patient", t, null))
+			.collect(Collectors.toList());
+		addData(patientIds, workingSet.getEncounters());
 	}
 
-	private void loadEncounters(int theIdsPerMegaScaleDb, int theMegaScaleDbIndex, List<IIdType> thePatientIds, IGenericClient theClient, List<Encounter> encounters) {
-		ourLog.info("Loading Encounter List Page 0 for MegaScale DB {}...", theMegaScaleDbIndex);
-		List<String> ids = thePatientIds.stream()
-			.map(t -> t.toUnqualifiedVersionless().getValue())
-			.collect(Collectors.toList());
-		Bundle outcome = null;
+	/**
+	 * Searches every MegaScale DB at once for its patients, and then for the
+	 * encounters of those patients, <code>WORKING_SET_LOAD_THREADS</code>
+	 * (default 8) searches at a time
+	 */
+	private WorkingSet searchWorkingSet(int theIdsPerMegaScaleDb) throws Exception {
+		ourCtx.getRestfulClientFactory().setConnectTimeout(120_000);
+		ourCtx.getRestfulClientFactory().setSocketTimeout(120_000);
+		int threadCount = PerfTestProperties.getInt("WORKING_SET_LOAD_THREADS", 8);
+		StopWatch sw = new StopWatch();
 
-		int count = 0;
-		int max = 5;
-		while (true) {
-			try {
-				outcome = theClient
-					.search()
-					.forResource(Encounter.class)
-					.where(Encounter.PATIENT.hasAnyOfIds(ids))
-					.count(5)
-					.returnBundle(Bundle.class)
-					.execute();
-				break;
-			} catch (InternalErrorException e) {
-				count++;
-				if (count > max) {
-					throw e;
-				}
-				ourLog.info("Failure loading page URL (retry {} / {}). IDs: {}", count, max, ids);
-			}
+		List<WorkingSetPartition> partitions = new ArrayList<>();
+		for (int i = 1; i <= myMegascaleDbCount; i++) {
+			partitions.add(new WorkingSetPartition(i, theIdsPerMegaScaleDb));
 		}
 
-
-        int pageIndex = 0;
-		while (true) {
-			List<Encounter> pageEncounters = outcome
-				.getEntry()
-				.stream()
-				.map(Bundle.BundleEntryComponent::getResource)
-				.map(t -> (Encounter) t)
-				.filter(Objects::nonNull)
-				.collect(Collectors.toList());
-			for (var next : pageEncounters) {
-				if (encounters.size() <= theIdsPerMegaScaleDb) {
-					IdType nextId = next.getIdElement();
-					nextId = new IdType(myGatewayBaseUrl, nextId.getResourceType(), "ms" + theMegaScaleDbIndex + "-" + nextId.getIdPart(), null);
-					next.getMeta().setVersionId(null);
-					next.setId(nextId);
-
-					for (ResourceReferenceInfo nextRefInfo : ourCtx.newTerser().getAllResourceReferences(next)) {
-						IIdType nextRef = nextRefInfo.getResourceReference().getReferenceElement();
-						nextRefInfo.getResourceReference().setReference(nextRef.getResourceType() + "/ms" + theMegaScaleDbIndex + "-" + nextRef.getIdPart());
-					}
-
-					encounters.add(next);
-				}
+		ExecutorService pool = PerfTestExecutors.newExecutor(threadCount, "working-set-", 100);
+		try {
+			List<Future<?>> patientSearches = new ArrayList<>();
+			for (WorkingSetPartition next : partitions) {
+				patientSearches.add(pool.submit(() -> {
+					next.searchPatients();
+					return null;
+				}));
 			}
-			if (outcome.getLink("next") == null || encounters.size() >= theIdsPerMegaScaleDb) {
-				ourLog.info("Done loading Encounter list for MegaScale DB {}, have {} IDs...", theMegaScaleDbIndex, encounters.size());
-				break;
+			for (var next : patientSearches) {
+				next.get();
 			}
 
-			ourLog.info("Loading Encounter List Page {} for MegaScale DB {}, have {} IDs...", ++pageIndex, theMegaScaleDbIndex, encounters.size());
-
-			count = 0;
-			while (true) {
-				try {
-					outcome = myGatewayFhirClient.loadPage().next(outcome).execute();
-					break;
-				} catch (InternalErrorException e) {
-					count++;
-					if (count > max) {
-						throw e;
-					}
-					ourLog.info("Failure loading page URL (retry {} / {}): {}", count, max, outcome.getLink("next").getUrl());
+			List<Future<?>> encounterSearches = new ArrayList<>();
+			for (WorkingSetPartition next : partitions) {
+				for (List<IIdType> nextBatch : ListUtils.partition(next.myReadNodePatientIds, ENCOUNTER_SEARCH_PATIENT_COUNT)) {
+					encounterSearches.add(pool.submit(() -> {
+						next.searchEncounters(nextBatch);
+						return null;
+					}));
 				}
 			}
+			for (var next : encounterSearches) {
+				next.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
 
+		List<String> patientIds = new ArrayList<>();
+		List<Encounter> encounters = new ArrayList<>();
+		for (WorkingSetPartition next : partitions) {
+			ourLog.info("MegaScale DB {} has {} patient IDs and {} encounters", next.myIndex, next.myReadNodePatientIds.size(), next.myPartitionEncounters.size());
+			next.myReadNodePatientIds.forEach(t -> patientIds.add(next.toGatewayId(t)));
+			encounters.addAll(next.myPartitionEncounters);
 		}
+		ourLog.info("Searched for {} patient IDs and {} encounters in {}", patientIds.size(), encounters.size(), sw);
+		return new WorkingSet(patientIds, encounters);
 	}
 
-	private void start() {
-		myReadTask.start();
-		mySearchTask.start();
-		myUpdateTask.start();
-		myCreateTask.start();
-		if (myThreadIncrementPerMinute > 0) {
+	/**
+	 * Starts sending requests
+	 */
+	void startLoad() {
+		myUpdateTask.createTemplates();
+		for (BaseOperation next : List.of(myReadTask, mySearchTask, myUpdateTask, myCreateTask)) {
+			next.createKeyDistribution();
+		}
+		addThreads(myInitialThreadCount);
+		myScheduler.start();
+		if (myRampUpMins > 0 && myMaxThreadCount > myInitialThreadCount) {
 			myThreadIncrementer.scheduleAtFixedRate(new ThreadIncrementerTask(), DateUtils.MILLIS_PER_MINUTE, DateUtils.MILLIS_PER_MINUTE);
 		}
 	}
@@ -377,8 +394,94 @@ public class Benchmarker {
 		}
 	}
 
-	public static void main(String[] theArgs) throws IOException {
-		new Benchmarker(theArgs).start();
+	List<IIdType> getPatientIds() {
+		return myPatientIds;
+	}
+
+	List<Encounter> getEncounters() {
+		return myEncounterIds.stream().map(t -> myEncounters.get(t.getValue())).collect(Collectors.toList());
+	}
+
+	/**
+	 * Used by a {@link BenchmarkWorker} instead of {@link #loadData()}
+	 */
+	void addData(List<IIdType> thePatientIds, List<Encounter> theEncounters) {
+		myPatientIds.addAll(thePatientIds);
+		for (Encounter next : theEncounters) {
+			IIdType nextId = next.getIdElement().toUnqualifiedVersionless();
+			myEncounterIds.add(nextId);
+			myEncounters.put(nextId.getValue(), next);
+		}
+	}
+
+	List<LatencyRecorder> getLatencyRecorders() {
+		return myLatencyRecorders;
+	}
+
+	int getActiveThreadCount() {
+		return myActiveThreadCount;
+	}
+
+	void setActiveThreadCount(int theActiveThreadCount) {
+		myActiveThreadCount = theActiveThreadCount;
+	}
+
+	/**
+	 * @return The running totals that a {@link BenchmarkWorker} reports to its coordinator
+	 */
+	Map<String, Long> getTotals() {
+		Map<String, Long> retVal = new HashMap<>();
+		retVal.put("read", myReadCount.get());
+		retVal.put("search", mySearchCount.get());
+		retVal.put("update", myUpdateCount.get());
+		retVal.put("create", myCreateCount.get());
+		retVal.put("failure", myFailureCount.get());
+		retVal.put("cacheHit", myCacheHitCount.get());
+		retVal.put("cacheMiss", myCacheMissCount.get());
+		retVal.put("requestBytes", myRequestBytesMeter.getCount());
+		retVal.put("responseBytes", myResponseBytesMeter.getCount());
+		for (OperationScheduler.Operation next : myOperations) {
+			retVal.put(next.getName() + ".late", next.getLateCount());
+			retVal.put(next.getName() + ".dropped", next.getDroppedCount());
+		}
+		return retVal;
+	}
+
+	/**
+	 * Adds the increase in a worker's {@link #getTotals() totals} since its last report
+	 */
+	void addRemoteTotals(Map<String, Long> theDeltas) {
+		addRemote(theDeltas.get("read"), myReadCount, myReadThroughputMeter);
+		addRemote(theDeltas.get("search"), mySearchCount, mySearchThroughputMeter);
+		addRemote(theDeltas.get("update"), myUpdateCount, myUpdateThroughputMeter);
+		addRemote(theDeltas.get("create"), myCreateCount, myCreateThroughputMeter);
+		addRemote(theDeltas.get("failure"), myFailureCount, myFailureMeter);
+		addRemote(theDeltas.get("cacheHit"), myCacheHitCount, null);
+		addRemote(theDeltas.get("cacheMiss"), myCacheMissCount, null);
+		addRemote(theDeltas.get("requestBytes"), null, myRequestBytesMeter);
+		addRemote(theDeltas.get("responseBytes"), null, myResponseBytesMeter);
+		for (OperationScheduler.Operation next : myOperations) {
+			next.addArrivals(theDeltas.getOrDefault(next.getName() + ".late", 0L), theDeltas.getOrDefault(next.getName() + ".dropped", 0L));
+		}
+	}
+
+	private static void addRemote(Long theDelta, AtomicLong theCounter, Meter theMeter) {
+		if (theDelta == null || theDelta <= 0) {
+			return;
+		}
+		if (theCounter != null) {
+			theCounter.addAndGet(theDelta);
+		}
+		if (theMeter != null) {
+			theMeter.mark(theDelta);
+		}
+	}
+
+	public static void main(String[] theArgs) throws Exception {
+		Benchmarker benchmarker = new Benchmarker(theArgs);
+		benchmarker.loadData();
+		benchmarker.startReporting();
+		benchmarker.startLoad();
 	}
 
 	private static long consumeStream(InputStream is) throws IOException {
@@ -390,26 +493,26 @@ public class Benchmarker {
 		return retVal;
 	}
 
-	private class ReadTask extends BaseTaskCreator {
+	private class ReadTask extends BaseOperation {
 
 		private final CloseableHttpClient myHttpClient = Uploader.createHttpClient(myCompression);
 
-		public ReadTask(ThreadPoolTaskExecutor theThreadPool, Semaphore theSemaphore) {
-			super(theThreadPool, theSemaphore, myPatientIds);
+		public ReadTask() {
+			super("read", myPatientIds);
 		}
 
 		@Override
-		protected void run(int thePatientIndex, IIdType thePatientId) {
+		protected void run(int thePatientIndex, IIdType thePatientId, long theIntendedStartNanos) {
 			String patientId = thePatientId.getIdPart();
 			patientId = maybeReplaceWithNonExistent(patientId);
 			String url = myGatewayBaseUrl + "/Patient/" + patientId + "?_elements=id&_elements:exclude=Patient.meta";
 			HttpGet get = new HttpGet(url);
-			long start = System.currentTimeMillis();
+			long start = System.nanoTime();
 			try (var response = myHttpClient.execute(get)) {
 				if (response.getStatusLine().getStatusCode() == 200 || response.getStatusLine().getStatusCode() == 404) {
 					myReadThroughputMeter.mark();
 					myReadCount.incrementAndGet();
-					myReadLatencyHistogram.update(System.currentTimeMillis() - start);
+					myReadLatency.record(theIntendedStartNanos, start, System.nanoTime());
 				} else {
 					ourLog.debug("Failure executing URL[{}]: {}", url, response.getStatusLine());
 					myFailureMeter.mark();
@@ -433,26 +536,26 @@ public class Benchmarker {
 		return thePatientId;
 	}
 
-	private class SearchTask extends BaseTaskCreator {
+	private class SearchTask extends BaseOperation {
 		private final CloseableHttpClient myHttpClient = Uploader.createHttpClient(myCompression);
 
 
-		public SearchTask(ThreadPoolTaskExecutor theThreadPool, Semaphore theSemaphore) {
-			super(theThreadPool, theSemaphore, myPatientIds);
+		public SearchTask() {
+			super("search", myPatientIds);
 		}
 
 		@Override
-		protected void run(int thePatientIndex, IIdType thePatientId) {
+		protected void run(int thePatientIndex, IIdType thePatientId, long theIntendedStartNanos) {
 			String patientId = thePatientId.getIdPart();
 			patientId = maybeReplaceWithNonExistent(patientId);
 			String url = myGatewayBaseUrl + "/Observation?patient=Patient/" + patientId + "&_count=1&_elements=id&_elements:exclude=Observation.meta";
 			HttpGet get = new HttpGet(url);
-			long start = System.currentTimeMillis();
+			long start = System.nanoTime();
 			try (var response = myHttpClient.execute(get)) {
 				if (response.getStatusLine().getStatusCode() == 200) {
 					mySearchThroughputMeter.mark();
 					mySearchCount.incrementAndGet();
-					mySearchLatencyHistogram.update(System.currentTimeMillis() - start);
+					mySearchLatency.record(theIntendedStartNanos, start, System.nanoTime());
 				} else {
 					ourLog.debug("Failure executing URL[{}]: {}", url, response.getStatusLine());
 					myFailureMeter.mark();
@@ -467,34 +570,48 @@ public class Benchmarker {
 		}
 	}
 
-	private class UpdateTask extends BaseTaskCreator {
+	private class UpdateTask extends BaseOperation {
 		private final CloseableHttpClient myHttpClient = Uploader.createHttpClient(myCompression);
+		private final Map<String, RequestTemplate> myTemplates = new HashMap<>();
+		private final byte[][] myStatusValues = Arrays
+			.stream(ENCOUNTER_STATUSES)
+			.map(t -> RequestTemplate.toValue(t.toCode()))
+			.toArray(byte[][]::new);
 
 
-		public UpdateTask(ThreadPoolTaskExecutor theThreadPool, Semaphore theSemaphore) {
-			super(theThreadPool, theSemaphore, myEncounterIds);
+		public UpdateTask() {
+			super("update", myEncounterIds);
 		}
 
-		@Override
-		protected void run(int theEncounterIndex, IIdType theEncounterId) {
+		/**
+		 * Each encounter is encoded once, with a gap for its status
+		 */
+		private void createTemplates() {
+			for (IIdType next : myEncounterIds) {
+				Encounter encounter = myEncounters.get(next.getValue()).copy();
+				encounter.setStatus(ENCOUNTER_STATUSES[0]);
+				String json = ourCtx.newJsonParser().encodeResourceToString(encounter);
+				myTemplates.put(next.getValue(), RequestTemplate.create(json, "status"));
+			}
+		}
 
-			Encounter encounter = myEncounters.get(theEncounterId.getValue());
-			int newIdx = (int) (Math.random() * ENCOUNTER_STATUSES.length);
-			encounter.setStatus(ENCOUNTER_STATUSES[newIdx]);
-			String newPayload = ourCtx.newJsonParser().encodeToString(encounter);
-			myRequestBytesMeter.mark(newPayload.length());
+		@Override
+		protected void run(int theEncounterIndex, IIdType theEncounterId, long theIntendedStartNanos) {
+			RequestTemplate template = myTemplates.get(theEncounterId.getValue());
+			byte[] newPayload = template.render(myStatusValues[ThreadLocalRandom.current().nextInt(myStatusValues.length)]);
+			myRequestBytesMeter.mark(newPayload.length);
 
 			String url = myGatewayBaseUrl + "/Encounter/" + theEncounterId.getIdPart();
 			HttpPut put = new HttpPut(url);
 			put.addHeader(HEADER_PREFER, HEADER_PREFER_RETURN + "=" + HEADER_PREFER_RETURN_MINIMAL);
-			put.setEntity(new StringEntity(newPayload, CONTENT_TYPE_FHIR_JSON));
+			put.setEntity(new ByteArrayEntity(newPayload, CONTENT_TYPE_FHIR_JSON));
 
-			long start = System.currentTimeMillis();
+			long start = System.nanoTime();
 			try (var response = myHttpClient.execute(put)) {
 				if (response.getStatusLine().getStatusCode() == 200 || response.getStatusLine().getStatusCode() == 201) {
 					myUpdateThroughputMeter.mark();
 					myUpdateCount.incrementAndGet();
-					myUpdateLatencyHistogram.update(System.currentTimeMillis() - start);
+					myUpdateLatency.record(theIntendedStartNanos, start, System.nanoTime());
 				} else {
 					if (response.getStatusLine().getStatusCode() == 409) {
 						// This means two threads tried to update the same resource, and this
@@ -517,38 +634,56 @@ public class Benchmarker {
 		}
 	}
 
-	private class CreateTask extends BaseTaskCreator {
+	private class CreateTask extends BaseOperation {
 
 		private final CloseableHttpClient myHttpClient = Uploader.createHttpClient(myCompression);
+		private final RequestTemplate myTemplate;
+		private volatile EffectiveTime myEffectiveTime;
 
-		public CreateTask(ThreadPoolTaskExecutor theThreadPool, Semaphore theSemaphore) {
-			super(theThreadPool, theSemaphore, myPatientIds);
-		}
-
-		@Override
-		protected void run(int thePatientIndex, IIdType thePatientId) {
+		public CreateTask() {
+			super("create", myPatientIds);
 
 			Observation obs = new Observation();
 			obs.setStatus(Observation.ObservationStatus.FINAL);
 			obs.getCategoryFirstRep().addCoding().setSystem("http://terminology.hl7.org/CodeSystem/observation-category").setCode("vital-signs");
-			obs.setSubject(new Reference(thePatientId.toUnqualifiedVersionless()));
+			obs.setSubject(new Reference("Patient/0"));
 			obs.setEffective(DateTimeType.now());
-			obs.setStatus(Observation.ObservationStatus.FINAL);
 			obs.setValue(new StringType("This is the value"));
-			String newPayload = ourCtx.newJsonParser().encodeToString(obs);
-			myRequestBytesMeter.mark(newPayload.length());
+			String json = ourCtx.newJsonParser().encodeResourceToString(obs);
+			myTemplate = RequestTemplate.create(json, "subject.reference", "effectiveDateTime");
+		}
+
+		/**
+		 * The effective time only has second precision, so it is only encoded once a second
+		 */
+		private byte[] getEffectiveTime() {
+			long second = System.currentTimeMillis() / DateUtils.MILLIS_PER_SECOND;
+			EffectiveTime retVal = myEffectiveTime;
+			if (retVal == null || retVal.mySecond != second) {
+				DateTimeType now = new DateTimeType(new Date(second * DateUtils.MILLIS_PER_SECOND), TemporalPrecisionEnum.SECOND);
+				retVal = new EffectiveTime(second, RequestTemplate.toValue(now.getValueAsString()));
+				myEffectiveTime = retVal;
+			}
+			return retVal.myValue;
+		}
+
+		@Override
+		protected void run(int thePatientIndex, IIdType thePatientId, long theIntendedStartNanos) {
+			byte[] subject = RequestTemplate.toValue("Patient/" + thePatientId.getIdPart());
+			byte[] newPayload = myTemplate.render(subject, getEffectiveTime());
+			myRequestBytesMeter.mark(newPayload.length);
 
 			String url = myGatewayBaseUrl + "/Observation";
 			HttpPost post = new HttpPost(url);
 			post.addHeader(HEADER_PREFER, HEADER_PREFER_RETURN + "=" + HEADER_PREFER_RETURN_MINIMAL);
-			post.setEntity(new StringEntity(newPayload, CONTENT_TYPE_FHIR_JSON));
+			post.setEntity(new ByteArrayEntity(newPayload, CONTENT_TYPE_FHIR_JSON));
 
-			long start = System.currentTimeMillis();
+			long start = System.nanoTime();
 			try (var response = myHttpClient.execute(post)) {
 				if (response.getStatusLine().getStatusCode() == 200 || response.getStatusLine().getStatusCode() == 201) {
 					myCreateThroughputMeter.mark();
 					myCreateCount.incrementAndGet();
-					myCreateLatencyHistogram.update(System.currentTimeMillis() - start);
+					myCreateLatency.record(theIntendedStartNanos, start, System.nanoTime());
 				} else {
 					String results = IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8);
 					ourLog.debug("Failure executing URL[{}]: {}\n{}", url, response.getStatusLine(), results);
@@ -564,17 +699,157 @@ public class Benchmarker {
 		}
 	}
 
+	/**
+	 * One MegaScale DB's share of the working set. Every search and page for the
+	 * DB goes to the read node, with the DB selected by tenant.
+	 */
+	private class WorkingSetPartition {
+		private final int myIndex;
+		private final int myIdsToLoad;
+		private final IGenericClient myClient;
+		private final List<IIdType> myReadNodePatientIds = new ArrayList<>();
+		private final List<Encounter> myPartitionEncounters = Collections.synchronizedList(new ArrayList<>());
+		private final AtomicInteger myEncounterCount = new AtomicInteger(0);
+
+		private WorkingSetPartition(int theIndex, int theIdsToLoad) {
+			myIndex = theIndex;
+			myIdsToLoad = theIdsToLoad;
+			myClient = ourCtx.newRestfulGenericClient(myReadNodeBaseUrl);
+			myClient.registerInterceptor(new BasicAuthInterceptor("admin", "password"));
+			myClient.registerInterceptor(new UrlTenantSelectionInterceptor("MS" + theIndex));
+		}
+
+		/**
+		 * @return The ID part that the gateway knows this DB's resource by
+		 */
+		private String toGatewayId(IIdType theId) {
+			return "ms" + myIndex + "-" + theId.getIdPart();
+		}
+
+		private void searchPatients() {
+			Bundle outcome = executeWithRetries(() -> myClient
+				.search()
+				.forResource(Patient.class)
+				.count(Math.min(myIdsToLoad, PATIENT_PAGE_SIZE))
+				.elementsSubset("id")
+				.returnBundle(Bundle.class)
+				.execute(), "Patient list");
+			while (true) {
+				List<IIdType> ids = outcome
+					.getEntry()
+					.stream()
+					.map(Bundle.BundleEntryComponent::getResource)
+					.filter(Objects::nonNull)
+					.map(Resource::getIdElement)
+					.collect(Collectors.toList());
+				for (IIdType next : ids) {
+					if (myReadNodePatientIds.size() < myIdsToLoad) {
+						myReadNodePatientIds.add(next.toUnqualifiedVersionless());
+					}
+				}
+				if (outcome.getLink("next") == null || myReadNodePatientIds.size() >= myIdsToLoad) {
+					ourLog.info("Done loading Patient list for MegaScale DB {}, have {} IDs...", myIndex, myReadNodePatientIds.size());
+					break;
+				}
+
+				ourLog.debug("Loading next Patient List Page for MegaScale DB {}, have {} IDs...", myIndex, myReadNodePatientIds.size());
+				Bundle current = outcome;
+				outcome = executeWithRetries(() -> myClient.loadPage().next(current).execute(), current.getLink("next").getUrl());
+			}
+		}
+
+		/**
+		 * Batches that start after the DB already has enough encounters do nothing
+		 */
+		private void searchEncounters(List<IIdType> thePatientIds) {
+			if (myEncounterCount.get() >= myIdsToLoad) {
+				return;
+			}
+
+			List<String> ids = thePatientIds.stream()
+				.map(t -> t.toUnqualifiedVersionless().getValue())
+				.collect(Collectors.toList());
+			Bundle outcome = executeWithRetries(() -> myClient
+				.search()
+				.forResource(Encounter.class)
+				.where(Encounter.PATIENT.hasAnyOfIds(ids))
+				.count(ENCOUNTER_PAGE_SIZE)
+				.returnBundle(Bundle.class)
+				.execute(), "Encounter list for " + ids);
+			while (true) {
+				for (var next : outcome.getEntry()) {
+					if (next.getResource() instanceof Encounter && myEncounterCount.getAndIncrement() < myIdsToLoad) {
+						myPartitionEncounters.add(toGatewayEncounter((Encounter) next.getResource()));
+					}
+				}
+				if (outcome.getLink("next") == null || myEncounterCount.get() >= myIdsToLoad) {
+					break;
+				}
+
+				ourLog.debug("Loading next Encounter List Page for MegaScale DB {}, have {} IDs...", myIndex, myPartitionEncounters.size());
+				Bundle current = outcome;
+				outcome = executeWithRetries(() -> myClient.loadPage().next(current).execute(), current.getLink("next").getUrl());
+			}
+		}
+
+		/**
+		 * Rewrites the encounter's ID and references to the IDs the gateway knows them by
+		 */
+		private Encounter toGatewayEncounter(Encounter theEncounter) {
+			theEncounter.getMeta().setVersionId(null);
+			theEncounter.setId(new IdType("Encounter", toGatewayId(theEncounter.getIdElement())));
+			for (ResourceReferenceInfo nextRefInfo : ourCtx.newTerser().getAllResourceReferences(theEncounter)) {
+				IIdType nextRef = nextRefInfo.getResourceReference().getReferenceElement();
+				nextRefInfo.getResourceReference().setReference(nextRef.getResourceType() + "/" + toGatewayId(nextRef));
+			}
+			return theEncounter;
+		}
+
+		private Bundle executeWithRetries(Supplier<Bundle> theRequest, String theDescription) {
+			int max = 5;
+			for (int count = 1; ; count++) {
+				try {
+					return theRequest.get();
+				} catch (InternalErrorException e) {
+					if (count > max) {
+						throw e;
+					}
+					ourLog.info("Failure loading {} for MegaScale DB {} (retry {} / {})", theDescription, myIndex, count, max);
+				}
+			}
+		}
+	}
+
+	private static class EffectiveTime {
+		private final long mySecond;
+		private final byte[] myValue;
+
+		private EffectiveTime(long theSecond, byte[] theValue) {
+			mySecond = theSecond;
+			myValue = theValue;
+		}
+	}
+
+	/**
+	 * Works out the thread count from how far into the ramp up we are, rather than
+	 * adding a fixed number each minute, so that a benchmarker with fewer threads
+	 * than ramp up minutes (e.g. a worker given a share of the threads) still
+	 * reaches its maximum when the ramp up ends
+	 */
 	private class ThreadIncrementerTask extends TimerTask {
+		private int myMinutes;
+
 		@Override
 		public void run() {
-			int threadDelta = myThreadIncrementPerMinute;
-			if (myActiveThreadCount + threadDelta > myMaxThreadCount) {
-				threadDelta = myMaxThreadCount - myActiveThreadCount;
-			}
-
+			myMinutes++;
+			int target = (int) Math.min(myMaxThreadCount, Math.ceil((double) myMaxThreadCount * myMinutes / myRampUpMins));
+			int threadDelta = target - myActiveThreadCount;
 			if (threadDelta > 0) {
 				ourLog.info("Incrementing thread count by {} - New total: {}", threadDelta, myActiveThreadCount + threadDelta);
-				addSemaphores(threadDelta);
+				addThreads(threadDelta);
+			}
+			if (target >= myMaxThreadCount) {
+				cancel();
 			}
 		}
 	}
@@ -584,63 +859,69 @@ public class Benchmarker {
 		@SuppressWarnings("StringConcatenationInsideStringBufferAppend")
 		@Override
 		public void run() {
-			Snapshot readSnapshot = myReadLatencyHistogram.getSnapshot();
+			for (LatencyRecorder next : myLatencyRecorders) {
+				next.sampleInterval();
+				next.writeInterval(myLatencyLogWriter);
+			}
+
+			Histogram readLatency = myReadLatency.getResponseInterval();
 			long totalRead = myReadCount.get();
 			long allTimeRead = (long) mySw.getThroughput(totalRead, TimeUnit.SECONDS);
-			long perSecondRead = ((long) myReadThroughputMeter.getOneMinuteRate()) / 60L;
-			long avgMillisPerRead = (long) readSnapshot.getMean();
-			long read75thPct = (long) readSnapshot.get75thPercentile();
-			long read95thPct = (long) readSnapshot.get95thPercentile();
+			long perSecondRead = (long) myReadThroughputMeter.getOneMinuteRate();
+			long avgMillisPerRead = LatencyRecorder.toMillis(readLatency.getMean());
+			long read75thPct = LatencyRecorder.percentileMillis(readLatency, 75.0);
+			long read95thPct = LatencyRecorder.percentileMillis(readLatency, 95.0);
 
-			Snapshot searchSnapshot = mySearchLatencyHistogram.getSnapshot();
+			Histogram searchLatency = mySearchLatency.getResponseInterval();
 			long totalSearch = mySearchCount.get();
 			long allTimeSearch = (long) mySw.getThroughput(totalSearch, TimeUnit.SECONDS);
-			long perSecondSearch = ((long) mySearchThroughputMeter.getOneMinuteRate()) / 60L;
-			long avgMillisPerSearch = (long) searchSnapshot.getMean();
-			long search75thPct = (long) searchSnapshot.get75thPercentile();
-			long search95thPct = (long) searchSnapshot.get95thPercentile();
+			long perSecondSearch = (long) mySearchThroughputMeter.getOneMinuteRate();
+			long avgMillisPerSearch = LatencyRecorder.toMillis(searchLatency.getMean());
+			long search75thPct = LatencyRecorder.percentileMillis(searchLatency, 75.0);
+			long search95thPct = LatencyRecorder.percentileMillis(searchLatency, 95.0);
 
-			Snapshot updateSnapshot = myUpdateLatencyHistogram.getSnapshot();
+			Histogram updateLatency = myUpdateLatency.getResponseInterval();
 			long totalUpdate = myUpdateCount.get();
 			long allTimeUpdate = (long) mySw.getThroughput(totalUpdate, TimeUnit.SECONDS);
-			long perSecondUpdate = ((long) myUpdateThroughputMeter.getOneMinuteRate()) / 60L;
-			long avgMillisPerUpdate = (long) updateSnapshot.getMean();
-			long update75thPct = (long) updateSnapshot.get75thPercentile();
-			long update95thPct = (long) updateSnapshot.get95thPercentile();
+			long perSecondUpdate = (long) myUpdateThroughputMeter.getOneMinuteRate();
+			long avgMillisPerUpdate = LatencyRecorder.toMillis(updateLatency.getMean());
+			long update75thPct = LatencyRecorder.percentileMillis(updateLatency, 75.0);
+			long update95thPct = LatencyRecorder.percentileMillis(updateLatency, 95.0);
 
-			Snapshot createSnapshot = myCreateLatencyHistogram.getSnapshot();
+			Histogram createLatency = myCreateLatency.getResponseInterval();
 			long totalCreate = myCreateCount.get();
 			long allTimeCreate = (long) mySw.getThroughput(totalCreate, TimeUnit.SECONDS);
-			long perSecondCreate = ((long) myCreateThroughputMeter.getOneMinuteRate()) / 60L;
-			long avgMillisPerCreate = (long) createSnapshot.getMean();
-			long create75thPct = (long) createSnapshot.get75thPercentile();
-			long create95thPct = (long) createSnapshot.get95thPercentile();
+			long perSecondCreate = (long) myCreateThroughputMeter.getOneMinuteRate();
+			long avgMillisPerCreate = LatencyRecorder.toMillis(createLatency.getMean());
+			long create75thPct = LatencyRecorder.percentileMillis(createLatency, 75.0);
+			long create95thPct = LatencyRecorder.percentileMillis(createLatency, 95.0);
 
 			long perSecondSuccess = perSecondRead + perSecondSearch + perSecondCreate + perSecondUpdate;
 			long totalFail = myFailureCount.get();
-			long perSecondFail = (long) (myFailureMeter.getOneMinuteRate() / 60L);
+			long perSecondFail = (long) myFailureMeter.getOneMinuteRate();
 
-			long requestBytesPerSec = (long) (myRequestBytesMeter.getOneMinuteRate() / 60L);
-			long responseBytesPerSec = (long) (myResponseBytesMeter.getOneMinuteRate() / 60L);
+			long requestBytesPerSec = (long) myRequestBytesMeter.getOneMinuteRate();
+			long responseBytesPerSec = (long) myResponseBytesMeter.getOneMinuteRate();
 
 			double cacheHitCount = myCacheHitCount.get();
 			double cacheMissCount = myCacheMissCount.get();
 			long cacheHitPct = (long) ((cacheHitCount / (cacheMissCount + cacheHitCount)) * 100.0);
 
 			ourLog.info(
-				"\nREAD[ Total {} - All {}/sec - MovAvg {}/sec - Avg {}ms/tx / 75pct {}ms/tx / 95pct {}ms/tx - {} Concurrent] " +
-					"\nSEARCH[ Total {} - All {}/sec - MovAvg {}/sec - Avg {}ms/tx / 75pct {}ms/tx / 95pct {}ms/tx - {} Concurrent] " +
-					"\nUPDATE[ Total {} - All {}/sec - MovAvg {}/sec - Avg {}ms/tx / 75pct {}ms/tx / 95pct {}ms/tx - {} Concurrent] " +
-					"\nCREATE[ Total {} - All {}/sec - MovAvg {}/sec - Avg {}ms/tx / 75pct {}ms/tx / 95pct {}ms/tx - {} Concurrent] " +
+				"\nREAD[ Total {} - All {}/sec - MovAvg {}/sec - {}] " +
+					"\nSEARCH[ Total {} - All {}/sec - MovAvg {}/sec - {}] " +
+					"\nUPDATE[ Total {} - All {}/sec - MovAvg {}/sec - {}] " +
+					"\nCREATE[ Total {} - All {}/sec - MovAvg {}/sec - {}] " +
 					"\nSUCCESS[ MovAvg {}/sec] -- FAIL[ Total {} - MovAvg {}/sec - {} Concurrent]" +
 					"\nREQ[ {} /sec] -- RESP[ {} /sec]" +
+					(myOpenModel ? "\nARRIVALS[ Late/Dropped - Read " + myReadTask.describeArrivals() + " - Search " + mySearchTask.describeArrivals() + " - Update " + myUpdateTask.describeArrivals() + " - Create " + myCreateTask.describeArrivals() + " ]" : "") +
 //					"\nCACHE_HIT[ {}% ]" +
 					" ",
-				totalRead, allTimeRead, perSecondRead, avgMillisPerRead, read75thPct, read95thPct, myActiveThreadCount,
-				totalSearch, allTimeSearch, perSecondSearch, avgMillisPerSearch, search75thPct, search95thPct, myActiveThreadCount,
-				totalUpdate, allTimeUpdate, perSecondUpdate, avgMillisPerUpdate, update75thPct, update95thPct, myActiveThreadCount,
-				totalCreate, allTimeCreate, perSecondCreate, avgMillisPerCreate, create75thPct, create95thPct, myActiveThreadCount,
-				perSecondSuccess, totalFail, perSecondFail, myActiveThreadCount * 4,
+				totalRead, allTimeRead, perSecondRead, LatencyRecorder.describe(readLatency),
+				totalSearch, allTimeSearch, perSecondSearch, LatencyRecorder.describe(searchLatency),
+				totalUpdate, allTimeUpdate, perSecondUpdate, LatencyRecorder.describe(updateLatency),
+				totalCreate, allTimeCreate, perSecondCreate, LatencyRecorder.describe(createLatency),
+				perSecondSuccess, totalFail, perSecondFail, myActiveThreadCount * OPERATION_COUNT,
 				byteCountToDisplaySize(requestBytesPerSec), byteCountToDisplaySize(responseBytesPerSec)
 //				cacheHitPct
 			);
@@ -659,7 +940,15 @@ public class Benchmarker {
 						totalFail + "," + perSecondFail + "," +
 						requestBytesPerSec + "," + responseBytesPerSec + "," +
 						myActiveThreadCount + "," +
-						cacheHitPct +
+						cacheHitPct + "," +
+						latencyColumns(myReadLatency) + "," +
+						latencyColumns(mySearchLatency) + "," +
+						latencyColumns(myUpdateLatency) + "," +
+						latencyColumns(myCreateLatency) + "," +
+						myReadTask.getLateCount() + "," + myReadTask.getDroppedCount() + "," +
+						mySearchTask.getLateCount() + "," + mySearchTask.getDroppedCount() + "," +
+						myUpdateTask.getLateCount() + "," + myUpdateTask.getDroppedCount() + "," +
+						myCreateTask.getLateCount() + "," + myCreateTask.getDroppedCount() +
 						"\n"
 				);
 				myCsvWriter.flush();
@@ -667,43 +956,47 @@ public class Benchmarker {
 				ourLog.error("Failed to write CSV", e);
 			}
 		}
+
+		/**
+		 * @return P50, P90, P99, P99.9 and Max response time, and P99 service time, for the last interval
+		 */
+		private String latencyColumns(LatencyRecorder theRecorder) {
+			Histogram response = theRecorder.getResponseInterval();
+			return LatencyRecorder.percentileMillis(response, 50.0) + "," +
+				LatencyRecorder.percentileMillis(response, 90.0) + "," +
+				LatencyRecorder.percentileMillis(response, 99.0) + "," +
+				LatencyRecorder.percentileMillis(response, 99.9) + "," +
+				LatencyRecorder.toMillis(response.getMaxValue()) + "," +
+				LatencyRecorder.percentileMillis(theRecorder.getServiceInterval(), 99.0);
+		}
 	}
 
-	private abstract static class BaseTaskCreator extends Thread {
-		protected final ThreadPoolTaskExecutor myThreadPool;
+	private abstract static class BaseOperation extends OperationScheduler.Operation {
 		private final List<IIdType> myIdList;
-		private final Semaphore mySemaphore;
+		private KeyDistribution myKeyDistribution;
 
-		public BaseTaskCreator(ThreadPoolTaskExecutor theThreadPool, Semaphore theSemaphore, List<IIdType> theIdList) {
-			myThreadPool = theThreadPool;
+		public BaseOperation(String theName, List<IIdType> theIdList) {
+			super(theName);
 			myIdList = theIdList;
-			mySemaphore = theSemaphore;
 		}
 
-		@SuppressWarnings("InfiniteLoopStatement")
+		/**
+		 * Called once the IDs are loaded
+		 */
+		void createKeyDistribution() {
+			myKeyDistribution = KeyDistribution.forOperation(getName(), myIdList.size());
+		}
+
 		@Override
-		public void run() {
-			while (true) {
-				myThreadPool.submit(() -> {
-					int idIndex = (int) (Math.random() * myIdList.size());
-					IIdType id = myIdList.get(idIndex);
-
-					try {
-						mySemaphore.acquire();
-					} catch (InterruptedException e) {
-						Thread.currentThread().interrupt();
-						return;
-					}
-					try {
-						run(idIndex, id);
-					} finally {
-						mySemaphore.release();
-					}
-				});
-			}
+		protected void execute(long theIntendedStartNanos) {
+			int idIndex = myKeyDistribution.nextIndex(ThreadLocalRandom.current());
+			run(idIndex, myIdList.get(idIndex), theIntendedStartNanos);
 		}
 
-		protected abstract void run(int thePatientIndex, IIdType thePatientId);
+		/**
+		 * @param theIntendedStartNanos The {@link System#nanoTime()} at which the request was due to be sent
+		 */
+		protected abstract void run(int thePatientIndex, IIdType thePatientId, long theIntendedStartNanos);
 	}
 
 }
@@ -0,0 +1,227 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stops sending to one upload target (a base URL or a MegaScale partition) while
+ * it is failing.
+ * <p>
+ * The breaker tracks the outcome of the last <code>BREAKER_WINDOW</code> requests.
+ * Once at least half of that window has completed and the share of failures
+ * reaches <code>BREAKER_FAILURE_RATE</code>, the breaker opens and
+ * {@link #awaitPermission()} blocks for <code>BREAKER_OPEN_MILLIS</code>. After
+ * that a single probe request is let through: if it succeeds the breaker
+ * closes, otherwise it stays open for another period.
+ * <p>
+ * Each request reports its outcome with the {@link Permit} it was let through
+ * with. Only the probe's outcome decides whether a half open breaker closes, and
+ * outcomes of requests that were let through before the breaker last opened are
+ * ignored.
+ */
+public class CircuitBreaker {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	private final String myName;
+	private final boolean[] myOutcomes;
+	private final double myFailureRateThreshold;
+	private final long myOpenNanos;
+	private final ReentrantLock myLock = new ReentrantLock();
+	private final Condition myStateChanged = myLock.newCondition();
+	private volatile State myState = State.CLOSED;
+	private int myOutcomeCount;
+	private int myOutcomeIndex;
+	private int myFailureCount;
+	private long myOpenUntil;
+	private boolean myProbeInFlight;
+	/**
+	 * Incremented each time the breaker opens
+	 */
+	private long myGeneration;
+	private Permit myClosedPermit = new Permit(0, false);
+
+	public CircuitBreaker(String theName, int theWindowSize, double theFailureRateThreshold, long theOpenMillis) {
+		myName = theName;
+		myOutcomes = new boolean[theWindowSize];
+		myFailureRateThreshold = theFailureRateThreshold;
+		myOpenNanos = TimeUnit.MILLISECONDS.toNanos(theOpenMillis);
+	}
+
+	/**
+	 * Blocks while the breaker is open. When it is half open, only one caller
+	 * at a time gets through.
+	 *
+	 * @return The permit to report the outcome with. If it is the
+	 * {@link Permit#isProbe() probe} and the caller then doesn't send the request,
+	 * it must call {@link #cancelProbe(Permit)}.
+	 */
+	public Permit awaitPermission() throws InterruptedException {
+		myLock.lockInterruptibly();
+		try {
+			while (true) {
+				switch (myState) {
+					case CLOSED:
+						return myClosedPermit;
+					case OPEN:
+						long remaining = myOpenUntil - System.nanoTime();
+						if (remaining > 0) {
+							myStateChanged.awaitNanos(remaining);
+						} else {
+							ourLog.info("Circuit breaker for {} is half open, sending a probe request", myName);
+							myState = State.HALF_OPEN;
+						}
+						break;
+					case HALF_OPEN:
+						if (!myProbeInFlight) {
+							myProbeInFlight = true;
+							return new Permit(myGeneration, true);
+						}
+						myStateChanged.await();
+						break;
+				}
+			}
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	public void onSuccess(Permit thePermit) {
+		myLock.lock();
+		try {
+			if (isStale(thePermit)) {
+				return;
+			}
+			if (myState == State.HALF_OPEN) {
+				if (thePermit.isProbe()) {
+					ourLog.info("Circuit breaker for {} is closed", myName);
+					myState = State.CLOSED;
+					myProbeInFlight = false;
+					resetOutcomes();
+					myStateChanged.signalAll();
+				}
+			} else {
+				recordOutcome(false);
+			}
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	public void onFailure(Permit thePermit) {
+		myLock.lock();
+		try {
+			if (isStale(thePermit)) {
+				return;
+			}
+			switch (myState) {
+				case CLOSED:
+					recordOutcome(true);
+					int minimumCount = Math.max(1, myOutcomes.length / 2);
+					if (myOutcomeCount >= minimumCount && myFailureCount >= myFailureRateThreshold * myOutcomeCount) {
+						open(myFailureCount + "/" + myOutcomeCount + " recent requests failed");
+					}
+					break;
+				case HALF_OPEN:
+					if (thePermit.isProbe()) {
+						open("probe request failed");
+					}
+					break;
+				case OPEN:
+					// Nothing is let through while open, so every permit is stale
+					break;
+			}
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	/**
+	 * Requests let through before the breaker last opened no longer say anything
+	 * about the target's current state
+	 */
+	private boolean isStale(Permit thePermit) {
+		return thePermit.myGeneration != myGeneration;
+	}
+
+	/**
+	 * Lets another caller send the probe, when the one that was given it gave up
+	 * before sending it
+	 */
+	public void cancelProbe(Permit thePermit) {
+		myLock.lock();
+		try {
+			if (thePermit.isProbe() && !isStale(thePermit) && myState == State.HALF_OPEN && myProbeInFlight) {
+				myProbeInFlight = false;
+				myStateChanged.signalAll();
+			}
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	public boolean isClosed() {
+		return myState == State.CLOSED;
+	}
+
+	private void open(String theReason) {
+		ourLog.warn("Circuit breaker for {} is open for {}ms: {}", myName, TimeUnit.NANOSECONDS.toMillis(myOpenNanos), theReason);
+		myState = State.OPEN;
+		myGeneration++;
+		myClosedPermit = new Permit(myGeneration, false);
+		myOpenUntil = System.nanoTime() + myOpenNanos;
+		myProbeInFlight = false;
+		resetOutcomes();
+		myStateChanged.signalAll();
+	}
+
+	private void recordOutcome(boolean theFailure) {
+		if (myOutcomeCount == myOutcomes.length) {
+			if (myOutcomes[myOutcomeIndex]) {
+				myFailureCount--;
+			}
+		} else {
+			myOutcomeCount++;
+		}
+		myOutcomes[myOutcomeIndex] = theFailure;
+		if (theFailure) {
+			myFailureCount++;
+		}
+		myOutcomeIndex = (myOutcomeIndex + 1) % myOutcomes.length;
+	}
+
+	private void resetOutcomes() {
+		myOutcomeCount = 0;
+		myOutcomeIndex = 0;
+		myFailureCount = 0;
+	}
+
+	public static final class Permit {
+		private final long myGeneration;
+		private final boolean myProbe;
+
+		private Permit(long theGeneration, boolean theProbe) {
+			myGeneration = theGeneration;
+			myProbe = theProbe;
+		}
+
+		public boolean isProbe() {
+			return myProbe;
+		}
+	}
+
+	private enum State {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+
+	public static CircuitBreaker newBreaker(String theName) {
+		int windowSize = PerfTestProperties.getInt("BREAKER_WINDOW", 20);
+		double failureRate = PerfTestProperties.getDouble("BREAKER_FAILURE_RATE", 0.5);
+		long openMillis = PerfTestProperties.getInt("BREAKER_OPEN_MILLIS", 10000);
+		return new CircuitBreaker(theName, windowSize, failureRate, openMillis);
+	}
+}
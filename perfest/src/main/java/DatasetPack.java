@@ -0,0 +1,383 @@
+import com.smilecdr.demo.benchmark2.PartitionStrategy;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.lang3.Validate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * A Synthea dataset packed into a few large files per MegaScale partition, so it
+ * can be re-loaded with sequential reads instead of a directory walk and one
+ * open per bundle. Packs are written by {@link DatasetPacker}.
+ * <p>
+ * A pack directory contains:
+ * <ul>
+ *    <li><code>pack.properties</code> - the format version and the megascale count the packs were routed for</li>
+ *    <li><code>MS[partition]-[sequence].pack</code> - a magic header followed by records of
+ *    <code>[int payload length][int resource count][UTF name][UTF patient ID][gzipped bundle]</code></li>
+ *    <li><code>MS[partition]-[sequence].idx</code> - one line per record:
+ *    <code>[offset] [payload length] [resource count] [patient ID] [name]</code>, tab separated</li>
+ * </ul>
+ * The record name is the bundle's path relative to the source directory, which
+ * is also its {@link UploadJournal} key, so a journal written in directory mode
+ * can be used to resume from packs and vice versa. Packs are append-only: packing
+ * more files into an existing directory adds new sequence numbers. Each pack and
+ * its index are written to <code>.tmp</code> files and only renamed once complete,
+ * so a packer that dies part way through never leaves a truncated pack behind.
+ */
+public class DatasetPack {
+
+	public static final String MANIFEST_FILE = "pack.properties";
+	private static final byte[] MAGIC = "SYNPACK1".getBytes(StandardCharsets.US_ASCII);
+	private static final String VERSION = "1";
+	private static final String PROP_VERSION = "version";
+	private static final String PROP_MEGASCALE_COUNT = "megascaleCount";
+	private static final String PROP_PARTITION_STRATEGY = "partitionStrategy";
+	private static final Pattern PACK_NAME = Pattern.compile("MS([0-9]+)-([0-9]+)\\.pack");
+
+	private DatasetPack() {
+		// static utility
+	}
+
+	public static boolean isPackDirectory(File theDirectory) {
+		return new File(theDirectory, MANIFEST_FILE).isFile();
+	}
+
+	/**
+	 * @return The megascale count the packs in the directory were routed for
+	 */
+	public static int readMegascaleCount(File theDirectory) throws IOException {
+		return Integer.parseInt(readManifest(theDirectory).getProperty(PROP_MEGASCALE_COUNT));
+	}
+
+	/**
+	 * @return The {@link PartitionStrategy} name the packs in the directory were routed with.
+	 * Packs written before this was recorded used the legacy strategy.
+	 */
+	public static String readPartitionStrategy(File theDirectory) throws IOException {
+		return readManifest(theDirectory).getProperty(PROP_PARTITION_STRATEGY, PartitionStrategy.LEGACY);
+	}
+
+	private static Properties readManifest(File theDirectory) throws IOException {
+		Properties props = new Properties();
+		try (FileReader reader = new FileReader(new File(theDirectory, MANIFEST_FILE), StandardCharsets.UTF_8)) {
+			props.load(reader);
+		}
+		Validate.isTrue(VERSION.equals(props.getProperty(PROP_VERSION)), "Unsupported pack version in %s", theDirectory);
+		return props;
+	}
+
+	public static void writeManifest(File theDirectory, int theMegascaleCount, String thePartitionStrategy) throws IOException {
+		Properties props = new Properties();
+		props.setProperty(PROP_VERSION, VERSION);
+		props.setProperty(PROP_MEGASCALE_COUNT, Integer.toString(theMegascaleCount));
+		props.setProperty(PROP_PARTITION_STRATEGY, thePartitionStrategy);
+		try (FileWriter writer = new FileWriter(new File(theDirectory, MANIFEST_FILE), StandardCharsets.UTF_8)) {
+			props.store(writer, "Synthea dataset pack");
+		}
+	}
+
+	/**
+	 * @return The pack files in the directory, ordered by sequence number and then
+	 * partition, so that reading them in order interleaves the partitions
+	 */
+	public static List<File> listPacks(File theDirectory) {
+		File[] files = theDirectory.listFiles((dir, name) -> PACK_NAME.matcher(name).matches());
+		Validate.notNull(files, "Can't list %s", theDirectory);
+		return Arrays
+			.stream(files)
+			.sorted(Comparator.<File>comparingInt(t -> getSequence(t)).thenComparingInt(DatasetPack::getPartition))
+			.collect(Collectors.toList());
+	}
+
+	public static int getPartition(File thePack) {
+		return Integer.parseInt(parsePackName(thePack).group(1));
+	}
+
+	public static int getSequence(File thePack) {
+		return Integer.parseInt(parsePackName(thePack).group(2));
+	}
+
+	private static Matcher parsePackName(File thePack) {
+		Matcher retVal = PACK_NAME.matcher(thePack.getName());
+		Validate.isTrue(retVal.matches(), "Not a pack file: %s", thePack);
+		return retVal;
+	}
+
+	public static File getPackFile(File theDirectory, int thePartition, int theSequence) {
+		return new File(theDirectory, String.format("MS%d-%04d.pack", thePartition, theSequence));
+	}
+
+	public static File getIndexFile(File thePack) {
+		return new File(thePack.getParentFile(), thePack.getName().replaceAll("\\.pack$", ".idx"));
+	}
+
+	/**
+	 * Reads the index of one pack without touching the pack itself
+	 */
+	public static List<IndexEntry> readIndex(File thePack) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new FileReader(getIndexFile(thePack), StandardCharsets.UTF_8))) {
+			return reader
+				.lines()
+				.map(IndexEntry::parse)
+				.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * One line of a pack index
+	 */
+	public static class IndexEntry {
+		private final long myOffset;
+		private final int myLength;
+		private final int myResourceCount;
+		private final String myPatientId;
+		private final String myName;
+
+		private IndexEntry(long theOffset, int theLength, int theResourceCount, String thePatientId, String theName) {
+			myOffset = theOffset;
+			myLength = theLength;
+			myResourceCount = theResourceCount;
+			myPatientId = thePatientId;
+			myName = theName;
+		}
+
+		public long getOffset() {
+			return myOffset;
+		}
+
+		public int getLength() {
+			return myLength;
+		}
+
+		public int getResourceCount() {
+			return myResourceCount;
+		}
+
+		public String getPatientId() {
+			return myPatientId;
+		}
+
+		public String getName() {
+			return myName;
+		}
+
+		private String format() {
+			return myOffset + "\t" + myLength + "\t" + myResourceCount + "\t" + myPatientId + "\t" + myName;
+		}
+
+		private static IndexEntry parse(String theLine) {
+			String[] parts = theLine.split("\t", 5);
+			Validate.isTrue(parts.length == 5, "Invalid index line: %s", theLine);
+			return new IndexEntry(Long.parseLong(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), parts[3], parts[4]);
+		}
+	}
+
+	/**
+	 * One bundle read from a pack (or from a directory by the staged pipeline in
+	 * {@link BaseFileIterator}). The payload is the gzipped bundle exactly as it
+	 * was in the source file. Whoever ends up holding the entry must call
+	 * {@link #release()} once the payload is no longer needed, so that the reader
+	 * can buffer more entries.
+	 */
+	public static class Entry {
+		private final String myName;
+		private final String myPatientId;
+		private final int myResourceCount;
+		private final int myLength;
+		private final AtomicBoolean myReleased = new AtomicBoolean(false);
+		private byte[] myPayload;
+		private Runnable myReleaseCallback;
+
+		private Entry(String theName, String thePatientId, int theResourceCount, int theLength) {
+			myName = theName;
+			myPatientId = thePatientId;
+			myResourceCount = theResourceCount;
+			myLength = theLength;
+		}
+
+		public String getName() {
+			return myName;
+		}
+
+		public String getPatientId() {
+			return myPatientId;
+		}
+
+		/**
+		 * @return The number of resources in the bundle, not counting the Bundle itself
+		 */
+		public int getResourceCount() {
+			return myResourceCount;
+		}
+
+		public int getLength() {
+			return myLength;
+		}
+
+		public byte[] getPayload() {
+			Validate.validState(myPayload != null, "Payload for %s has not been read or was already released", myName);
+			return myPayload;
+		}
+
+		public void setReleaseCallback(Runnable theReleaseCallback) {
+			myReleaseCallback = theReleaseCallback;
+		}
+
+		public void release() {
+			if (myReleased.compareAndSet(false, true)) {
+				myPayload = null;
+				if (myReleaseCallback != null) {
+					myReleaseCallback.run();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the records of one pack in order. The header of each record is read
+	 * first with {@link #nextEntry()}, and the caller then either reads the payload
+	 * with {@link #readPayload(Entry)} or skips over it with {@link #skipPayload(Entry)}.
+	 */
+	public static class Reader implements Closeable {
+		private final DataInputStream myInput;
+
+		public Reader(File thePack, int theBufferSize) throws IOException {
+			myInput = new DataInputStream(new BufferedInputStream(new FileInputStream(thePack), theBufferSize));
+			byte[] magic = new byte[MAGIC.length];
+			myInput.readFully(magic);
+			Validate.isTrue(Arrays.equals(MAGIC, magic), "Not a pack file: %s", thePack);
+		}
+
+		/**
+		 * @return The header of the next record, or <code>null</code> at the end of the pack
+		 */
+		public Entry nextEntry() throws IOException {
+			int length;
+			try {
+				length = myInput.readInt();
+			} catch (EOFException e) {
+				return null;
+			}
+			int resourceCount = myInput.readInt();
+			String name = myInput.readUTF();
+			String patientId = myInput.readUTF();
+			return new Entry(name, patientId, resourceCount, length);
+		}
+
+		public void readPayload(Entry theEntry) throws IOException {
+			theEntry.myPayload = new byte[theEntry.myLength];
+			myInput.readFully(theEntry.myPayload);
+		}
+
+		public void skipPayload(Entry theEntry) throws IOException {
+			IOUtils.skipFully(myInput, theEntry.myLength);
+		}
+
+		@Override
+		public void close() throws IOException {
+			myInput.close();
+		}
+	}
+
+	/**
+	 * Appends records to a new pack and its index. Not thread safe.
+	 */
+	/**
+	 * Writes one pack and its index, under temporary names until {@link #close()}
+	 */
+	public static class Writer implements Closeable {
+		private final File myPack;
+		private final File myTempPack;
+		private final File myTempIndex;
+		private final CountingOutputStream myCounter;
+		private final DataOutputStream myOutput;
+		private final BufferedWriter myIndex;
+		private int myRecordCount;
+
+		public Writer(File thePack) throws IOException {
+			Validate.isTrue(!thePack.exists(), "Pack already exists: %s", thePack);
+			myPack = thePack;
+			myTempPack = getTempFile(thePack);
+			myTempIndex = getTempFile(getIndexFile(thePack));
+			myCounter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(myTempPack), 1024 * 1024));
+			myOutput = new DataOutputStream(myCounter);
+			myIndex = new BufferedWriter(new FileWriter(myTempIndex, StandardCharsets.UTF_8));
+			myOutput.write(MAGIC);
+		}
+
+		public void append(String theName, String thePatientId, int theResourceCount, byte[] thePayload) throws IOException {
+			Validate.isTrue(isIndexSafe(theName) && isIndexSafe(thePatientId), "Can't pack %s with patient ID %s", theName, thePatientId);
+			long offset = getPosition();
+			myOutput.writeInt(thePayload.length);
+			myOutput.writeInt(theResourceCount);
+			myOutput.writeUTF(theName);
+			myOutput.writeUTF(thePatientId);
+			myOutput.write(thePayload);
+
+			myIndex.write(new IndexEntry(offset, thePayload.length, theResourceCount, thePatientId, theName).format());
+			myIndex.write('\n');
+			myRecordCount++;
+		}
+
+		public long getPosition() {
+			return myCounter.getByteCount();
+		}
+
+		public int getRecordCount() {
+			return myRecordCount;
+		}
+
+		public File getPack() {
+			return myPack;
+		}
+
+		/**
+		 * Renames the index before the pack, since packs are found by their own name.
+		 * An index left without its pack is ignored.
+		 */
+		@Override
+		public void close() throws IOException {
+			myOutput.close();
+			myIndex.close();
+			rename(myTempIndex, getIndexFile(myPack));
+			rename(myTempPack, myPack);
+		}
+
+		private static File getTempFile(File theFile) {
+			return new File(theFile.getAbsolutePath() + ".tmp");
+		}
+
+		private static void rename(File theFrom, File theTo) throws IOException {
+			if (!theFrom.renameTo(theTo)) {
+				throw new IOException("Failed to rename " + theFrom + " to " + theTo);
+			}
+		}
+
+		private static boolean isIndexSafe(String theValue) {
+			return theValue.indexOf('\t') == -1 && theValue.indexOf('\n') == -1;
+		}
+	}
+}
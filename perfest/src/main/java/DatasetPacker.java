@@ -0,0 +1,204 @@
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import com.smilecdr.demo.benchmark2.PartitionStrategy;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Converts a directory of Synthea files into a {@link DatasetPack pack directory},
+ * with the bundles routed to their MegaScale partition up front. The uploaders
+ * read a pack directory anywhere they would read a Synthea directory.
+ * <p>
+ * Each partition's pack is rolled over once it reaches <code>PACK_FILE_MAX_MB</code>
+ * (default 1024). Packing into a directory that already has packs only adds the
+ * files that aren't in it yet.
+ */
+public class DatasetPacker extends BaseFileIterator {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(DatasetPacker.class);
+	private final Set<String> myAlreadyPacked = new HashSet<>();
+	private final AtomicLong myBytesPacked = new AtomicLong(0);
+	private File myPackDir;
+	private int myMegascaleCount;
+	private PartitionStrategy myPartitionStrategy;
+	private long myMaxPackBytes;
+	private PartitionWriter[] myWriters;
+
+	private void run(String[] theArgs) throws Exception {
+		String syntaxMsg = "Syntax: " + DatasetPacker.class.getName() + " [directory containing .gz synthea files] [pack directory] [megascale count] [number of threads]";
+		Validate.isTrue(theArgs.length == 4, syntaxMsg);
+		File sourceDir = new File(theArgs[0]);
+		Validate.isTrue(sourceDir.exists() && sourceDir.isDirectory() && sourceDir.canRead(), "Directory " + theArgs[0] + " does not exist or can't be read");
+		myPackDir = new File(theArgs[1]);
+		myMegascaleCount = Integer.parseInt(theArgs[2]);
+		myPartitionStrategy = PartitionStrategy.fromProperties(myMegascaleCount);
+		int threadCount = Integer.parseInt(theArgs[3]);
+		myMaxPackBytes = PerfTestProperties.getInt("PACK_FILE_MAX_MB", 1024) * FileUtils.ONE_MB;
+
+		int firstSequence = 1;
+		if (DatasetPack.isPackDirectory(myPackDir)) {
+			int existingMegascaleCount = DatasetPack.readMegascaleCount(myPackDir);
+			Validate.isTrue(existingMegascaleCount == myMegascaleCount, "Pack directory %s was built for %s partitions, not %s", myPackDir, existingMegascaleCount, myMegascaleCount);
+			String existingStrategy = DatasetPack.readPartitionStrategy(myPackDir);
+			Validate.isTrue(existingStrategy.equals(myPartitionStrategy.getName()), "Pack directory %s was built with %s partitioning, not %s", myPackDir, existingStrategy, myPartitionStrategy.getName());
+			List<File> existingPacks = DatasetPack.listPacks(myPackDir);
+			for (File next : existingPacks) {
+				DatasetPack.readIndex(next).forEach(t -> myAlreadyPacked.add(t.getName()));
+				firstSequence = Math.max(firstSequence, DatasetPack.getSequence(next) + 1);
+			}
+			ourLog.info("Appending to pack directory {}, which already holds {} bundles in {} packs", myPackDir, myAlreadyPacked.size(), existingPacks.size());
+		} else {
+			FileUtils.forceMkdir(myPackDir);
+			DatasetPack.writeManifest(myPackDir, myMegascaleCount, myPartitionStrategy.getName());
+		}
+
+		myWriters = new PartitionWriter[myMegascaleCount];
+		for (int i = 0; i < myMegascaleCount; i++) {
+			myWriters[i] = new PartitionWriter(i + 1, firstSequence);
+		}
+
+		ourLog.info("Packing {} into {} for {} partitions with {} threads", sourceDir.getAbsolutePath(), myPackDir.getAbsolutePath(), myMegascaleCount, threadCount);
+		processFilesInDirectory(sourceDir, threadCount, 0);
+	}
+
+	@Override
+	protected void handleFile(File theFile, int theResourceCount, int theIndex) {
+		String name = getJournalKey(theFile);
+		if (myAlreadyPacked.contains(name)) {
+			return;
+		}
+
+		try {
+			byte[] payload = readFile(theFile);
+			String patientId;
+			try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(payload), 16 * 1024)) {
+				patientId = PatientIdExtractor.extractPatientId(is);
+			}
+			append(name, patientId, theResourceCount, payload);
+		} catch (IOException e) {
+			throw new InternalErrorException(e);
+		}
+	}
+
+	@Override
+	protected void handlePackEntry(DatasetPack.Entry theEntry, int theIndex) {
+		try {
+			if (!myAlreadyPacked.contains(theEntry.getName())) {
+				append(theEntry.getName(), theEntry.getPatientId(), theEntry.getResourceCount(), theEntry.getPayload());
+			}
+		} catch (IOException e) {
+			throw new InternalErrorException(e);
+		} finally {
+			theEntry.release();
+		}
+	}
+
+	@Override
+	protected boolean isPatientIdNeeded() {
+		return true;
+	}
+
+	/**
+	 * With <code>PIPELINE_MODE=staged</code> the bundle has already been read and
+	 * its patient ID found by the earlier stages
+	 */
+	@Override
+	protected void handleStagedFile(StagedFile theFile, int theIndex) {
+		try {
+			String name = getJournalKey(theFile.getFile());
+			if (!myAlreadyPacked.contains(name)) {
+				append(name, theFile.getPatientId(), theFile.getResourceCount(), theFile.getPayload());
+			}
+		} catch (IOException e) {
+			throw new InternalErrorException(e);
+		} finally {
+			theFile.release();
+		}
+	}
+
+	private void append(String theName, String thePatientId, int theResourceCount, byte[] thePayload) throws IOException {
+		int partition = UploaderDirect.patientIdToPartitionId(thePatientId, myPartitionStrategy);
+		myWriters[partition - 1].append(theName, thePatientId, theResourceCount, thePayload);
+
+		long filesPacked = myFilesUploadedCount.incrementAndGet();
+		myResourcesUploadedCount.addAndGet(theResourceCount);
+		myBytesPacked.addAndGet(thePayload.length);
+		if (filesPacked % 10000 == 0) {
+			ourLog.info("Packed {}/{} files - {} files/sec - EstRemaining: {}", filesPacked, myTotalFiles, (int) mySw.getThroughput(filesPacked, TimeUnit.SECONDS), mySw.getEstimatedTimeRemaining(filesPacked, myTotalFiles));
+		}
+	}
+
+	@Override
+	protected void finishing() throws Exception {
+		for (PartitionWriter next : myWriters) {
+			next.close();
+		}
+		long filesPacked = myFilesUploadedCount.get();
+		double megabytesPerSecond = mySw.getThroughput(myBytesPacked.get(), TimeUnit.SECONDS) / FileUtils.ONE_MB;
+		ourLog.info("Packed {} files with {} resources ({}) in {} - {} files/sec - {} MB/sec", filesPacked, myResourcesUploadedCount.get(), FileUtils.byteCountToDisplaySize(myBytesPacked.get()), mySw, (int) mySw.getThroughput(filesPacked, TimeUnit.SECONDS), String.format("%.1f", megabytesPerSecond));
+	}
+
+	/**
+	 * The open pack for one partition. Workers append to it one record at a time.
+	 */
+	private class PartitionWriter {
+		private final int myPartition;
+		private final ReentrantLock myLock = new ReentrantLock();
+		private int myNextSequence;
+		private DatasetPack.Writer myWriter;
+
+		private PartitionWriter(int thePartition, int theFirstSequence) {
+			myPartition = thePartition;
+			myNextSequence = theFirstSequence;
+		}
+
+		private void append(String theName, String thePatientId, int theResourceCount, byte[] thePayload) throws IOException {
+			myLock.lock();
+			try {
+				if (myWriter != null && myWriter.getPosition() + thePayload.length > myMaxPackBytes) {
+					closeWriter();
+				}
+				if (myWriter == null) {
+					myWriter = new DatasetPack.Writer(DatasetPack.getPackFile(myPackDir, myPartition, myNextSequence++));
+				}
+				myWriter.append(theName, thePatientId, theResourceCount, thePayload);
+			} finally {
+				myLock.unlock();
+			}
+		}
+
+		private void close() throws IOException {
+			myLock.lock();
+			try {
+				if (myWriter != null) {
+					closeWriter();
+				}
+			} finally {
+				myLock.unlock();
+			}
+		}
+
+		private void closeWriter() throws IOException {
+			myWriter.close();
+			ourLog.info("Wrote pack {} with {} bundles ({})", myWriter.getPack().getName(), myWriter.getRecordCount(), FileUtils.byteCountToDisplaySize(myWriter.getPosition()));
+			myWriter = null;
+		}
+	}
+
+	public static void main(String[] theArgs) throws Exception {
+		new DatasetPacker().run(theArgs);
+	}
+}
@@ -0,0 +1,340 @@
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Counts the number of <code>"resourceType"</code> keys in a gzipped Synthea
+ * bundle by scanning the bytes as they come out of the inflater, instead of
+ * decompressing the whole file into a String first.
+ * <p>
+ * Each instance holds a reusable {@link Inflater} and input/output buffers, so
+ * it is not thread safe. Use {@link #countResources(ReadableByteChannel)} to
+ * borrow an instance from a shared pool. The pool is not tied to threads, so
+ * this also works when every file is handled on its own virtual thread.
+ */
+public class GzipResourceCounter {
+
+	private static final byte[] PATTERN = "\"resourceType\"".getBytes(StandardCharsets.US_ASCII);
+	private static final int[] PATTERN_FAILURE = buildFailureTable(PATTERN);
+	private static final Queue<GzipResourceCounter> ourPool = new ConcurrentLinkedQueue<>();
+
+	private static final int GZIP_MAGIC_1 = 0x1f;
+	private static final int GZIP_MAGIC_2 = 0x8b;
+	private static final int GZIP_FLAG_HCRC = 2;
+	private static final int GZIP_FLAG_EXTRA = 4;
+	private static final int GZIP_FLAG_NAME = 8;
+	private static final int GZIP_FLAG_COMMENT = 16;
+	private static final int GZIP_TRAILER_LENGTH = 8;
+
+	private final Inflater myInflater = new Inflater(true);
+	private final byte[] myBuffer = new byte[64 * 1024];
+	private final byte[] myInputBuffer = new byte[64 * 1024];
+	private final ByteBuffer myInputByteBuffer = ByteBuffer.wrap(myInputBuffer);
+
+	private ReadableByteChannel myChannel;
+	private byte[] myInput;
+	private int myInputPos;
+	private int myInputLimit;
+
+	/**
+	 * Returns the number of times <code>"resourceType"</code> appears in the
+	 * decompressed contents of the given gzip data. Concatenated gzip members
+	 * are handled the same way {@link java.util.zip.GZIPInputStream} handles them.
+	 */
+	public int count(byte[] theCompressed, int theOffset, int theLength) throws IOException {
+		myChannel = null;
+		myInput = theCompressed;
+		myInputPos = theOffset;
+		myInputLimit = theOffset + theLength;
+		try {
+			return count();
+		} finally {
+			myInput = null;
+		}
+	}
+
+	public int count(byte[] theCompressed) throws IOException {
+		return count(theCompressed, 0, theCompressed.length);
+	}
+
+	/**
+	 * Same as {@link #count(byte[], int, int)} but reads the compressed data from
+	 * a channel through a fixed size buffer, so the file never needs to be held
+	 * in memory. The channel is not closed.
+	 */
+	public int count(ReadableByteChannel theChannel) throws IOException {
+		myChannel = theChannel;
+		myInput = myInputBuffer;
+		myInputPos = 0;
+		myInputLimit = 0;
+		try {
+			return count();
+		} finally {
+			myChannel = null;
+			myInput = null;
+		}
+	}
+
+	private int count() throws IOException {
+		int matched = 0;
+		int retVal = 0;
+
+		do {
+			skipHeader();
+
+			myInflater.reset();
+			myInflater.setInput(myInput, myInputPos, myInputLimit - myInputPos);
+			try {
+				while (!myInflater.finished()) {
+					int count = myInflater.inflate(myBuffer);
+					if (count == 0) {
+						if (myInflater.needsDictionary()) {
+							throw new ZipException("Unexpected preset dictionary in gzip stream");
+						}
+						if (myInflater.needsInput()) {
+							myInputPos = myInputLimit;
+							if (!fill()) {
+								throw new EOFException("Unexpected end of gzip stream");
+							}
+							myInflater.setInput(myInput, myInputPos, myInputLimit - myInputPos);
+						}
+						continue;
+					}
+
+					for (int i = 0; i < count; i++) {
+						byte next = myBuffer[i];
+						while (matched > 0 && PATTERN[matched] != next) {
+							matched = PATTERN_FAILURE[matched - 1];
+						}
+						if (PATTERN[matched] == next) {
+							matched++;
+						}
+						if (matched == PATTERN.length) {
+							retVal++;
+							matched = PATTERN_FAILURE[matched - 1];
+						}
+					}
+				}
+			} catch (DataFormatException e) {
+				throw new ZipException(e.getMessage());
+			}
+
+			myInputPos = myInputLimit - myInflater.getRemaining();
+			skip(GZIP_TRAILER_LENGTH);
+		} while (hasAnotherMember());
+
+		return retVal;
+	}
+
+	/**
+	 * Skips over a gzip member header (RFC 1952), leaving the input positioned
+	 * at the first byte of deflate data.
+	 */
+	private void skipHeader() throws IOException {
+		if (readByte() != GZIP_MAGIC_1 || readByte() != GZIP_MAGIC_2) {
+			throw new ZipException("Not in GZIP format");
+		}
+		if (readByte() != 8) {
+			throw new ZipException("Unsupported compression method");
+		}
+		int flags = readByte();
+		skip(6);
+
+		if ((flags & GZIP_FLAG_EXTRA) != 0) {
+			int extraLength = readByte() | (readByte() << 8);
+			skip(extraLength);
+		}
+		if ((flags & GZIP_FLAG_NAME) != 0) {
+			while (readByte() != 0) {
+				// skip zero-terminated file name
+			}
+		}
+		if ((flags & GZIP_FLAG_COMMENT) != 0) {
+			while (readByte() != 0) {
+				// skip zero-terminated comment
+			}
+		}
+		if ((flags & GZIP_FLAG_HCRC) != 0) {
+			skip(2);
+		}
+	}
+
+	private boolean hasAnotherMember() throws IOException {
+		if (myInputPos == myInputLimit && !fill()) {
+			return false;
+		}
+		return (myInput[myInputPos] & 0xff) == GZIP_MAGIC_1;
+	}
+
+	private int readByte() throws IOException {
+		if (myInputPos == myInputLimit && !fill()) {
+			throw new EOFException("Unexpected end of gzip header");
+		}
+		return myInput[myInputPos++] & 0xff;
+	}
+
+	private void skip(int theCount) throws IOException {
+		for (int i = 0; i < theCount; i++) {
+			readByte();
+		}
+	}
+
+	/**
+	 * Reads the next chunk from the channel into the input buffer. Returns
+	 * <code>false</code> if there is nothing more to read.
+	 */
+	private boolean fill() throws IOException {
+		if (myChannel == null) {
+			return false;
+		}
+		while (true) {
+			myInputByteBuffer.clear();
+			int read = myChannel.read(myInputByteBuffer);
+			if (read == -1) {
+				return false;
+			}
+			if (read > 0) {
+				myInputPos = 0;
+				myInputLimit = read;
+				return true;
+			}
+		}
+	}
+
+	private static int[] buildFailureTable(byte[] thePattern) {
+		int[] retVal = new int[thePattern.length];
+		int matched = 0;
+		for (int i = 1; i < thePattern.length; i++) {
+			while (matched > 0 && thePattern[i] != thePattern[matched]) {
+				matched = retVal[matched - 1];
+			}
+			if (thePattern[i] == thePattern[matched]) {
+				matched++;
+			}
+			retVal[i] = matched;
+		}
+		return retVal;
+	}
+
+	/**
+	 * Counts the resources in the channel using a pooled counter
+	 */
+	public static int countResources(ReadableByteChannel theChannel) throws IOException {
+		GzipResourceCounter counter = ourPool.poll();
+		if (counter == null) {
+			counter = new GzipResourceCounter();
+		}
+		try {
+			return counter.count(theChannel);
+		} finally {
+			ourPool.offer(counter);
+		}
+	}
+
+	/**
+	 * Counts the resources in gzip data that is already in memory using a pooled counter
+	 */
+	public static int countResources(byte[] theCompressed) throws IOException {
+		GzipResourceCounter counter = ourPool.poll();
+		if (counter == null) {
+			counter = new GzipResourceCounter();
+		}
+		try {
+			return counter.count(theCompressed);
+		} finally {
+			ourPool.offer(counter);
+		}
+	}
+
+	/**
+	 * Counts the <code>"resourceType"</code> keys in the uncompressed bytes read
+	 * through it, so that something else can read the bundle (e.g.
+	 * {@link PatientIdExtractor}) in the same inflation pass. Closing it leaves
+	 * the underlying stream open.
+	 */
+	public static class CountingInputStream extends FilterInputStream {
+		private int myMatched;
+		private int myCount;
+
+		public CountingInputStream(InputStream theInputStream) {
+			super(theInputStream);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int retVal = super.read();
+			if (retVal != -1) {
+				scan((byte) retVal);
+			}
+			return retVal;
+		}
+
+		@Override
+		public int read(byte[] theBuffer, int theOffset, int theLength) throws IOException {
+			int retVal = super.read(theBuffer, theOffset, theLength);
+			for (int i = 0; i < retVal; i++) {
+				scan(theBuffer[theOffset + i]);
+			}
+			return retVal;
+		}
+
+		@Override
+		public long skip(long theCount) throws IOException {
+			byte[] buffer = new byte[(int) Math.min(theCount, 8192)];
+			long retVal = 0;
+			while (retVal < theCount) {
+				int read = read(buffer, 0, (int) Math.min(buffer.length, theCount - retVal));
+				if (read == -1) {
+					break;
+				}
+				retVal += read;
+			}
+			return retVal;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+			// leave the underlying stream open
+		}
+
+		private void scan(byte theNext) {
+			while (myMatched > 0 && PATTERN[myMatched] != theNext) {
+				myMatched = PATTERN_FAILURE[myMatched - 1];
+			}
+			if (PATTERN[myMatched] == theNext) {
+				myMatched++;
+			}
+			if (myMatched == PATTERN.length) {
+				myCount++;
+				myMatched = PATTERN_FAILURE[myMatched - 1];
+			}
+		}
+
+		/**
+		 * Reads whatever is left of the stream
+		 *
+		 * @return The number of <code>"resourceType"</code> keys in the whole stream
+		 */
+		public int finish() throws IOException {
+			byte[] buffer = new byte[16 * 1024];
+			while (read(buffer, 0, buffer.length) != -1) {
+				// just counting
+			}
+			return myCount;
+		}
+	}
+}
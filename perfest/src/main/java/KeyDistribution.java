@@ -0,0 +1,221 @@
+import org.apache.commons.lang3.Validate;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses which entry of a {@link Benchmarker} ID list each request is sent for.
+ * Everything is worked out when the distribution is created, so choosing an ID
+ * is one or two random numbers and an array lookup.
+ * <p>
+ * The skewed distributions rank the IDs in a random order (the same order every
+ * time for a given <code>KEY_SEED</code> and list size), so that the hot IDs are
+ * spread across the MegaScale DBs rather than all coming from the first one.
+ * <ul>
+ *    <li><code>uniform</code> - every ID is equally likely</li>
+ *    <li><code>zipf</code> - the ID ranked <code>k</code> is chosen in proportion to
+ *    <code>1 / k^KEY_ZIPF_EXPONENT</code></li>
+ *    <li><code>hotset</code> - <code>KEY_HOT_SET_FRACTION</code> of the IDs get
+ *    <code>KEY_HOT_ACCESS_FRACTION</code> of the requests</li>
+ *    <li><code>recent</code> - a window of <code>KEY_RECENT_WINDOW_FRACTION</code> of the
+ *    IDs moves through the list once every <code>KEY_RECENT_CYCLE_SECONDS</code>, and
+ *    IDs are chosen from it by Zipf on how recently they entered the window</li>
+ * </ul>
+ */
+public abstract class KeyDistribution {
+
+	public static final String UNIFORM = "uniform";
+	public static final String ZIPF = "zipf";
+	public static final String HOT_SET = "hotset";
+	public static final String RECENT = "recent";
+
+	/**
+	 * @return An index between 0 (inclusive) and the list size (exclusive)
+	 */
+	public abstract int nextIndex(ThreadLocalRandom theRandom);
+
+	/**
+	 * Creates the distribution named by <code>KEY_DISTRIBUTION_[operation]</code>, or
+	 * if that isn't set, <code>KEY_DISTRIBUTION</code> (default uniform)
+	 */
+	public static KeyDistribution forOperation(String theOperationName, int theSize) {
+		String defaultName = PerfTestProperties.getString("KEY_DISTRIBUTION", UNIFORM);
+		String name = PerfTestProperties.getString("KEY_DISTRIBUTION_" + theOperationName.toUpperCase(), defaultName);
+		return create(name, theSize);
+	}
+
+	public static KeyDistribution create(String theName, int theSize) {
+		if (UNIFORM.equals(theName) || theSize == 0) {
+			return new Uniform(theSize);
+		}
+
+		int[] order = shuffledOrder(theSize, PerfTestProperties.getInt("KEY_SEED", 1));
+		switch (theName) {
+			case ZIPF: {
+				double exponent = PerfTestProperties.getDouble("KEY_ZIPF_EXPONENT", 0.99);
+				return new Ranked(order, new AliasTable(zipfWeights(theSize, exponent)));
+			}
+			case HOT_SET: {
+				double hotFraction = PerfTestProperties.getDouble("KEY_HOT_SET_FRACTION", 0.2);
+				double accessFraction = PerfTestProperties.getDouble("KEY_HOT_ACCESS_FRACTION", 0.8);
+				Validate.isTrue(hotFraction > 0 && hotFraction < 1, "KEY_HOT_SET_FRACTION must be between 0 and 1");
+				Validate.isTrue(accessFraction >= 0 && accessFraction <= 1, "KEY_HOT_ACCESS_FRACTION must be between 0 and 1");
+				int hotCount = Math.max(1, (int) (theSize * hotFraction));
+				double[] weights = new double[theSize];
+				for (int i = 0; i < theSize; i++) {
+					weights[i] = i < hotCount ? accessFraction / hotCount : (1 - accessFraction) / Math.max(1, theSize - hotCount);
+				}
+				return new Ranked(order, new AliasTable(weights));
+			}
+			case RECENT: {
+				double windowFraction = PerfTestProperties.getDouble("KEY_RECENT_WINDOW_FRACTION", 0.1);
+				Validate.isTrue(windowFraction > 0 && windowFraction <= 1, "KEY_RECENT_WINDOW_FRACTION must be between 0 and 1");
+				int window = Math.max(1, (int) (theSize * windowFraction));
+				double exponent = PerfTestProperties.getDouble("KEY_ZIPF_EXPONENT", 0.99);
+				long cycleNanos = TimeUnit.SECONDS.toNanos(PerfTestProperties.getInt("KEY_RECENT_CYCLE_SECONDS", 600));
+				Validate.isTrue(cycleNanos > 0, "KEY_RECENT_CYCLE_SECONDS must be positive");
+				return new Recent(order, new AliasTable(zipfWeights(window, exponent)), cycleNanos);
+			}
+			default:
+				throw new IllegalArgumentException("Unknown key distribution: " + theName + " (valid names are " + UNIFORM + ", " + ZIPF + ", " + HOT_SET + ", " + RECENT + ")");
+		}
+	}
+
+	private static double[] zipfWeights(int theSize, double theExponent) {
+		Validate.isTrue(theExponent >= 0, "KEY_ZIPF_EXPONENT must not be negative");
+		double[] retVal = new double[theSize];
+		for (int i = 0; i < theSize; i++) {
+			retVal[i] = 1.0 / Math.pow(i + 1, theExponent);
+		}
+		return retVal;
+	}
+
+	private static int[] shuffledOrder(int theSize, long theSeed) {
+		int[] retVal = new int[theSize];
+		for (int i = 0; i < theSize; i++) {
+			retVal[i] = i;
+		}
+		Random random = new Random(theSeed);
+		for (int i = theSize - 1; i > 0; i--) {
+			int swap = random.nextInt(i + 1);
+			int value = retVal[i];
+			retVal[i] = retVal[swap];
+			retVal[swap] = value;
+		}
+		return retVal;
+	}
+
+	private static class Uniform extends KeyDistribution {
+		private final int mySize;
+
+		private Uniform(int theSize) {
+			mySize = theSize;
+		}
+
+		@Override
+		public int nextIndex(ThreadLocalRandom theRandom) {
+			return theRandom.nextInt(mySize);
+		}
+	}
+
+	/**
+	 * Chooses a rank from the table, and returns the ID with that rank
+	 */
+	private static class Ranked extends KeyDistribution {
+		private final int[] myOrder;
+		private final AliasTable myRanks;
+
+		private Ranked(int[] theOrder, AliasTable theRanks) {
+			myOrder = theOrder;
+			myRanks = theRanks;
+		}
+
+		@Override
+		public int nextIndex(ThreadLocalRandom theRandom) {
+			return myOrder[myRanks.next(theRandom)];
+		}
+	}
+
+	/**
+	 * Rank 0 is the ID that entered the window last
+	 */
+	private static class Recent extends KeyDistribution {
+		private final int[] myOrder;
+		private final AliasTable myRanks;
+		private final long myCycleNanos;
+		private final long myStartNanos = System.nanoTime();
+
+		private Recent(int[] theOrder, AliasTable theRanks, long theCycleNanos) {
+			myOrder = theOrder;
+			myRanks = theRanks;
+			myCycleNanos = theCycleNanos;
+		}
+
+		@Override
+		public int nextIndex(ThreadLocalRandom theRandom) {
+			long intoCycle = (System.nanoTime() - myStartNanos) % myCycleNanos;
+			int head = (int) ((double) intoCycle / myCycleNanos * myOrder.length);
+			return myOrder[Math.floorMod(head - myRanks.next(theRandom), myOrder.length)];
+		}
+	}
+
+	/**
+	 * Vose's alias method: any discrete distribution can be sampled with one
+	 * random index and one random double
+	 */
+	private static class AliasTable {
+		private final double[] myProbability;
+		private final int[] myAlias;
+
+		private AliasTable(double[] theWeights) {
+			int size = theWeights.length;
+			double total = 0;
+			for (double next : theWeights) {
+				total += next;
+			}
+			Validate.isTrue(total > 0, "Key distribution weights must not all be 0");
+
+			myProbability = new double[size];
+			myAlias = new int[size];
+			double[] scaled = new double[size];
+			int[] small = new int[size];
+			int[] large = new int[size];
+			int smallCount = 0;
+			int largeCount = 0;
+			for (int i = 0; i < size; i++) {
+				scaled[i] = theWeights[i] * size / total;
+				if (scaled[i] < 1) {
+					small[smallCount++] = i;
+				} else {
+					large[largeCount++] = i;
+				}
+			}
+
+			while (smallCount > 0 && largeCount > 0) {
+				int less = small[--smallCount];
+				int more = large[--largeCount];
+				myProbability[less] = scaled[less];
+				myAlias[less] = more;
+				scaled[more] = scaled[more] + scaled[less] - 1;
+				if (scaled[more] < 1) {
+					small[smallCount++] = more;
+				} else {
+					large[largeCount++] = more;
+				}
+			}
+			// Whatever is left over is 1 give or take rounding
+			while (largeCount > 0) {
+				myProbability[large[--largeCount]] = 1;
+			}
+			while (smallCount > 0) {
+				myProbability[small[--smallCount]] = 1;
+			}
+		}
+
+		private int next(ThreadLocalRandom theRandom) {
+			int index = theRandom.nextInt(myProbability.length);
+			return theRandom.nextDouble() < myProbability[index] ? index : myAlias[index];
+		}
+	}
+}
@@ -0,0 +1,122 @@
+import org.HdrHistogram.EncodableHistogram;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogReader;
+import org.HdrHistogram.HistogramLogWriter;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Merges the interval latency logs written by {@link Benchmarker} (see
+ * <code>LATENCY_LOG_FILE</code>) from several runs or several workers into one
+ * log, and prints the overall percentiles for each tag.
+ * <p>
+ * Intervals are lined up by wall clock time, in buckets of
+ * <code>LATENCY_MERGE_INTERVAL_SECONDS</code> (default 1), so logs from workers
+ * that ran side by side merge into the latency the whole fleet saw at each point
+ * in the run.
+ */
+public class LatencyLogMerger {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(LatencyLogMerger.class);
+
+	private final Map<String, TreeMap<Long, Histogram>> myBuckets = new TreeMap<>();
+	private final Map<String, Histogram> myTotals = new TreeMap<>();
+	private long myBucketMillis;
+
+	private void run(String[] theArgs) throws Exception {
+		String syntaxMsg = "Syntax: " + LatencyLogMerger.class.getName() + " [output .hlog file] [input .hlog file]...";
+		Validate.isTrue(theArgs.length >= 2, syntaxMsg);
+		File outputFile = new File(theArgs[0]);
+		myBucketMillis = PerfTestProperties.getInt("LATENCY_MERGE_INTERVAL_SECONDS", 1) * 1000L;
+		Validate.isTrue(myBucketMillis > 0, "LATENCY_MERGE_INTERVAL_SECONDS must be positive");
+
+		for (int i = 1; i < theArgs.length; i++) {
+			File inputFile = new File(theArgs[i]);
+			Validate.isTrue(inputFile.exists() && inputFile.canRead(), "File " + theArgs[i] + " does not exist or can't be read");
+			readLog(inputFile);
+		}
+		Validate.isTrue(!myTotals.isEmpty(), "No interval histograms found in the input files");
+
+		writeLog(outputFile);
+
+		for (Map.Entry<String, Histogram> next : myTotals.entrySet()) {
+			ourLog.info("{}: {} requests - {}", next.getKey(), next.getValue().getTotalCount(), LatencyRecorder.describe(next.getValue()));
+		}
+	}
+
+	private void readLog(File theFile) throws Exception {
+		int count = 0;
+		try (HistogramLogReader reader = new HistogramLogReader(theFile)) {
+			EncodableHistogram next;
+			while ((next = reader.nextIntervalHistogram()) != null) {
+				Validate.isTrue(next instanceof Histogram, "File %s contains a histogram of type %s, only integer histograms are supported", theFile, next.getClass().getSimpleName());
+				Histogram histogram = (Histogram) next;
+				String tag = histogram.getTag() != null ? histogram.getTag() : "untagged";
+
+				long bucketStart = histogram.getStartTimeStamp() - (histogram.getStartTimeStamp() % myBucketMillis);
+				Histogram bucket = myBuckets
+					.computeIfAbsent(tag, t -> new TreeMap<>())
+					.computeIfAbsent(bucketStart, t -> newHistogram(tag, bucketStart));
+				bucket.add(histogram);
+				myTotals.computeIfAbsent(tag, t -> newHistogram(tag, 0)).add(histogram);
+				count++;
+			}
+		}
+		ourLog.info("Read {} interval histograms from {}", count, theFile);
+	}
+
+	private void writeLog(File theFile) throws Exception {
+		long baseTime = myBuckets
+			.values()
+			.stream()
+			.mapToLong(TreeMap::firstKey)
+			.min()
+			.orElse(0);
+
+		// The log is written in time order, with the tags interleaved the way
+		// Benchmarker writes them
+		TreeMap<Long, Map<String, Histogram>> byTime = new TreeMap<>();
+		for (Map.Entry<String, TreeMap<Long, Histogram>> nextTag : myBuckets.entrySet()) {
+			for (Map.Entry<Long, Histogram> next : nextTag.getValue().entrySet()) {
+				byTime.computeIfAbsent(next.getKey(), t -> new TreeMap<>()).put(nextTag.getKey(), next.getValue());
+			}
+		}
+
+		HistogramLogWriter writer = new HistogramLogWriter(theFile);
+		try {
+			writer.outputComment("Merged by " + LatencyLogMerger.class.getSimpleName());
+			writer.outputLogFormatVersion();
+			writer.outputStartTime(baseTime);
+			writer.setBaseTime(baseTime);
+			writer.outputBaseTime(baseTime);
+			writer.outputLegend();
+			int count = 0;
+			for (Map<String, Histogram> nextTime : byTime.values()) {
+				for (Histogram next : nextTime.values()) {
+					writer.outputIntervalHistogram(next);
+					count++;
+				}
+			}
+			ourLog.info("Wrote {} merged interval histograms to {}", count, theFile);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private Histogram newHistogram(String theTag, long theStartTime) {
+		Histogram retVal = new Histogram(3);
+		retVal.setTag(theTag);
+		retVal.setStartTimeStamp(theStartTime);
+		retVal.setEndTimeStamp(theStartTime + myBucketMillis);
+		return retVal;
+	}
+
+	public static void main(String[] theArgs) throws Exception {
+		new LatencyLogMerger().run(theArgs);
+	}
+}
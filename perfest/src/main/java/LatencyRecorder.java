@@ -0,0 +1,172 @@
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+/**
+ * Records the latency of one kind of request, in nanoseconds and without sampling,
+ * using HdrHistogram. Two histograms are kept:
+ * <ul>
+ *    <li><b>response time</b> - from when the request should have been sent until
+ *    the response came back. This is the number a user of the server would see, and
+ *    is corrected for coordinated omission (see below).</li>
+ *    <li><b>service time</b> - from when the request was actually sent until the
+ *    response came back. This is what the old sliding-window histograms measured.</li>
+ * </ul>
+ * A closed-loop client only sends its next request once the previous one has
+ * finished, so while the server stalls it simply stops sending, and the requests it
+ * would have sent are never measured. Two things compensate for that: callers pass
+ * the time the request was due to go out (not when it got a thread), and each
+ * response time is recorded with an expected interval, which makes HdrHistogram
+ * back-fill the samples the stall swallowed. The expected interval is
+ * <code>LATENCY_EXPECTED_INTERVAL_MILLIS</code> if that is set, and otherwise the
+ * median service time of the previous interval.
+ * <p>
+ * An open-model client keeps sending on schedule while the server stalls, so it
+ * only needs the intended start times, and the back-fill is turned off.
+ */
+public class LatencyRecorder {
+
+	private static final int SIGNIFICANT_DIGITS = 3;
+
+	private final String myName;
+	private final Recorder myResponseRecorder = new Recorder(SIGNIFICANT_DIGITS);
+	private final Recorder myServiceRecorder = new Recorder(SIGNIFICANT_DIGITS);
+	private final Histogram myResponseTotal = new Histogram(SIGNIFICANT_DIGITS);
+	private final Histogram myServiceTotal = new Histogram(SIGNIFICANT_DIGITS);
+	private final Histogram myRemoteResponse = new Histogram(SIGNIFICANT_DIGITS);
+	private final Histogram myRemoteService = new Histogram(SIGNIFICANT_DIGITS);
+	private final boolean myBackFill;
+	private final long myFixedExpectedIntervalNanos;
+	private volatile long myExpectedIntervalNanos;
+	private Histogram myResponseInterval;
+	private Histogram myServiceInterval;
+
+	/**
+	 * @param theBackFill Should response times be back-filled for requests a closed-loop client didn't send
+	 */
+	public LatencyRecorder(String theName, boolean theBackFill) {
+		myName = theName;
+		myBackFill = theBackFill;
+		myFixedExpectedIntervalNanos = TimeUnit.MILLISECONDS.toNanos(PerfTestProperties.getInt("LATENCY_EXPECTED_INTERVAL_MILLIS", 0));
+		myExpectedIntervalNanos = myFixedExpectedIntervalNanos;
+		myResponseInterval = myResponseRecorder.getIntervalHistogram();
+		myServiceInterval = myServiceRecorder.getIntervalHistogram();
+	}
+
+	public String getName() {
+		return myName;
+	}
+
+	/**
+	 * @param theIntendedStartNanos The {@link System#nanoTime()} at which the request was due to be sent
+	 * @param theStartNanos         The {@link System#nanoTime()} at which the request was actually sent
+	 * @param theEndNanos           The {@link System#nanoTime()} at which the response was complete
+	 */
+	public void record(long theIntendedStartNanos, long theStartNanos, long theEndNanos) {
+		long intendedStart = Math.min(theIntendedStartNanos, theStartNanos);
+		myServiceRecorder.recordValue(theEndNanos - theStartNanos);
+		if (myBackFill) {
+			myResponseRecorder.recordValueWithExpectedInterval(theEndNanos - intendedStart, myExpectedIntervalNanos);
+		} else {
+			myResponseRecorder.recordValue(theEndNanos - intendedStart);
+		}
+	}
+
+	/**
+	 * Closes the current interval and starts a new one. The closed interval is then
+	 * available from {@link #getResponseInterval()} and {@link #getServiceInterval()}
+	 * until the next call. This should only be called from one thread.
+	 */
+	public synchronized void sampleInterval() {
+		myResponseInterval = myResponseRecorder.getIntervalHistogram(myResponseInterval);
+		myServiceInterval = myServiceRecorder.getIntervalHistogram(myServiceInterval);
+		if (myRemoteResponse.getTotalCount() > 0 || myRemoteService.getTotalCount() > 0) {
+			myResponseInterval.add(myRemoteResponse);
+			myServiceInterval.add(myRemoteService);
+			myRemoteResponse.reset();
+			myRemoteService.reset();
+		}
+		myResponseTotal.add(myResponseInterval);
+		myServiceTotal.add(myServiceInterval);
+
+		if (myFixedExpectedIntervalNanos == 0 && myServiceInterval.getTotalCount() > 0) {
+			myExpectedIntervalNanos = myServiceInterval.getValueAtPercentile(50.0);
+		}
+	}
+
+	/**
+	 * Adds histograms recorded somewhere else, such as by a {@link BenchmarkWorker},
+	 * to the current interval. These are already corrected, so nothing is back-filled.
+	 */
+	public synchronized void addRemoteInterval(Histogram theResponse, Histogram theService) {
+		myRemoteResponse.add(theResponse);
+		myRemoteService.add(theService);
+	}
+
+	public Histogram getResponseInterval() {
+		return myResponseInterval;
+	}
+
+	public Histogram getServiceInterval() {
+		return myServiceInterval;
+	}
+
+	public synchronized Histogram getResponseTotal() {
+		return myResponseTotal.copy();
+	}
+
+	public synchronized Histogram getServiceTotal() {
+		return myServiceTotal.copy();
+	}
+
+	/**
+	 * Writes the interval closed by the last {@link #sampleInterval()}, tagged with
+	 * the name of this recorder (response time) and the name followed by
+	 * <code>-service</code> (service time)
+	 */
+	public synchronized void writeInterval(HistogramLogWriter theWriter) {
+		myResponseInterval.setTag(myName);
+		theWriter.outputIntervalHistogram(myResponseInterval);
+		myServiceInterval.setTag(myName + "-service");
+		theWriter.outputIntervalHistogram(myServiceInterval);
+	}
+
+	/**
+	 * @return The histogram in HdrHistogram's compressed form, Base64 encoded
+	 */
+	public static String encode(Histogram theHistogram) {
+		ByteBuffer buffer = ByteBuffer.allocate(theHistogram.getNeededByteBufferCapacity());
+		int length = theHistogram.encodeIntoCompressedByteBuffer(buffer);
+		return Base64.getEncoder().encodeToString(Arrays.copyOf(buffer.array(), length));
+	}
+
+	public static Histogram decode(String theEncoded) throws DataFormatException {
+		return Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(Base64.getDecoder().decode(theEncoded)), 0);
+	}
+
+	public static long toMillis(double theNanos) {
+		return Math.round(theNanos / 1_000_000.0);
+	}
+
+	public static long percentileMillis(Histogram theHistogram, double thePercentile) {
+		return toMillis(theHistogram.getValueAtPercentile(thePercentile));
+	}
+
+	/**
+	 * @return The histogram as "Avg / p50 / p90 / p99 / p99.9 / Max", in milliseconds
+	 */
+	public static String describe(Histogram theHistogram) {
+		return "Avg " + toMillis(theHistogram.getMean()) + "ms" +
+			" / p50 " + percentileMillis(theHistogram, 50.0) + "ms" +
+			" / p90 " + percentileMillis(theHistogram, 90.0) + "ms" +
+			" / p99 " + percentileMillis(theHistogram, 99.0) + "ms" +
+			" / p99.9 " + percentileMillis(theHistogram, 99.9) + "ms" +
+			" / Max " + toMillis(theHistogram.getMaxValue()) + "ms";
+	}
+}
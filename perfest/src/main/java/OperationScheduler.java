@@ -0,0 +1,258 @@
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+/**
+ * Runs a weighted mix of {@link Operation operations} on one shared pool of workers.
+ * <p>
+ * In the closed model each worker loops, picking an operation at random by weight
+ * and sending it as soon as its previous request has finished. In the open model a
+ * single scheduling thread sends each operation at its own arrival rate and hands
+ * the requests to the workers, dropping any that would need more workers than
+ * there are.
+ * <p>
+ * {@link #addWorkers(int)} starts more closed-loop workers, or in the open model
+ * scales the arrival rates up by the same proportion, which is how ramp-up works.
+ */
+public class OperationScheduler {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(OperationScheduler.class);
+
+	private final List<Operation> myOperations;
+	private final int[] myCumulativeWeights;
+	private final int myMaxWorkerCount;
+	private final boolean myOpenModel;
+	private final long myLateThresholdNanos;
+	private final ExecutorService myWorkerPool;
+	private final Semaphore myInFlight;
+	private final AtomicInteger myActiveWorkerCount = new AtomicInteger(0);
+
+	/**
+	 * @param theOperations         The operations to run, with their weights (and in the open model, their arrival rates) already set
+	 * @param theMaxWorkerCount     The most requests that will be in flight at once
+	 * @param theOpenModel          Send at the operations' arrival rates instead of looping
+	 * @param theLateThresholdNanos In the open model, sends that go out more than this long after their scheduled time are counted as late
+	 */
+	public OperationScheduler(List<Operation> theOperations, int theMaxWorkerCount, boolean theOpenModel, long theLateThresholdNanos) {
+		myOpenModel = theOpenModel;
+		myMaxWorkerCount = theMaxWorkerCount;
+		myLateThresholdNanos = theLateThresholdNanos;
+		if (theOpenModel) {
+			myOperations = theOperations.stream().filter(t -> t.getArrivalRate() > 0).collect(Collectors.toList());
+			Validate.isTrue(!myOperations.isEmpty(), "No operation has an arrival rate above 0");
+		} else {
+			myOperations = theOperations.stream().filter(t -> t.getWeight() > 0).collect(Collectors.toList());
+			Validate.isTrue(!myOperations.isEmpty(), "No operation has a weight above 0");
+		}
+
+		myCumulativeWeights = new int[myOperations.size()];
+		int totalWeight = 0;
+		for (int i = 0; i < myOperations.size(); i++) {
+			totalWeight += myOperations.get(i).getWeight();
+			myCumulativeWeights[i] = totalWeight;
+		}
+
+		myWorkerPool = PerfTestExecutors.newExecutor(theMaxWorkerCount, "worker-", theMaxWorkerCount);
+		myInFlight = new Semaphore(theMaxWorkerCount);
+	}
+
+	public int getActiveWorkerCount() {
+		return myActiveWorkerCount.get();
+	}
+
+	/**
+	 * Adds workers, up to the maximum
+	 */
+	public void addWorkers(int theCount) {
+		int count = Math.min(theCount, myMaxWorkerCount - myActiveWorkerCount.get());
+		if (count <= 0) {
+			return;
+		}
+		myActiveWorkerCount.addAndGet(count);
+		if (!myOpenModel) {
+			long now = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				myWorkerPool.execute(new ClosedLoopWorker(now));
+			}
+		}
+	}
+
+	/**
+	 * Starts the open model scheduling thread. Closed-loop workers start as they are added.
+	 */
+	public void start() {
+		if (myOpenModel) {
+			for (Operation next : myOperations) {
+				ourLog.info("{} requests will be sent at {}/sec", next.getName(), next.getArrivalRate());
+			}
+			new Thread(this::runOpenModel, "arrivals").start();
+		}
+	}
+
+	/**
+	 * @return An operation picked at random by weight
+	 */
+	private Operation pickOperation() {
+		int value = ThreadLocalRandom.current().nextInt(myCumulativeWeights[myCumulativeWeights.length - 1]);
+		for (int i = 0; i < myCumulativeWeights.length; i++) {
+			if (value < myCumulativeWeights[i]) {
+				return myOperations.get(i);
+			}
+		}
+		throw new IllegalStateException();
+	}
+
+	/**
+	 * Sends whichever operation is due next. Each operation is due one interval after
+	 * it was last due, rather than after it actually went out, so a stall in this
+	 * thread is caught up on afterwards instead of lowering the rate. Requests are
+	 * timed from when they were due, so the time spent catching up shows as latency.
+	 */
+	@SuppressWarnings("InfiniteLoopStatement")
+	private void runOpenModel() {
+		long[] nextDue = new long[myOperations.size()];
+		long start = System.nanoTime();
+		for (int i = 0; i < nextDue.length; i++) {
+			nextDue[i] = start;
+		}
+
+		while (true) {
+			int index = 0;
+			for (int i = 1; i < nextDue.length; i++) {
+				if (nextDue[i] < nextDue[index]) {
+					index = i;
+				}
+			}
+			Operation operation = myOperations.get(index);
+			long due = nextDue[index];
+
+			long now;
+			while ((now = System.nanoTime()) < due) {
+				LockSupport.parkNanos(due - now);
+			}
+			if (now - due > myLateThresholdNanos) {
+				operation.myLateCount.incrementAndGet();
+			}
+
+			double rate = operation.getArrivalRate() * Math.max(1, myActiveWorkerCount.get()) / myMaxWorkerCount;
+			nextDue[index] = due + (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+
+			if (!myInFlight.tryAcquire()) {
+				operation.myDroppedCount.incrementAndGet();
+				continue;
+			}
+			try {
+				myWorkerPool.execute(() -> {
+					try {
+						operation.execute(due);
+					} finally {
+						myInFlight.release();
+					}
+				});
+			} catch (RuntimeException e) {
+				myInFlight.release();
+				throw e;
+			}
+		}
+	}
+
+	private class ClosedLoopWorker implements Runnable {
+		private long myIntendedStartNanos;
+
+		private ClosedLoopWorker(long theIntendedStartNanos) {
+			myIntendedStartNanos = theIntendedStartNanos;
+		}
+
+		/**
+		 * A closed-loop client intends to send its next request as soon as the
+		 * previous one is finished
+		 */
+		@SuppressWarnings("InfiniteLoopStatement")
+		@Override
+		public void run() {
+			while (true) {
+				Operation operation = pickOperation();
+				try {
+					operation.execute(myIntendedStartNanos);
+				} catch (RuntimeException e) {
+					ourLog.error("Failure running {} operation", operation.getName(), e);
+				}
+				myIntendedStartNanos = System.nanoTime();
+			}
+		}
+	}
+
+	/**
+	 * One kind of request in the mix
+	 */
+	public abstract static class Operation {
+		private final String myName;
+		private final AtomicLong myLateCount = new AtomicLong(0);
+		private final AtomicLong myDroppedCount = new AtomicLong(0);
+		private int myWeight = 1;
+		private double myArrivalRate;
+
+		protected Operation(String theName) {
+			myName = theName;
+		}
+
+		public String getName() {
+			return myName;
+		}
+
+		public int getWeight() {
+			return myWeight;
+		}
+
+		public void setWeight(int theWeight) {
+			Validate.isTrue(theWeight >= 0, "Weight for %s must not be negative", myName);
+			myWeight = theWeight;
+		}
+
+		/**
+		 * @return The requests/sec to send in the open model
+		 */
+		public double getArrivalRate() {
+			return myArrivalRate;
+		}
+
+		public void setArrivalRate(double theArrivalRate) {
+			myArrivalRate = theArrivalRate;
+		}
+
+		public long getLateCount() {
+			return myLateCount.get();
+		}
+
+		public long getDroppedCount() {
+			return myDroppedCount.get();
+		}
+
+		/**
+		 * Adds late and dropped sends counted somewhere else, such as by a {@link BenchmarkWorker}
+		 */
+		public void addArrivals(long theLateCount, long theDroppedCount) {
+			myLateCount.addAndGet(theLateCount);
+			myDroppedCount.addAndGet(theDroppedCount);
+		}
+
+		public String describeArrivals() {
+			return myLateCount.get() + "/" + myDroppedCount.get();
+		}
+
+		/**
+		 * @param theIntendedStartNanos The {@link System#nanoTime()} at which the request was due to be sent
+		 */
+		protected abstract void execute(long theIntendedStartNanos);
+	}
+}
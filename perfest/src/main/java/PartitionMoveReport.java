@@ -0,0 +1,163 @@
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import com.smilecdr.demo.benchmark2.PartitionStrategy;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Reports which patients in a Synthea or pack directory would move to a different
+ * MegaScale DB if the partitioning changed, for example when adding a DB. The current
+ * partitioning is set the usual way (<code>PARTITION_STRATEGY</code> and
+ * <code>PARTITION_WEIGHTS</code>). The new partitioning uses the same strategy
+ * unless <code>NEW_PARTITION_STRATEGY</code> and <code>NEW_PARTITION_WEIGHTS</code>
+ * are set, so this can also show the cost of moving from one strategy to another.
+ * <p>
+ * Every moved patient is written to the optional output file as
+ * <code>patientId,fromPartition,toPartition,resourceCount</code>.
+ */
+public class PartitionMoveReport extends BaseFileIterator {
+	private static final Logger ourLog = LoggerFactory.getLogger(PartitionMoveReport.class);
+	private final AtomicLong myMovedPatientCount = new AtomicLong(0);
+	private final AtomicLong myMovedResourceCount = new AtomicLong(0);
+	private PartitionStrategy myCurrentStrategy;
+	private PartitionStrategy myNewStrategy;
+	/**
+	 * Patients moved from partition <code>a</code> to <code>b</code>, at <code>a * (new count + 1) + b</code>
+	 */
+	private AtomicLongArray myMoves;
+	private Writer myOutput;
+
+	private void run(String[] theArgs) throws Exception {
+		String syntaxMsg = "Syntax: " + PartitionMoveReport.class.getName() + " [directory containing .gz synthea files, or pack directory] [current megascale count] [new megascale count] [number of threads] [output file (optional)]";
+		Validate.isTrue(theArgs.length == 4 || theArgs.length == 5, syntaxMsg);
+		File sourceDir = new File(theArgs[0]);
+		Validate.isTrue(sourceDir.exists() && sourceDir.isDirectory() && sourceDir.canRead(), "Directory " + theArgs[0] + " does not exist or can't be read");
+		int currentCount = Integer.parseInt(theArgs[1]);
+		int newCount = Integer.parseInt(theArgs[2]);
+		int threadCount = Integer.parseInt(theArgs[3]);
+
+		myCurrentStrategy = PartitionStrategy.fromProperties(currentCount);
+		String newStrategyName = PerfTestProperties.getString("NEW_PARTITION_STRATEGY", myCurrentStrategy.getName());
+		String newWeights = PerfTestProperties.getString("NEW_PARTITION_WEIGHTS", null);
+		myNewStrategy = PartitionStrategy.create(newStrategyName, newCount, newWeights != null ? PartitionStrategy.parseWeights(newWeights) : null);
+		myMoves = new AtomicLongArray((currentCount + 1) * (newCount + 1));
+
+		if (theArgs.length == 5) {
+			myOutput = new BufferedWriter(new FileWriter(theArgs[4], StandardCharsets.UTF_8));
+			myOutput.write("patientId,fromPartition,toPartition,resourceCount\n");
+		}
+
+		ourLog.info("Comparing {} partitioning over {} DBs with {} partitioning over {} DBs", myCurrentStrategy.getName(), currentCount, myNewStrategy.getName(), newCount);
+		try {
+			processFilesInDirectory(sourceDir, threadCount, 0);
+		} finally {
+			if (myOutput != null) {
+				myOutput.close();
+			}
+		}
+	}
+
+	@Override
+	protected void handleFile(File theFile, int theResourceCount, int theIndex) {
+		try {
+			check(PatientIdExtractor.extractPatientId(theFile), theResourceCount);
+		} catch (IOException e) {
+			throw new InternalErrorException("Failed to process file " + theFile.getName(), e);
+		}
+	}
+
+	@Override
+	protected boolean isPatientIdNeeded() {
+		return true;
+	}
+
+	@Override
+	protected void handleStagedFile(StagedFile theFile, int theIndex) {
+		try {
+			check(theFile.getPatientId(), theFile.getResourceCount());
+		} catch (IOException e) {
+			throw new InternalErrorException("Failed to process file " + theFile.getFile().getName(), e);
+		} finally {
+			theFile.release();
+		}
+	}
+
+	@Override
+	protected void handlePackEntry(DatasetPack.Entry theEntry, int theIndex) {
+		try {
+			check(theEntry.getPatientId(), theEntry.getResourceCount());
+		} catch (IOException e) {
+			throw new InternalErrorException("Failed to process " + theEntry.getName(), e);
+		} finally {
+			theEntry.release();
+		}
+	}
+
+	private void check(String thePatientId, int theResourceCount) throws IOException {
+		int from = UploaderDirect.patientIdToPartitionId(thePatientId, myCurrentStrategy);
+		int to = UploaderDirect.patientIdToPartitionId(thePatientId, myNewStrategy);
+		myMoves.incrementAndGet(from * (myNewStrategy.getPartitionCount() + 1) + to);
+		myResourcesUploadedCount.addAndGet(theResourceCount);
+
+		if (from != to) {
+			myMovedPatientCount.incrementAndGet();
+			myMovedResourceCount.addAndGet(theResourceCount);
+			if (myOutput != null) {
+				synchronized (myOutput) {
+					myOutput.write(thePatientId + "," + from + "," + to + "," + theResourceCount + "\n");
+				}
+			}
+		}
+
+		long checked = myFilesUploadedCount.incrementAndGet();
+		if (checked % 10000 == 0) {
+			ourLog.info("Checked {} patients - {} would move", checked, myMovedPatientCount.get());
+		}
+	}
+
+	@Override
+	protected void finishing() throws Exception {
+		long patients = myFilesUploadedCount.get();
+		long resources = myResourcesUploadedCount.get();
+		ourLog.info("Checked {} patients in {}", patients, mySw);
+		ourLog.info("{} patients ({}%) and {} resources ({}%) would move", myMovedPatientCount.get(), percent(myMovedPatientCount.get(), patients), myMovedResourceCount.get(), percent(myMovedResourceCount.get(), resources));
+
+		int newCount = myNewStrategy.getPartitionCount();
+		for (int from = 1; from <= myCurrentStrategy.getPartitionCount(); from++) {
+			StringBuilder line = new StringBuilder();
+			long total = 0;
+			for (int to = 1; to <= newCount; to++) {
+				long count = myMoves.get(from * (newCount + 1) + to);
+				total += count;
+				if (to != from && count > 0) {
+					line.append(" MS").append(to).append('=').append(count);
+				}
+			}
+			ourLog.info(" * MS{} has {} patients, moving:{}", from, total, line.length() > 0 ? line : " none");
+		}
+		for (int to = 1; to <= newCount; to++) {
+			long total = 0;
+			for (int from = 1; from <= myCurrentStrategy.getPartitionCount(); from++) {
+				total += myMoves.get(from * (newCount + 1) + to);
+			}
+			ourLog.info(" * MS{} would have {} patients ({}%)", to, total, percent(total, patients));
+		}
+	}
+
+	private static String percent(long theCount, long theTotal) {
+		return theTotal > 0 ? String.format("%.1f", theCount * 100.0 / theTotal) : "0";
+	}
+
+	public static void main(String[] theArgs) throws Exception {
+		new PartitionMoveReport().run(theArgs);
+	}
+}
@@ -0,0 +1,133 @@
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.hl7.fhir.r4.model.IdType;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Finds the ID of the first Patient in a Synthea transaction bundle with a
+ * streaming token scan, stopping as soon as that entry has been read. This
+ * avoids parsing the whole bundle into a HAPI model just to route it.
+ * <p>
+ * The returned ID is the same value that <code>getIdElement().getIdPart()</code>
+ * returns on the Patient after a full HAPI parse, including HAPI's handling of
+ * <code>urn:</code> fullUrls (see {@link #toHapiIdPart(String, String)}).
+ */
+public class PatientIdExtractor {
+
+	private static final JsonFactory ourJsonFactory = new JsonFactory();
+
+	private PatientIdExtractor() {
+		// static utility
+	}
+
+	public static String extractPatientId(File theFile) throws IOException {
+		try (InputStream is = new GZIPInputStream(new BufferedInputStream(new FileInputStream(theFile)), 16 * 1024)) {
+			return extractPatientId(is);
+		}
+	}
+
+	/**
+	 * @param theInputStream Uncompressed bundle JSON. The stream is not closed.
+	 */
+	public static String extractPatientId(InputStream theInputStream) throws IOException {
+		try (JsonParser parser = ourJsonFactory.createParser(theInputStream)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new InternalErrorException("Bundle is not a JSON object");
+			}
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String fieldName = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if (!"entry".equals(fieldName) || value != JsonToken.START_ARRAY) {
+					parser.skipChildren();
+					continue;
+				}
+
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					String patientId = scanEntry(parser);
+					if (patientId != null) {
+						return patientId;
+					}
+				}
+			}
+		}
+
+		throw new InternalErrorException("No Patient resource found in bundle");
+	}
+
+	/**
+	 * Reads one <code>Bundle.entry</code> object, leaving the parser on its
+	 * closing brace. Returns the Patient ID if the entry holds a Patient.
+	 */
+	private static String scanEntry(JsonParser theParser) throws IOException {
+		String fullUrl = null;
+		String resourceType = null;
+		String resourceId = null;
+
+		while (theParser.nextToken() == JsonToken.FIELD_NAME) {
+			String fieldName = theParser.getCurrentName();
+			JsonToken value = theParser.nextToken();
+			if ("fullUrl".equals(fieldName) && value == JsonToken.VALUE_STRING) {
+				fullUrl = theParser.getText();
+			} else if ("resource".equals(fieldName) && value == JsonToken.START_OBJECT) {
+				while (theParser.nextToken() == JsonToken.FIELD_NAME) {
+					String resourceFieldName = theParser.getCurrentName();
+					JsonToken resourceValue = theParser.nextToken();
+					if ("resourceType".equals(resourceFieldName) && resourceValue == JsonToken.VALUE_STRING) {
+						resourceType = theParser.getText();
+					} else if ("id".equals(resourceFieldName) && resourceValue == JsonToken.VALUE_STRING) {
+						resourceId = theParser.getText();
+					} else {
+						theParser.skipChildren();
+					}
+				}
+			} else {
+				theParser.skipChildren();
+			}
+		}
+
+		if (!"Patient".equals(resourceType)) {
+			return null;
+		}
+		String retVal = toHapiIdPart(fullUrl, resourceId);
+		if (isBlank(retVal)) {
+			throw new InternalErrorException("First Patient resource in bundle has no ID");
+		}
+		return retVal;
+	}
+
+	/**
+	 * When HAPI parses a bundle it replaces an entry resource's ID with the
+	 * entry <code>fullUrl</code> if the resource has no ID, or if the fullUrl is
+	 * a <code>urn:</code> that ends with <code>:[id]</code>. Synthea bundles use
+	 * <code>urn:uuid:[id]</code> fullUrls, so the routed ID is normally the
+	 * whole URN rather than the bare UUID.
+	 */
+	static String toHapiIdPart(String theFullUrl, String theResourceId) {
+		String retVal = theResourceId;
+		if (theFullUrl != null) {
+			if (isBlank(theResourceId)) {
+				retVal = theFullUrl;
+			} else if (theFullUrl.startsWith("urn:")
+				&& theFullUrl.length() > theResourceId.length()
+				&& theFullUrl.charAt(theFullUrl.length() - theResourceId.length() - 1) == ':'
+				&& theFullUrl.endsWith(theResourceId)) {
+				retVal = theFullUrl;
+			}
+		}
+		if (retVal == null) {
+			return null;
+		}
+		return new IdType(retVal).getIdPart();
+	}
+}
@@ -0,0 +1,37 @@
+import ca.uhn.fhir.util.ThreadPoolUtil;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates the worker pools used by the perftest tools. The <code>THREAD_MODE</code>
+ * setting selects between normal platform thread pools (the default) and
+ * {@link VirtualThreadExecutor virtual threads}, which need Java 21 or newer.
+ * Both kinds block the submitting thread when the pool and its queue are full.
+ */
+public class PerfTestExecutors {
+
+	public static final String THREAD_MODE_PLATFORM = "platform";
+	public static final String THREAD_MODE_VIRTUAL = "virtual";
+	private static final Logger ourLog = LoggerFactory.getLogger(PerfTestExecutors.class);
+
+	private PerfTestExecutors() {
+		// static utility
+	}
+
+	public static ExecutorService newExecutor(int theThreadCount, String theThreadNamePrefix, int theQueueCapacity) {
+		if (isVirtualThreadMode()) {
+			ourLog.info("Using virtual threads for {} pool with a concurrency of {}", theThreadNamePrefix, theThreadCount);
+			return new VirtualThreadExecutor(theThreadCount, theThreadNamePrefix, theQueueCapacity);
+		}
+		return ThreadPoolUtil.newThreadPool(theThreadCount, theThreadCount, theThreadNamePrefix, theQueueCapacity).getThreadPoolExecutor();
+	}
+
+	public static boolean isVirtualThreadMode() {
+		String mode = PerfTestProperties.getString("THREAD_MODE", THREAD_MODE_PLATFORM);
+		Validate.isTrue(THREAD_MODE_PLATFORM.equals(mode) || THREAD_MODE_VIRTUAL.equals(mode), "Unknown THREAD_MODE: %s", mode);
+		return THREAD_MODE_VIRTUAL.equals(mode);
+	}
+}
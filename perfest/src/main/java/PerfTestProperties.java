@@ -0,0 +1,37 @@
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Optional tuning switches for the perftest tools. Each value can be supplied
+ * either as a system property (e.g. <code>-DSCAN_MODE=parallel</code>) or as
+ * an environment variable with the same name.
+ */
+public class PerfTestProperties {
+
+	private PerfTestProperties() {
+		// static utility
+	}
+
+	public static String getString(String thePropertyName, String theDefault) {
+		String retVal = System.getProperty(thePropertyName);
+		if (isBlank(retVal)) {
+			retVal = System.getenv(thePropertyName);
+			if (isBlank(retVal)) {
+				retVal = theDefault;
+			}
+		}
+		return retVal;
+	}
+
+	public static int getInt(String thePropertyName, int theDefault) {
+		return Integer.parseInt(getString(thePropertyName, Integer.toString(theDefault)));
+	}
+
+	public static double getDouble(String thePropertyName, double theDefault) {
+		return Double.parseDouble(getString(thePropertyName, Double.toString(theDefault)));
+	}
+
+	public static boolean getBoolean(String thePropertyName, boolean theDefault) {
+		return Boolean.parseBoolean(getString(thePropertyName, Boolean.toString(theDefault)));
+	}
+
+}
@@ -0,0 +1,144 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of the {@link BaseFileIterator} pipeline: a pool of threads with a
+ * bounded queue in front of it. Submitting blocks while the queue is full, which
+ * is how a slow stage pushes back on the stage before it.
+ * <p>
+ * Each stage keeps track of its queue depth, how busy its threads are, and how
+ * long the stage before it spent waiting to hand work over. A stage that is close
+ * to 100% busy with a full queue, while the stage before it waits on it, is the
+ * bottleneck.
+ */
+public class PipelineStage {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(PipelineStage.class);
+	private static final ThreadLocal<PipelineStage> ourCurrentStage = new ThreadLocal<>();
+
+	private final String myName;
+	private final int myThreadCount;
+	private final int myQueueSize;
+	private final ExecutorService myExecutor;
+	private final AtomicInteger myQueuedCount = new AtomicInteger(0);
+	private final AtomicInteger myActiveCount = new AtomicInteger(0);
+	private final AtomicLong myProcessedCount = new AtomicLong(0);
+	private final AtomicLong myBusyNanos = new AtomicLong(0);
+	private final AtomicLong myHandoffWaitNanos = new AtomicLong(0);
+	private final long myStartNanos = System.nanoTime();
+	private long myLastSampleNanos = myStartNanos;
+	private long myLastSampleBusyNanos;
+
+	public PipelineStage(String theName, int theThreadCount, int theQueueSize) {
+		myName = theName;
+		myThreadCount = theThreadCount;
+		myQueueSize = theQueueSize;
+		myExecutor = PerfTestExecutors.newExecutor(theThreadCount, theName + "-", theQueueSize);
+		ourLog.info("Created pipeline stage {} with {} threads and a queue of {}", theName, theThreadCount, theQueueSize);
+	}
+
+	public String getName() {
+		return myName;
+	}
+
+	/**
+	 * Queues the task, blocking while the queue is full. If the caller is itself a
+	 * stage task, the time it spends blocked here doesn't count as busy time for
+	 * the caller's stage.
+	 */
+	public void submit(Runnable theTask) {
+		long start = System.nanoTime();
+		myQueuedCount.incrementAndGet();
+		try {
+			myExecutor.execute(() -> {
+				myQueuedCount.decrementAndGet();
+				myActiveCount.incrementAndGet();
+				long taskStart = System.nanoTime();
+				ourCurrentStage.set(this);
+				try {
+					theTask.run();
+				} finally {
+					ourCurrentStage.remove();
+					myBusyNanos.addAndGet(System.nanoTime() - taskStart);
+					myActiveCount.decrementAndGet();
+					myProcessedCount.incrementAndGet();
+				}
+			});
+		} catch (RuntimeException e) {
+			myQueuedCount.decrementAndGet();
+			throw e;
+		}
+		long waited = System.nanoTime() - start;
+		myHandoffWaitNanos.addAndGet(waited);
+		PipelineStage caller = ourCurrentStage.get();
+		if (caller != null) {
+			caller.myBusyNanos.addAndGet(-waited);
+		}
+	}
+
+	/**
+	 * Stops accepting tasks and waits for the queued ones to finish
+	 */
+	public void awaitCompletion() throws InterruptedException {
+		myExecutor.shutdown();
+		myExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	public void shutdown() {
+		myExecutor.shutdown();
+	}
+
+	public int getQueuedCount() {
+		return myQueuedCount.get();
+	}
+
+	public long getProcessedCount() {
+		return myProcessedCount.get();
+	}
+
+	/**
+	 * @return The share of the stage's thread time spent running tasks since the
+	 * last call (tasks are counted when they finish)
+	 */
+	public synchronized int getUtilizationPercentSinceLastSample() {
+		long now = System.nanoTime();
+		long busy = myBusyNanos.get();
+		int retVal = toPercent(busy - myLastSampleBusyNanos, now - myLastSampleNanos);
+		myLastSampleNanos = now;
+		myLastSampleBusyNanos = busy;
+		return retVal;
+	}
+
+	public int getUtilizationPercentOverall() {
+		return toPercent(myBusyNanos.get(), System.nanoTime() - myStartNanos);
+	}
+
+	/**
+	 * @return The total time callers spent blocked handing tasks to this stage
+	 */
+	public long getHandoffWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(myHandoffWaitNanos.get());
+	}
+
+	private int toPercent(long theBusyNanos, long theElapsedNanos) {
+		if (theElapsedNanos <= 0) {
+			return 0;
+		}
+		return (int) Math.min(100, theBusyNanos * 100 / (theElapsedNanos * myThreadCount));
+	}
+
+	/**
+	 * Logs one line per stage, with the utilization since the previous call
+	 */
+	public static void logStages(List<PipelineStage> theStages) {
+		for (PipelineStage next : theStages) {
+			ourLog.info("Stage {}: {} processed - {}% busy(recent) - {}% busy(overall) - Active[{}/{}] Queued[{}/{}] HandoffWait[{}ms]", next.myName, next.getProcessedCount(), next.getUtilizationPercentSinceLastSample(), next.getUtilizationPercentOverall(), next.myActiveCount.get(), next.myThreadCount, next.getQueuedCount(), next.myQueueSize, next.getHandoffWaitMillis());
+		}
+	}
+}
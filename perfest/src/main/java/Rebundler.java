@@ -0,0 +1,590 @@
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.smilecdr.demo.benchmark2.PartitionStrategy;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.r4.model.IdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Optional stage in front of the uploader that re-chunks Synthea transactions
+ * towards <code>REBUNDLE_TARGET_SIZE</code> entries, so that the server sees
+ * transactions of a similar size instead of a mix of tiny and huge ones.
+ * <ul>
+ *    <li>Bundles with more than 1.5x the target are <b>split</b> into pieces of about the
+ *    target size, which are sent one after another. Entries are put in dependency order
+ *    first, so a piece only references entries in the same piece or an earlier one.
+ *    References to entries in earlier pieces are rewritten to the IDs the server
+ *    assigned them, which are read from the earlier transaction responses. Every piece
+ *    after the first also carries the Patient as a conditional create on its ID (a no-op
+ *    on the server), so the gateway still routes the piece by its Patient. A piece is
+ *    a transaction of its own, so if a later piece fails the earlier ones stay on the
+ *    server; the uploader journals each piece as it completes, and a restarted split
+ *    skips the pieces that are already there.</li>
+ *    <li>Bundles with fewer than half the target are <b>merged</b> with other small bundles
+ *    for the same partition, until the merged bundle reaches the target or has waited
+ *    <code>REBUNDLE_LINGER_MILLIS</code>. The wait is checked whenever another bundle is
+ *    added, so the sink always runs on the caller's thread. Each merged patient keeps
+ *    its own compartment, and all of them route to the same partition. Merging needs
+ *    the megascale count, so that bundles for different partitions are never merged.</li>
+ *    <li>Anything else is sent as it is, without being parsed.</li>
+ * </ul>
+ */
+public class Rebundler {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(Rebundler.class);
+	private static final ObjectMapper ourObjectMapper = new ObjectMapper();
+
+	private final int myTargetSize;
+	private final int myMegascaleCount;
+	private final PartitionStrategy myPartitionStrategy;
+	private final long myLingerMillis;
+	private final Consumer<Transaction> mySink;
+	private final ReentrantLock myLock = new ReentrantLock();
+	private final Map<String, MergeBuffer> myMergeBuffers = new HashMap<>();
+	private final AtomicLong mySplitCount = new AtomicLong(0);
+	private final AtomicLong myPieceCount = new AtomicLong(0);
+	private final AtomicLong myMergedCount = new AtomicLong(0);
+	private final AtomicLong myMergedBundleCount = new AtomicLong(0);
+
+	/**
+	 * @param theMegascaleCount The number of partitions, used to make sure only bundles for the same
+	 *                          partition are merged. If zero, bundles are split but never merged. The
+	 *                          strategy comes from <code>PARTITION_STRATEGY</code> and <code>PARTITION_WEIGHTS</code>,
+	 *                          never from the gateway's registry file.
+	 * @param theSink           Receives each transaction that is ready to be sent
+	 */
+	public Rebundler(int theTargetSize, int theMegascaleCount, long theLingerMillis, Consumer<Transaction> theSink) {
+		Validate.isTrue(theTargetSize > 1, "Target size must be at least 2");
+		myTargetSize = theTargetSize;
+		myMegascaleCount = theMegascaleCount;
+		myPartitionStrategy = theMegascaleCount > 0 ? PartitionStrategy.fromProperties(theMegascaleCount) : null;
+		myLingerMillis = theLingerMillis;
+		mySink = theSink;
+		ourLog.info("Re-chunking transactions towards {} entries ({})", theTargetSize, theMegascaleCount > 0 ? "splitting and merging" : "splitting only");
+	}
+
+	/**
+	 * @return <code>true</code> if a bundle with this many resources would be split or merged
+	 */
+	public boolean isRebundled(int theResourceCount) {
+		return theResourceCount > getSplitThreshold() || (myMegascaleCount > 0 && theResourceCount < getMergeThreshold());
+	}
+
+	private int getSplitThreshold() {
+		return myTargetSize + myTargetSize / 2;
+	}
+
+	private int getMergeThreshold() {
+		return myTargetSize / 2;
+	}
+
+	/**
+	 * Splits, buffers or passes on one gzipped bundle
+	 *
+	 * @param theRelease  Called once the bundle has been uploaded or has given up, may be <code>null</code>
+	 * @param theProgress The pieces of this bundle that an earlier run already uploaded, may be <code>null</code>
+	 */
+	public void add(String theUrl, String theTargetName, String theName, String theJournalKey, int theIndex, byte[] theGzipPayload, Runnable theRelease, UploadJournal.PieceProgress theProgress) throws IOException {
+		ObjectNode bundle = parse(theGzipPayload);
+		ArrayNode entries = (ArrayNode) bundle.path("entry");
+		Source source = new Source(theName, theJournalKey, theIndex, theRelease);
+		flush(myLingerMillis);
+
+		if (entries.size() > getSplitThreshold()) {
+			Transaction split = split(theUrl, theTargetName, source, entries, theGzipPayload, theProgress);
+			mySink.accept(split);
+			return;
+		}
+		warnIfPartlyUploaded(theName, theProgress);
+
+		if (myMegascaleCount <= 0 || entries.size() >= getMergeThreshold()) {
+			mySink.accept(new Transaction(theUrl, theTargetName, Collections.singletonList(source), Collections.singletonList(new Piece(null, entries.size(), null)), entries.size(), theGzipPayload));
+			return;
+		}
+
+		String mergeKey = theTargetName + "/" + getPartition(entries);
+		List<Transaction> ready = new ArrayList<>(2);
+		myLock.lock();
+		try {
+			MergeBuffer buffer = myMergeBuffers.get(mergeKey);
+			if (buffer != null && buffer.containsAnyOf(entries)) {
+				// The same bundle twice, which can't go in one transaction
+				myMergeBuffers.remove(mergeKey);
+				ready.add(buffer.toTransaction());
+				buffer = null;
+			}
+			if (buffer == null) {
+				buffer = new MergeBuffer(theUrl, theTargetName);
+				myMergeBuffers.put(mergeKey, buffer);
+			}
+			buffer.add(source, entries, theGzipPayload);
+			if (buffer.myEntries.size() >= myTargetSize) {
+				myMergeBuffers.remove(mergeKey);
+				ready.add(buffer.toTransaction());
+			}
+		} finally {
+			myLock.unlock();
+		}
+		ready.forEach(mySink);
+	}
+
+	/**
+	 * Sends every partly filled merge buffer. Called at the end of the run.
+	 */
+	public void flush() {
+		flush(0);
+	}
+
+	private void flush(long theMinAgeMillis) {
+		List<Transaction> ready = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		myLock.lock();
+		try {
+			for (Iterator<MergeBuffer> iter = myMergeBuffers.values().iterator(); iter.hasNext(); ) {
+				MergeBuffer next = iter.next();
+				if (now - next.myCreated >= theMinAgeMillis) {
+					iter.remove();
+					ready.add(next.toTransaction());
+				}
+			}
+		} finally {
+			myLock.unlock();
+		}
+		ready.forEach(mySink);
+	}
+
+	public void close() {
+		flush();
+		ourLog.info("Split {} bundles into {} transactions, merged {} bundles into {} transactions", mySplitCount.get(), myPieceCount.get(), myMergedCount.get(), myMergedBundleCount.get());
+	}
+
+	private int getPartition(ArrayNode theEntries) {
+		for (JsonNode next : theEntries) {
+			JsonNode resource = next.path("resource");
+			if ("Patient".equals(resource.path("resourceType").asText())) {
+				String patientId = PatientIdExtractor.toHapiIdPart(next.path("fullUrl").textValue(), resource.path("id").textValue());
+				return UploaderDirect.patientIdToPartitionId(patientId, myPartitionStrategy);
+			}
+		}
+		throw new InternalErrorException("No Patient resource found in bundle");
+	}
+
+	static void warnIfPartlyUploaded(String theName, UploadJournal.PieceProgress theProgress) {
+		if (theProgress != null) {
+			ourLog.warn("{} was partly uploaded in {} pieces, sending all of it again will create its first {} pieces twice", theName, theProgress.getPieceCount(), theProgress.getCompletedPieceCount());
+		}
+	}
+
+	private Transaction split(String theUrl, String theTargetName, Source theSource, ArrayNode theEntries, byte[] theOriginalPayload, UploadJournal.PieceProgress theProgress) {
+		List<JsonNode> ordered = sortByDependencies(theEntries);
+		int pieceCount = (theEntries.size() + myTargetSize - 1) / myTargetSize;
+		int pieceSize = (theEntries.size() + pieceCount - 1) / pieceCount;
+
+		int patientIndex = -1;
+		for (int i = 0; ordered != null && i < ordered.size(); i++) {
+			if ("Patient".equals(ordered.get(i).path("resource").path("resourceType").asText())) {
+				patientIndex = i;
+				break;
+			}
+		}
+
+		if (ordered == null || patientIndex == -1 || patientIndex >= pieceSize) {
+			ourLog.warn("Can't split {} safely, sending it as it is", theSource.myName);
+			warnIfPartlyUploaded(theSource.myName, theProgress);
+			return new Transaction(theUrl, theTargetName, Collections.singletonList(theSource), Collections.singletonList(new Piece(null, theEntries.size(), null)), theEntries.size(), theOriginalPayload);
+		}
+
+		JsonNode patientEntry = ordered.get(patientIndex);
+		List<Piece> pieces = new ArrayList<>();
+		List<String> laterReferences = new ArrayList<>();
+		laterReferences.add(patientEntry.path("fullUrl").asText());
+		for (int start = 0; start < ordered.size(); start += pieceSize) {
+			ArrayNode pieceEntries = ourObjectMapper.createArrayNode();
+			ordered.subList(start, Math.min(ordered.size(), start + pieceSize)).forEach(pieceEntries::add);
+			pieces.add(new Piece(pieceEntries, pieceEntries.size(), start > 0 ? patientEntry : null));
+			if (start > 0) {
+				pieceEntries.forEach(t -> collectReferences(t.path("resource"), laterReferences));
+			}
+		}
+
+		mySplitCount.incrementAndGet();
+		myPieceCount.addAndGet(pieces.size());
+		Transaction retVal = new Transaction(theUrl, theTargetName, Collections.singletonList(theSource), pieces, theEntries.size(), null);
+		retVal.myLaterReferences = new HashSet<>(laterReferences);
+		if (theProgress != null) {
+			if (theProgress.getPieceCount() == pieces.size()) {
+				ourLog.info("Resuming {} after {} of its {} pieces", theSource.myName, theProgress.getCompletedPieceCount(), pieces.size());
+				retVal.myPieceIndex = theProgress.getCompletedPieceCount();
+				retVal.myResolvedReferences.putAll(theProgress.getResolvedReferences());
+			} else {
+				warnIfPartlyUploaded(theSource.myName, theProgress);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Orders the entries so that every entry comes after the entries it references
+	 * by <code>fullUrl</code>, keeping the original order wherever possible. Synthea
+	 * bundles are normally in this order already.
+	 *
+	 * @return The ordered entries, or <code>null</code> if the references form a cycle
+	 */
+	static List<JsonNode> sortByDependencies(ArrayNode theEntries) {
+		Map<String, Integer> fullUrlToIndex = new HashMap<>();
+		for (int i = 0; i < theEntries.size(); i++) {
+			JsonNode fullUrl = theEntries.get(i).get("fullUrl");
+			if (fullUrl != null && fullUrl.isTextual()) {
+				fullUrlToIndex.put(fullUrl.textValue(), i);
+			}
+		}
+
+		int[] dependencyCounts = new int[theEntries.size()];
+		List<List<Integer>> dependents = new ArrayList<>();
+		boolean alreadyOrdered = true;
+		for (int i = 0; i < theEntries.size(); i++) {
+			dependents.add(new ArrayList<>());
+		}
+		for (int i = 0; i < theEntries.size(); i++) {
+			List<String> references = new ArrayList<>();
+			collectReferences(theEntries.get(i).path("resource"), references);
+			for (String next : references) {
+				Integer target = fullUrlToIndex.get(next);
+				if (target != null && target != i) {
+					dependencyCounts[i]++;
+					dependents.get(target).add(i);
+					alreadyOrdered &= target < i;
+				}
+			}
+		}
+
+		List<JsonNode> retVal = new ArrayList<>(theEntries.size());
+		if (alreadyOrdered) {
+			theEntries.forEach(retVal::add);
+			return retVal;
+		}
+
+		PriorityQueue<Integer> ready = new PriorityQueue<>();
+		for (int i = 0; i < dependencyCounts.length; i++) {
+			if (dependencyCounts[i] == 0) {
+				ready.add(i);
+			}
+		}
+		while (!ready.isEmpty()) {
+			int next = ready.poll();
+			retVal.add(theEntries.get(next));
+			for (int dependent : dependents.get(next)) {
+				if (--dependencyCounts[dependent] == 0) {
+					ready.add(dependent);
+				}
+			}
+		}
+		return retVal.size() == theEntries.size() ? retVal : null;
+	}
+
+	private static void collectReferences(JsonNode theNode, List<String> theReferences) {
+		if (theNode.isObject()) {
+			for (Iterator<Map.Entry<String, JsonNode>> iter = theNode.fields(); iter.hasNext(); ) {
+				Map.Entry<String, JsonNode> next = iter.next();
+				if ("reference".equals(next.getKey()) && next.getValue().isTextual()) {
+					theReferences.add(next.getValue().textValue());
+				} else {
+					collectReferences(next.getValue(), theReferences);
+				}
+			}
+		} else if (theNode.isArray()) {
+			for (JsonNode next : theNode) {
+				collectReferences(next, theReferences);
+			}
+		}
+	}
+
+	private static void rewriteReferences(JsonNode theNode, Map<String, String> theResolved) {
+		if (theNode.isObject()) {
+			ObjectNode object = (ObjectNode) theNode;
+			JsonNode reference = object.get("reference");
+			if (reference != null && reference.isTextual()) {
+				String resolved = theResolved.get(reference.textValue());
+				if (resolved != null) {
+					object.put("reference", resolved);
+				}
+			}
+			object.forEach(t -> rewriteReferences(t, theResolved));
+		} else if (theNode.isArray()) {
+			theNode.forEach(t -> rewriteReferences(t, theResolved));
+		}
+	}
+
+	private static ObjectNode parse(byte[] theGzipPayload) throws IOException {
+		try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(theGzipPayload), 16 * 1024)) {
+			JsonNode retVal = ourObjectMapper.readTree(is);
+			Validate.isTrue(retVal.isObject() && "transaction".equals(retVal.path("type").asText()), "Not a transaction bundle");
+			return (ObjectNode) retVal;
+		}
+	}
+
+	private static byte[] toGzip(ArrayNode theEntries) throws IOException {
+		ObjectNode bundle = ourObjectMapper.createObjectNode();
+		bundle.put("resourceType", "Bundle");
+		bundle.put("type", "transaction");
+		bundle.set("entry", theEntries);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (OutputStream os = new FastGzipOutputStream(bytes)) {
+			ourObjectMapper.writeValue(os, bundle);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * One original bundle that went into a transaction
+	 */
+	public static class Source {
+		private final String myName;
+		private final String myJournalKey;
+		private final int myIndex;
+		private final Runnable myRelease;
+
+		private Source(String theName, String theJournalKey, int theIndex, Runnable theRelease) {
+			myName = theName;
+			myJournalKey = theJournalKey;
+			myIndex = theIndex;
+			myRelease = theRelease;
+		}
+
+		public String getName() {
+			return myName;
+		}
+
+		public String getJournalKey() {
+			return myJournalKey;
+		}
+
+		public int getIndex() {
+			return myIndex;
+		}
+
+		public void release() {
+			if (myRelease != null) {
+				myRelease.run();
+			}
+		}
+	}
+
+	private static class Piece {
+		private final ArrayNode myEntries;
+		private final int myEntryCount;
+		private final JsonNode myPatientEntry;
+
+		/**
+		 * @param theEntries      May be <code>null</code> if the transaction already has the payload
+		 * @param thePatientEntry If not <code>null</code>, a conditional create for this Patient is added to the start of the piece
+		 */
+		private Piece(ArrayNode theEntries, int theEntryCount, JsonNode thePatientEntry) {
+			myEntries = theEntries;
+			myEntryCount = theEntryCount;
+			myPatientEntry = thePatientEntry;
+		}
+	}
+
+	/**
+	 * One or more transactions to send to a target, one after another. Splits have
+	 * one piece per transaction, everything else has a single piece.
+	 */
+	public static class Transaction {
+		private final String myUrl;
+		private final String myTargetName;
+		private final List<Source> mySources;
+		private final List<Piece> myPieces;
+		private final int myResourceCount;
+		private final Map<String, String> myResolvedReferences = new HashMap<>();
+		/**
+		 * The <code>fullUrl</code>s referenced by the pieces after the first, whose IDs are journaled
+		 */
+		private Set<String> myLaterReferences = Collections.emptySet();
+		private byte[] myPayload;
+		private int myPieceIndex;
+
+		private Transaction(String theUrl, String theTargetName, List<Source> theSources, List<Piece> thePieces, int theResourceCount, byte[] thePayload) {
+			myUrl = theUrl;
+			myTargetName = theTargetName;
+			mySources = theSources;
+			myPieces = thePieces;
+			myResourceCount = theResourceCount;
+			myPayload = thePayload;
+		}
+
+		public String getUrl() {
+			return myUrl;
+		}
+
+		public String getTargetName() {
+			return myTargetName;
+		}
+
+		public List<Source> getSources() {
+			return mySources;
+		}
+
+		/**
+		 * @return The number of entries in all of the pieces, not counting the repeated Patients
+		 */
+		public int getResourceCount() {
+			return myResourceCount;
+		}
+
+		public int getPieceResourceCount() {
+			return myPieces.get(myPieceIndex).myEntryCount;
+		}
+
+		public boolean hasMorePieces() {
+			return myPieceIndex + 1 < myPieces.size();
+		}
+
+		public int getPieceIndex() {
+			return myPieceIndex;
+		}
+
+		public int getPieceCount() {
+			return myPieces.size();
+		}
+
+		/**
+		 * @return The gzipped bundle for the current piece
+		 */
+		public byte[] getPayload() throws IOException {
+			if (myPayload == null) {
+				Piece piece = myPieces.get(myPieceIndex);
+				ArrayNode entries = ourObjectMapper.createArrayNode();
+				if (piece.myPatientEntry != null) {
+					entries.add(newConditionalPatientEntry(piece.myPatientEntry));
+				}
+				for (JsonNode next : piece.myEntries) {
+					rewriteReferences(next.path("resource"), myResolvedReferences);
+					entries.add(next);
+				}
+				myPayload = toGzip(entries);
+			}
+			return myPayload;
+		}
+
+		private ObjectNode newConditionalPatientEntry(JsonNode thePatientEntry) {
+			String patientId = myResolvedReferences.get(thePatientEntry.path("fullUrl").asText());
+			Validate.validState(patientId != null, "Patient ID was not resolved by the first piece");
+			ObjectNode retVal = thePatientEntry.deepCopy();
+			ObjectNode request = retVal.putObject("request");
+			request.put("method", "POST");
+			request.put("url", "Patient");
+			request.put("ifNoneExist", "_id=" + new IdType(patientId).getIdPart());
+			return retVal;
+		}
+
+		/**
+		 * Records the IDs the server assigned to the entries of the current piece,
+		 * and moves on to the next piece
+		 *
+		 * @param theResponse The transaction-response bundle for the current piece
+		 * @return The IDs that later pieces need, keyed by <code>fullUrl</code>, so they can be journaled
+		 */
+		public Map<String, String> pieceCompleted(String theResponse) throws IOException {
+			Piece piece = myPieces.get(myPieceIndex);
+			Map<String, String> retVal = new HashMap<>();
+			JsonNode responseEntries = ourObjectMapper.readTree(theResponse).path("entry");
+			int offset = piece.myPatientEntry != null ? 1 : 0;
+			Validate.isTrue(responseEntries.size() == piece.myEntries.size() + offset, "Expected %s response entries, got %s", piece.myEntries.size() + offset, responseEntries.size());
+			for (int i = 0; i < piece.myEntries.size(); i++) {
+				String fullUrl = piece.myEntries.get(i).path("fullUrl").textValue();
+				String location = responseEntries.get(i + offset).path("response").path("location").textValue();
+				if (fullUrl != null && location != null) {
+					String id = new IdType(location).toUnqualifiedVersionless().getValue();
+					myResolvedReferences.put(fullUrl, id);
+					if (myLaterReferences.contains(fullUrl)) {
+						retVal.put(fullUrl, id);
+					}
+				}
+			}
+			myPieceIndex++;
+			myPayload = null;
+			return retVal;
+		}
+	}
+
+	private class MergeBuffer {
+		private final String myUrl;
+		private final String myTargetName;
+		private final long myCreated = System.currentTimeMillis();
+		private final List<Source> mySources = new ArrayList<>();
+		private final ArrayNode myEntries = ourObjectMapper.createArrayNode();
+		private final Set<String> myFullUrls = new HashSet<>();
+		private byte[] myFirstPayload;
+
+		private MergeBuffer(String theUrl, String theTargetName) {
+			myUrl = theUrl;
+			myTargetName = theTargetName;
+		}
+
+		private boolean containsAnyOf(ArrayNode theEntries) {
+			for (JsonNode next : theEntries) {
+				if (myFullUrls.contains(next.path("fullUrl").asText())) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void add(Source theSource, ArrayNode theEntries, byte[] theGzipPayload) {
+			if (mySources.isEmpty()) {
+				myFirstPayload = theGzipPayload;
+			}
+			mySources.add(theSource);
+			myEntries.addAll(theEntries);
+			theEntries.forEach(t -> myFullUrls.add(t.path("fullUrl").asText()));
+		}
+
+		private Transaction toTransaction() {
+			if (mySources.size() == 1) {
+				// Nothing else turned up in time, so send the original bundle
+				return new Transaction(myUrl, myTargetName, mySources, Collections.singletonList(new Piece(null, myEntries.size(), null)), myEntries.size(), myFirstPayload);
+			}
+			myMergedCount.addAndGet(mySources.size());
+			myMergedBundleCount.incrementAndGet();
+			return new Transaction(myUrl, myTargetName, mySources, Collections.singletonList(new Piece(myEntries, myEntries.size(), null)), myEntries.size(), null);
+		}
+	}
+
+	/**
+	 * The server decompresses every request anyway, so the re-chunked bundles are
+	 * compressed for speed rather than size
+	 */
+	private static class FastGzipOutputStream extends GZIPOutputStream {
+		private FastGzipOutputStream(OutputStream theOutputStream) throws IOException {
+			super(theOutputStream, 64 * 1024);
+			def.setLevel(Deflater.BEST_SPEED);
+		}
+	}
+}
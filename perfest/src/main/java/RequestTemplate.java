@@ -0,0 +1,121 @@
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A request body that is serialized once and then filled in for each request by
+ * splicing values into pre-computed gaps, so sending a request doesn't have to
+ * build and encode a resource. Templates are immutable and can be shared between
+ * threads.
+ * <p>
+ * Each gap is a JSON string property, named by its path from the root of the
+ * resource (e.g. <code>status</code> or <code>subject.reference</code>). Values are
+ * passed to {@link #render(byte[]...)} already encoded with {@link #toValue(String)},
+ * so values that are used over and over can be encoded once too.
+ */
+public class RequestTemplate {
+
+	private static final ObjectMapper ourObjectMapper = new ObjectMapper();
+	private static final String SLOT_MARKER_PREFIX = "@@template-slot-";
+	private static final String SLOT_MARKER_SUFFIX = "@@";
+
+	private final byte[][] mySegments;
+	private final int[] mySlotOrder;
+	private final int myFixedLength;
+
+	/**
+	 * @param theSegments  The fixed text around the gaps
+	 * @param theSlotOrder The slot that fills each gap, in document order
+	 */
+	private RequestTemplate(byte[][] theSegments, int[] theSlotOrder) {
+		mySegments = theSegments;
+		mySlotOrder = theSlotOrder;
+		int fixedLength = 0;
+		for (byte[] next : theSegments) {
+			fixedLength += next.length;
+		}
+		myFixedLength = fixedLength;
+	}
+
+	public int getSlotCount() {
+		return mySegments.length - 1;
+	}
+
+	/**
+	 * @param theValues One value per slot, in the order the slots were given to {@link #create(String, String...)}
+	 */
+	public byte[] render(byte[]... theValues) {
+		Validate.isTrue(theValues.length == getSlotCount(), "Expected %s values, got %s", getSlotCount(), theValues.length);
+		int length = myFixedLength;
+		for (byte[] next : theValues) {
+			length += next.length;
+		}
+
+		byte[] retVal = new byte[length];
+		int offset = 0;
+		for (int i = 0; i < mySegments.length; i++) {
+			System.arraycopy(mySegments[i], 0, retVal, offset, mySegments[i].length);
+			offset += mySegments[i].length;
+			if (i < mySlotOrder.length) {
+				byte[] value = theValues[mySlotOrder[i]];
+				System.arraycopy(value, 0, retVal, offset, value.length);
+				offset += value.length;
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return The value escaped for use inside a JSON string, as UTF-8
+	 */
+	public static byte[] toValue(String theValue) {
+		return JsonStringEncoder.getInstance().quoteAsUTF8(theValue);
+	}
+
+	/**
+	 * @param theJson      The serialized resource
+	 * @param theSlotPaths The string properties to leave gaps for. Each must already exist in the resource.
+	 */
+	public static RequestTemplate create(String theJson, String... theSlotPaths) {
+		String marked;
+		try {
+			ObjectNode root = (ObjectNode) ourObjectMapper.readTree(theJson);
+			for (int i = 0; i < theSlotPaths.length; i++) {
+				String[] path = theSlotPaths[i].split("\\.");
+				JsonNode parent = root;
+				for (int j = 0; j < path.length - 1; j++) {
+					parent = parent.path(path[j]);
+				}
+				String property = path[path.length - 1];
+				Validate.isTrue(parent.isObject() && parent.path(property).isTextual(), "Template has no string property at %s", theSlotPaths[i]);
+				((ObjectNode) parent).put(property, SLOT_MARKER_PREFIX + i + SLOT_MARKER_SUFFIX);
+			}
+			marked = ourObjectMapper.writeValueAsString(root);
+		} catch (IOException e) {
+			throw new InternalErrorException(e);
+		}
+
+		// The markers are found in document order, which is not necessarily the
+		// order the slots were given in
+		List<byte[]> segments = new ArrayList<>();
+		int[] slotOrder = new int[theSlotPaths.length];
+		int start = 0;
+		for (int i = 0; i < theSlotPaths.length; i++) {
+			int markerStart = marked.indexOf(SLOT_MARKER_PREFIX, start);
+			int markerEnd = marked.indexOf(SLOT_MARKER_SUFFIX, markerStart + SLOT_MARKER_PREFIX.length());
+			slotOrder[i] = Integer.parseInt(marked.substring(markerStart + SLOT_MARKER_PREFIX.length(), markerEnd));
+			segments.add(marked.substring(start, markerStart).getBytes(StandardCharsets.UTF_8));
+			start = markerEnd + SLOT_MARKER_SUFFIX.length();
+		}
+		segments.add(marked.substring(start).getBytes(StandardCharsets.UTF_8));
+		return new RequestTemplate(segments.toArray(new byte[0][]), slotOrder);
+	}
+}
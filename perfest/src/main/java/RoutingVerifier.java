@@ -0,0 +1,128 @@
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.GZipUtil;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import com.smilecdr.demo.benchmark2.PartitionStrategy;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Checks that {@link PatientIdExtractor} routes every file in a Synthea directory
+ * (or every bundle in a pack directory) to the same MegaScale partition as a full
+ * HAPI parse of the bundle does. Run this against a new dataset before relying on
+ * {@link UploaderDirect}.
+ */
+public class RoutingVerifier extends BaseFileIterator {
+	private static final Logger ourLog = LoggerFactory.getLogger(RoutingVerifier.class);
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+	private final AtomicLong myMismatchCount = new AtomicLong(0);
+	private PartitionStrategy myPartitionStrategy;
+
+	@Override
+	protected void handleFile(File theFile, int theResourceCount, int theIndex) {
+		String fullParsePatientId;
+		String streamingPatientId;
+		try {
+			fullParsePatientId = parsePatientId(readFile(theFile));
+			streamingPatientId = PatientIdExtractor.extractPatientId(theFile);
+		} catch (Exception e) {
+			throw new InternalErrorException("Failed to process file " + theFile.getName(), e);
+		}
+		verify(theFile.getName(), fullParsePatientId, streamingPatientId);
+	}
+
+	@Override
+	protected boolean isPatientIdNeeded() {
+		return true;
+	}
+
+	@Override
+	protected void handleStagedFile(StagedFile theFile, int theIndex) {
+		String fullParsePatientId;
+		try {
+			fullParsePatientId = parsePatientId(theFile.getPayload());
+		} catch (Exception e) {
+			throw new InternalErrorException("Failed to process file " + theFile.getFile().getName(), e);
+		} finally {
+			theFile.release();
+		}
+		verify(theFile.getFile().getName(), fullParsePatientId, theFile.getPatientId());
+	}
+
+	@Override
+	protected void handlePackEntry(DatasetPack.Entry theEntry, int theIndex) {
+		String fullParsePatientId;
+		String streamingPatientId;
+		try {
+			fullParsePatientId = parsePatientId(theEntry.getPayload());
+			try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(theEntry.getPayload()), 16 * 1024)) {
+				streamingPatientId = PatientIdExtractor.extractPatientId(is);
+			}
+		} catch (Exception e) {
+			throw new InternalErrorException("Failed to process " + theEntry.getName(), e);
+		} finally {
+			theEntry.release();
+		}
+		verify(theEntry.getName(), fullParsePatientId, streamingPatientId);
+	}
+
+	private static String parsePatientId(byte[] theGzippedBundle) {
+		String bundleString = GZipUtil.decompress(theGzippedBundle);
+		Bundle bundle = ourCtx.newJsonParser().parseResource(Bundle.class, bundleString);
+		Resource patient = bundle
+			.getEntry()
+			.stream()
+			.map(Bundle.BundleEntryComponent::getResource)
+			.filter(t -> t instanceof Patient)
+			.findFirst()
+			.orElseThrow(() -> new InternalErrorException("No Patient resource found in bundle"));
+		return patient.getIdElement().getIdPart();
+	}
+
+	private void verify(String theName, String fullParsePatientId, String streamingPatientId) {
+		int fullParsePartition = UploaderDirect.patientIdToPartitionId(fullParsePatientId, myPartitionStrategy);
+		int streamingPartition = UploaderDirect.patientIdToPartitionId(streamingPatientId, myPartitionStrategy);
+
+		long filesChecked = myFilesUploadedCount.incrementAndGet();
+		if (fullParsePartition != streamingPartition || !fullParsePatientId.equals(streamingPatientId)) {
+			myMismatchCount.incrementAndGet();
+			ourLog.error("Mismatch in file {}: full parse gave {} (MS{}) but streaming scan gave {} (MS{})", theName, fullParsePatientId, fullParsePartition, streamingPatientId, streamingPartition);
+		}
+		if (filesChecked % 1000 == 0) {
+			ourLog.info("Checked {}/{} files - {} mismatches", filesChecked, myTotalFiles, myMismatchCount.get());
+		}
+	}
+
+	@Override
+	protected void finishing() throws Exception {
+		ourLog.info("Checked {} files in {} - {} mismatches", myFilesUploadedCount.get(), mySw, myMismatchCount.get());
+	}
+
+	public static void main(String[] theArgs) throws Exception {
+		RoutingVerifier verifier = new RoutingVerifier();
+		verifier.run(theArgs);
+		if (verifier.myMismatchCount.get() > 0) {
+			System.exit(1);
+		}
+	}
+
+	private void run(String[] theArgs) throws Exception {
+		String syntaxMsg = "Syntax: " + RoutingVerifier.class.getName() + " [directory containing .gz synthea files, or pack directory] [megascale count]";
+		Validate.isTrue(theArgs.length == 2, syntaxMsg);
+		File sourceDir = new File(theArgs[0]);
+		Validate.isTrue(sourceDir.exists() && sourceDir.isDirectory() && sourceDir.canRead(), "Directory " + theArgs[0] + " does not exist or can't be read");
+		myPartitionStrategy = PartitionStrategy.fromProperties(Integer.parseInt(theArgs[1]));
+
+		processFilesInDirectory(sourceDir, 20, 0);
+	}
+
+}
@@ -1,16 +1,18 @@
 import ca.uhn.fhir.util.StopWatch;
 import ca.uhn.fhir.util.StringUtil;
-import ca.uhn.fhir.util.ThreadPoolUtil;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.Validate;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -24,20 +26,25 @@ public class StaticResourcePerfTest {
 	private static StopWatch mySw;
 	private static final AtomicLong ourCount = new AtomicLong(0);
 
-	public static void main(String[] theArgs) {
+	public static void main(String[] theArgs) throws Exception {
 		String syntaxMsg = "Syntax: " + StaticResourcePerfTest.class.getName() + " [URL] [thread count]";
 		Validate.isTrue(theArgs.length == 2, syntaxMsg);
 		myUrl = StringUtil.chompCharacter(theArgs[0], '/');
 		int threadCount = Integer.parseInt(theArgs[1]);
 
-		ourClient = Uploader.createHttpClient(true);
-		ThreadPoolTaskExecutor threadPool = ThreadPoolUtil.newThreadPool(threadCount, threadCount, "worker-", 100);
-
 		myReadThroughputMeter = Uploader.newMeter();
 		myReadLatencyHistogram = Uploader.newHistogram();
 		myFailureMeter = Uploader.newMeter();
 		mySw = new StopWatch();
 
+		if (AsyncHttpEngine.isAsyncEnabled()) {
+			runAsync(threadCount);
+			return;
+		}
+
+		ourClient = Uploader.createHttpClient(true);
+		ExecutorService threadPool = PerfTestExecutors.newExecutor(threadCount, "worker-", 100);
+
 		while(true) {
 			Runnable task = ()->{
 				long start = System.currentTimeMillis();
@@ -56,19 +63,68 @@ public class StaticResourcePerfTest {
 					myFailureMeter.mark();
                 }
 
-				if (ourCount.incrementAndGet() % 100 == 0) {
-					long totalRead = ourCount.get();
-					long allTimeRead = (long) mySw.getThroughput(totalRead, TimeUnit.SECONDS);
-					long perSecondRead = ((long) myReadThroughputMeter.getOneMinuteRate()) / 60L;
-					long avgMillisPerRead = (long) myReadLatencyHistogram.getSnapshot().getMean();
-					long perSecondError = ((long) myFailureMeter.getOneMinuteRate()) / 60L;
-					long totalError = myFailureMeter.getCount();
-
-					ourLog.info("Count[{}] - AllTime[{}/sec] MovAvg[{}/sec] Latency[{}ms/read] Error[{} {}/sec]", totalRead, allTimeRead, perSecondRead, avgMillisPerRead, totalError, perSecondError);
-				}
+				logProgress();
             };
 			threadPool.submit(task);
 		}
 	}
+
+	/**
+	 * Same load as the thread pool version, but the thread count is used as the
+	 * in-flight window of an {@link AsyncHttpEngine} (unless <code>ASYNC_WINDOW</code>
+	 * is set), so only the IO reactor threads are needed.
+	 */
+	private static void runAsync(int theThreadCount) throws Exception {
+		AsyncHttpEngine engine = AsyncHttpEngine.newEngine(theThreadCount);
+
+		while (true) {
+			engine.acquire();
+			long start = System.currentTimeMillis();
+			engine.send(HttpAsyncMethods.createGet(myUrl), new FutureCallback<>() {
+				@Override
+				public void completed(HttpResponse theResponse) {
+					if (theResponse.getStatusLine().getStatusCode() < 300) {
+						myReadThroughputMeter.mark();
+						myReadLatencyHistogram.update(System.currentTimeMillis() - start);
+					} else {
+						myFailureMeter.mark();
+					}
+					done();
+				}
+
+				@Override
+				public void failed(Exception theException) {
+					ourLog.warn("Failure: {}", theException.toString());
+					myFailureMeter.mark();
+					done();
+				}
+
+				@Override
+				public void cancelled() {
+					myFailureMeter.mark();
+					done();
+				}
+
+				private void done() {
+					engine.release();
+					logProgress();
+				}
+			});
+		}
+	}
+
+	private static void logProgress() {
+		if (ourCount.incrementAndGet() % 100 == 0) {
+			long totalRead = ourCount.get();
+			long allTimeRead = (long) mySw.getThroughput(totalRead, TimeUnit.SECONDS);
+			long perSecondRead = (long) myReadThroughputMeter.getOneMinuteRate();
+			long avgMillisPerRead = (long) myReadLatencyHistogram.getSnapshot().getMean();
+			long perSecondError = (long) myFailureMeter.getOneMinuteRate();
+			long totalError = myFailureMeter.getCount();
+
+			ourLog.info("Count[{}] - AllTime[{}/sec] MovAvg[{}/sec] Latency[{}ms/read] Error[{} {}/sec]", totalRead, allTimeRead, perSecondRead, avgMillisPerRead, totalError, perSecondError);
+		}
+	}
+
 	private static final Logger ourLog = LoggerFactory.getLogger(StaticResourcePerfTest.class);
 }
@@ -0,0 +1,383 @@
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A stand-in for the gateway and read node that answers every request the
+ * perftest tools send with a small canned response, after an optional delay.
+ * Pointing a tool at it shows how many requests/sec the tool itself can send,
+ * so a plateau against the real cluster can be blamed on the right side.
+ * <p>
+ * It understands:
+ * <ul>
+ *    <li><code>GET /metadata</code>, for the HAPI client</li>
+ *    <li><code>POST /</code> and <code>POST /MS[n]</code> transactions, answered with one
+ *    <code>201</code> entry per request entry, so re-chunked uploads can resolve their references</li>
+ *    <li><code>GET /[type]/[id]</code>, <code>PUT /[type]/[id]</code> and <code>POST /[type]</code></li>
+ *    <li><code>GET /[type]?...</code> searches. Patient searches page through
+ *    <code>STUB_PATIENT_COUNT</code> patients and Encounter searches return
+ *    <code>STUB_ENCOUNTERS_PER_PATIENT</code> encounters for each patient in the
+ *    <code>patient</code> parameter, with <code>next</code> links that point back at the stub.
+ *    Other searches find nothing.</li>
+ * </ul>
+ * Every path can be prefixed with a <code>/MS[n]</code> tenant. Responses are delayed by
+ * <code>STUB_LATENCY_MILLIS</code> (default 0) on a timer, so a long delay doesn't
+ * need a thread per waiting request. Every <code>STUB_LOG_SECONDS</code> (default 5)
+ * the stub logs the requests/sec it is serving and how long it spends on each one.
+ */
+public class StubFhirServer {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(StubFhirServer.class);
+	private static final JsonFactory ourJsonFactory = new JsonFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+	private static final Pattern TENANT_PREFIX = Pattern.compile("^/MS[0-9]+(?=/|$)");
+	private static final String CT_FHIR_JSON = "application/fhir+json;charset=utf-8";
+	private static final String OFFSET_PARAM = "_stuboffset";
+
+	private final int myPort;
+	private final long myLatencyMillis;
+	private final int myPatientCount;
+	private final int myEncountersPerPatient;
+	private final Map<String, RequestKind> myKinds = new LinkedHashMap<>();
+	private final AtomicLong myNextId = new AtomicLong(1);
+	private final long myStartNanos = System.nanoTime();
+	private HttpServer myServer;
+	private ExecutorService myHandlerPool;
+	private ScheduledExecutorService myDelayPool;
+	private Timer myLogTimer;
+	private long myPeakPerSecond;
+
+	public StubFhirServer(int thePort) {
+		myPort = thePort;
+		myLatencyMillis = PerfTestProperties.getInt("STUB_LATENCY_MILLIS", 0);
+		myPatientCount = PerfTestProperties.getInt("STUB_PATIENT_COUNT", 10000);
+		myEncountersPerPatient = PerfTestProperties.getInt("STUB_ENCOUNTERS_PER_PATIENT", 5);
+		for (String next : List.of("read", "search", "update", "create", "transaction", "other")) {
+			myKinds.put(next, new RequestKind(next));
+		}
+	}
+
+	public void start() throws IOException {
+		int threadCount = PerfTestProperties.getInt("STUB_THREADS", Runtime.getRuntime().availableProcessors() * 2);
+		myHandlerPool = PerfTestExecutors.newExecutor(threadCount, "stub-", 1000);
+		myDelayPool = Executors.newScheduledThreadPool(2);
+
+		myServer = HttpServer.create(new InetSocketAddress(myPort), 1000);
+		myServer.createContext("/", this::handle);
+		myServer.setExecutor(myHandlerPool);
+		myServer.start();
+		ourLog.info("Stub FHIR server listening on port {} with {} handler threads and {}ms of latency", myPort, threadCount, myLatencyMillis);
+
+		int logSeconds = PerfTestProperties.getInt("STUB_LOG_SECONDS", 5);
+		myLogTimer = new Timer("stub-log", true);
+		myLogTimer.scheduleAtFixedRate(new LogTask(), TimeUnit.SECONDS.toMillis(logSeconds), TimeUnit.SECONDS.toMillis(logSeconds));
+	}
+
+	public void stop() {
+		myLogTimer.cancel();
+		myServer.stop(0);
+		myHandlerPool.shutdown();
+		myDelayPool.shutdown();
+		logSummary();
+	}
+
+	private void handle(HttpExchange theExchange) throws IOException {
+		long start = System.nanoTime();
+		String method = theExchange.getRequestMethod();
+		String path = theExchange.getRequestURI().getRawPath();
+		Matcher tenant = TENANT_PREFIX.matcher(path);
+		String tenantPrefix = tenant.find() ? tenant.group() : "";
+		String[] parts = path.substring(tenantPrefix.length()).replaceAll("^/+|/+$", "").split("/");
+		String resourceType = parts[0];
+
+		RequestKind kind;
+		int status = 200;
+		String body;
+		String location = null;
+		try {
+			if (resourceType.equals("metadata")) {
+				drain(theExchange);
+				kind = myKinds.get("other");
+				body = "{\"resourceType\":\"CapabilityStatement\",\"status\":\"active\",\"fhirVersion\":\"4.0.1\",\"kind\":\"instance\",\"format\":[\"json\"]}";
+			} else if (resourceType.isEmpty() && method.equals("POST")) {
+				kind = myKinds.get("transaction");
+				body = transactionResponse(readEntryTypes(theExchange));
+			} else if (parts.length == 1 && method.equals("GET")) {
+				drain(theExchange);
+				kind = myKinds.get("search");
+				body = search(theExchange, tenantPrefix, resourceType, parseQuery(theExchange.getRequestURI().getRawQuery()));
+			} else if (parts.length == 2 && method.equals("GET")) {
+				drain(theExchange);
+				kind = myKinds.get("read");
+				body = "{\"resourceType\":\"" + resourceType + "\",\"id\":\"" + parts[1] + "\",\"meta\":{\"versionId\":\"1\"}}";
+			} else if (parts.length == 2 && method.equals("PUT")) {
+				drain(theExchange);
+				kind = myKinds.get("update");
+				location = resourceType + "/" + parts[1] + "/_history/2";
+				body = "";
+			} else if (parts.length == 1 && method.equals("POST")) {
+				drain(theExchange);
+				kind = myKinds.get("create");
+				status = 201;
+				location = resourceType + "/" + myNextId.getAndIncrement() + "/_history/1";
+				body = "";
+			} else {
+				drain(theExchange);
+				kind = myKinds.get("other");
+				status = 404;
+				body = "{\"resourceType\":\"OperationOutcome\",\"issue\":[{\"severity\":\"error\",\"code\":\"not-found\",\"diagnostics\":\"Stub does not support " + method + " " + path + "\"}]}";
+			}
+		} catch (Exception e) {
+			ourLog.warn("Failed to handle {} {}", method, path, e);
+			kind = myKinds.get("other");
+			status = 400;
+			body = "";
+		}
+
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		if (!body.isEmpty()) {
+			theExchange.getResponseHeaders().add("Content-Type", CT_FHIR_JSON);
+		}
+		if (location != null) {
+			theExchange.getResponseHeaders().add("Location", location);
+			theExchange.getResponseHeaders().add("ETag", "W/\"" + location.substring(location.lastIndexOf('/') + 1) + "\"");
+		}
+		kind.record(System.nanoTime() - start);
+
+		int responseStatus = status;
+		if (myLatencyMillis > 0) {
+			myDelayPool.schedule(() -> respond(theExchange, responseStatus, bytes), myLatencyMillis, TimeUnit.MILLISECONDS);
+		} else {
+			respond(theExchange, responseStatus, bytes);
+		}
+	}
+
+	private void respond(HttpExchange theExchange, int theStatus, byte[] theBody) {
+		try (OutputStream out = theExchange.getResponseBody()) {
+			theExchange.sendResponseHeaders(theStatus, theBody.length > 0 ? theBody.length : -1);
+			out.write(theBody);
+		} catch (IOException e) {
+			ourLog.debug("Failed to send response", e);
+		} finally {
+			theExchange.close();
+		}
+	}
+
+	private String search(HttpExchange theExchange, String theTenantPrefix, String theResourceType, Map<String, String> theParams) {
+		int count = Integer.parseInt(theParams.getOrDefault("_count", "20"));
+		int offset = Integer.parseInt(theParams.getOrDefault(OFFSET_PARAM, "0"));
+		String[] patients = theParams.getOrDefault("patient", "").split(",");
+
+		int total = 0;
+		if ("Patient".equals(theResourceType)) {
+			total = myPatientCount;
+		} else if ("Encounter".equals(theResourceType) && theParams.containsKey("patient")) {
+			total = patients.length * myEncountersPerPatient;
+		}
+		int end = Math.min(offset + count, total);
+
+		StringBuilder retVal = new StringBuilder();
+		retVal.append("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":").append(total);
+		if (end < total) {
+			StringBuilder next = new StringBuilder();
+			next.append("http://").append(theExchange.getRequestHeaders().getFirst("Host")).append(theTenantPrefix).append('/').append(theResourceType);
+			next.append("?_count=").append(count).append('&').append(OFFSET_PARAM).append('=').append(end);
+			if (theParams.containsKey("patient")) {
+				next.append("&patient=").append(URLEncoder.encode(theParams.get("patient"), StandardCharsets.UTF_8));
+			}
+			retVal.append(",\"link\":[{\"relation\":\"next\",\"url\":\"").append(next).append("\"}]");
+		}
+		retVal.append(",\"entry\":[");
+		for (int i = offset; i < end; i++) {
+			if (i > offset) {
+				retVal.append(',');
+			}
+			if ("Patient".equals(theResourceType)) {
+				retVal.append("{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"p").append(i).append("\"}}");
+			} else {
+				String patientId = patients[i / myEncountersPerPatient].replaceAll(".*/", "");
+				retVal.append("{\"resource\":{\"resourceType\":\"Encounter\",\"id\":\"").append(patientId).append("-e").append(i % myEncountersPerPatient);
+				retVal.append("\",\"meta\":{\"versionId\":\"1\"},\"status\":\"finished\",\"subject\":{\"reference\":\"Patient/").append(patientId).append("\"}}}");
+			}
+		}
+		retVal.append("]}");
+		return retVal.toString();
+	}
+
+	private String transactionResponse(List<String> theEntryTypes) {
+		StringBuilder retVal = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"transaction-response\",\"entry\":[");
+		for (int i = 0; i < theEntryTypes.size(); i++) {
+			if (i > 0) {
+				retVal.append(',');
+			}
+			retVal.append("{\"response\":{\"status\":\"201 Created\",\"location\":\"").append(theEntryTypes.get(i)).append('/').append(myNextId.getAndIncrement()).append("/_history/1\"}}");
+		}
+		return retVal.append("]}").toString();
+	}
+
+	/**
+	 * Streams through the transaction for the resource type of each entry,
+	 * without building it in memory
+	 */
+	private static List<String> readEntryTypes(HttpExchange theExchange) throws IOException {
+		List<String> retVal = new ArrayList<>();
+		InputStream body = theExchange.getRequestBody();
+		if ("gzip".equalsIgnoreCase(theExchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+			body = new GZIPInputStream(body, 16 * 1024);
+		}
+		try (JsonParser parser = ourJsonFactory.createParser(body)) {
+			Validate.isTrue(parser.nextToken() == JsonToken.START_OBJECT, "Transaction is not a JSON object");
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				parser.nextToken();
+				if ("entry".equals(name) && parser.currentToken() == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						retVal.add(readEntryType(parser));
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+		drain(theExchange);
+		return retVal;
+	}
+
+	private static String readEntryType(JsonParser theParser) throws IOException {
+		String retVal = "Resource";
+		while (theParser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = theParser.getCurrentName();
+			theParser.nextToken();
+			if ("resource".equals(name) && theParser.currentToken() == JsonToken.START_OBJECT) {
+				while (theParser.nextToken() == JsonToken.FIELD_NAME) {
+					String resourceField = theParser.getCurrentName();
+					theParser.nextToken();
+					if ("resourceType".equals(resourceField)) {
+						retVal = theParser.getText();
+					} else {
+						theParser.skipChildren();
+					}
+				}
+			} else {
+				theParser.skipChildren();
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * The request body has to be read to the end before the connection can be re-used
+	 */
+	private static void drain(HttpExchange theExchange) throws IOException {
+		theExchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+	}
+
+	private static Map<String, String> parseQuery(String theRawQuery) {
+		Map<String, String> retVal = new LinkedHashMap<>();
+		if (theRawQuery != null) {
+			for (String next : theRawQuery.split("&")) {
+				int equals = next.indexOf('=');
+				if (equals > 0) {
+					retVal.put(URLDecoder.decode(next.substring(0, equals), StandardCharsets.UTF_8), URLDecoder.decode(next.substring(equals + 1), StandardCharsets.UTF_8));
+				}
+			}
+		}
+		return retVal;
+	}
+
+	private void logSummary() {
+		double seconds = (System.nanoTime() - myStartNanos) / 1e9;
+		long total = myKinds.values().stream().mapToLong(t -> t.myTotalCount.sum()).sum();
+		long totalNanos = myKinds.values().stream().mapToLong(t -> t.myTotalNanos.sum()).sum();
+		ourLog.info("Stub served {} requests in {}s - {}/sec average - {}/sec peak - {}us handling per request", total, (long) seconds, (long) (total / seconds), myPeakPerSecond, total > 0 ? totalNanos / total / 1000 : 0);
+	}
+
+	private static class RequestKind {
+		private final String myName;
+		private final LongAdder myTotalCount = new LongAdder();
+		private final LongAdder myTotalNanos = new LongAdder();
+		private long myLastCount;
+		private long myLastNanos;
+
+		private RequestKind(String theName) {
+			myName = theName;
+		}
+
+		private void record(long theNanos) {
+			myTotalCount.increment();
+			myTotalNanos.add(theNanos);
+		}
+	}
+
+	/**
+	 * The handling time is the time spent in the stub, not counting the
+	 * configured latency, so anything a client sees on top of the two is the
+	 * client's own overhead
+	 */
+	private class LogTask extends TimerTask {
+		private long myLastRunNanos = System.nanoTime();
+
+		@Override
+		public void run() {
+			long now = System.nanoTime();
+			double seconds = (now - myLastRunNanos) / 1e9;
+			myLastRunNanos = now;
+
+			StringBuilder kinds = new StringBuilder();
+			long intervalCount = 0;
+			long intervalNanos = 0;
+			for (RequestKind next : myKinds.values()) {
+				long count = next.myTotalCount.sum();
+				long nanos = next.myTotalNanos.sum();
+				long deltaCount = count - next.myLastCount;
+				long deltaNanos = nanos - next.myLastNanos;
+				next.myLastCount = count;
+				next.myLastNanos = nanos;
+				if (deltaCount > 0) {
+					kinds.append(" - ").append(next.myName).append(' ').append((long) (deltaCount / seconds)).append("/sec");
+				}
+				intervalCount += deltaCount;
+				intervalNanos += deltaNanos;
+			}
+
+			long perSecond = (long) (intervalCount / seconds);
+			myPeakPerSecond = Math.max(myPeakPerSecond, perSecond);
+			ourLog.info("Stub serving {}/sec (peak {}/sec) - {}us handling + {}ms latency per request{}", perSecond, myPeakPerSecond, intervalCount > 0 ? intervalNanos / intervalCount / 1000 : 0, myLatencyMillis, kinds);
+		}
+	}
+
+	public static void main(String[] theArgs) throws IOException {
+		String syntaxMsg = "Syntax: " + StubFhirServer.class.getName() + " [port]";
+		Validate.isTrue(theArgs.length == 1, syntaxMsg);
+		StubFhirServer server = new StubFhirServer(Integer.parseInt(theArgs[0]));
+		server.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+	}
+}
@@ -1,14 +1,42 @@
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UploadFileCounter extends BaseFileIterator {
 	private static final Logger ourLog = LoggerFactory.getLogger(UploadFileCounter.class);
 
+	private final AtomicLong myBytesCounted = new AtomicLong(0);
+
+	@Override
+	protected void handleFile(File theFile, int theResourceCount, int theIndex) {
+		count(theFile.length(), theResourceCount);
+	}
+
+	@Override
+	protected void handlePackEntry(DatasetPack.Entry theEntry, int theIndex) {
+		try {
+			count(theEntry.getLength(), theEntry.getResourceCount());
+		} finally {
+			theEntry.release();
+		}
+	}
+
 	@Override
-	protected void handleFile(File theFile, byte[] bytes, int theResourceCount, int theIndex) {
+	protected void handleStagedFile(StagedFile theFile, int theIndex) {
+		try {
+			count(theFile.getFile().length(), theFile.getResourceCount());
+		} finally {
+			theFile.release();
+		}
+	}
+
+	private void count(long theBytes, int theResourceCount) {
+		myBytesCounted.addAndGet(theBytes);
 		long filesUploaded = myFilesUploadedCount.incrementAndGet();
 		long resourcesUploaded = myResourcesUploadedCount.addAndGet(theResourceCount);
 		long avgResourcesPerFile = resourcesUploaded / filesUploaded;
@@ -16,12 +44,22 @@ public class UploadFileCounter extends BaseFileIterator {
 		ourLog.info("Counted file {}/{}, {} resources - Avg {}/file - EstRemaining: {}", filesUploaded, myTotalFiles, resourcesUploaded, avgResourcesPerFile, estRemaining);
 	}
 
+	@Override
+	protected void finishing() throws Exception {
+		long filesCounted = myFilesUploadedCount.get();
+		long resourcesCounted = myResourcesUploadedCount.get();
+		int filesPerSecond = (int) mySw.getThroughput(filesCounted, TimeUnit.SECONDS);
+		int resourcesPerSecond = (int) mySw.getThroughput(resourcesCounted, TimeUnit.SECONDS);
+		double megabytesPerSecond = mySw.getThroughput(myBytesCounted.get(), TimeUnit.SECONDS) / FileUtils.ONE_MB;
+		ourLog.info("Counted {} files and {} resources in {} - {} files/sec - {} res/sec - {} MB/sec", filesCounted, resourcesCounted, mySw, filesPerSecond, resourcesPerSecond, String.format("%.1f", megabytesPerSecond));
+	}
+
 	public static void main(String[] theArgs) throws Exception {
 		new UploadFileCounter().run(theArgs);
 	}
 
 	private void run(String[] theArgs) throws Exception {
-		String syntaxMsg = "Syntax: " + UploadFileCounter.class.getName() + " [directory containing .gz synthea files]";
+		String syntaxMsg = "Syntax: " + UploadFileCounter.class.getName() + " [directory containing .gz synthea files, or pack directory]";
 		Validate.isTrue(theArgs.length == 1, syntaxMsg);
 		File sourceDir = new File(theArgs[0]);
 		Validate.isTrue(sourceDir.exists() && sourceDir.isDirectory() && sourceDir.canRead(), "Directory " + theArgs[0] + " does not exist or can't be read");
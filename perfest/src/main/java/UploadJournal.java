@@ -0,0 +1,303 @@
+import ca.uhn.fhir.util.StopWatch;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only record of which files have been uploaded and which ones gave up,
+ * so that an interrupted load can be restarted without re-uploading anything.
+ * <p>
+ * Each line is either <code>C [file]</code> (completed) or <code>F [file]</code>
+ * (failed). Bundles that are split into several transactions also get a
+ * <code>P [file]\t[piece count]\t[piece]\t[IDs]</code> line for every piece but the
+ * last one, holding the IDs the server assigned to the entries that later pieces
+ * reference, so that a restarted split only sends the pieces that are left.
+ * Entries are buffered and fsynced by a background thread in batches
+ * of <code>JOURNAL_SYNC_BATCH</code> entries, and at least once per second, so
+ * recording an outcome never waits for the disk. When
+ * the journal is reopened it is replayed into memory: files with a completed
+ * entry are skipped, and files that only ever failed are uploaded again.
+ */
+public class UploadJournal implements Closeable {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(UploadJournal.class);
+	private static final String COMPLETED = "C ";
+	private static final String FAILED = "F ";
+	private static final String PIECE_COMPLETED = "P ";
+	private static final ObjectMapper ourObjectMapper = new ObjectMapper();
+
+	private final Set<String> myCompleted = new HashSet<>();
+	private final Set<String> myFailed = new HashSet<>();
+	private final Map<String, PieceProgress> myPieceProgress = new HashMap<>();
+	private final FileChannel myChannel;
+	private final ByteArrayOutputStream myPending = new ByteArrayOutputStream();
+	private final int mySyncBatchSize;
+	private final Thread mySyncThread;
+	/**
+	 * Guards the pending entries. It is never held while writing, so appending
+	 * doesn't wait for a sync in progress.
+	 */
+	private final ReentrantLock myLock = new ReentrantLock();
+	private final Condition myBatchFull = myLock.newCondition();
+	/**
+	 * Guards the channel
+	 */
+	private final ReentrantLock mySyncLock = new ReentrantLock();
+	private int myPendingCount;
+	private volatile boolean myClosed;
+
+	public UploadJournal(File theFile) throws IOException {
+		mySyncBatchSize = PerfTestProperties.getInt("JOURNAL_SYNC_BATCH", 100);
+
+		myChannel = FileChannel.open(theFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		truncatePartialLastLine();
+		replay(theFile);
+
+		mySyncThread = new Thread(this::syncLoop, "journal-sync");
+		mySyncThread.setDaemon(true);
+		mySyncThread.start();
+	}
+
+	private void replay(File theFile) throws IOException {
+		StopWatch sw = new StopWatch();
+		long lines = 0;
+		try (BufferedReader reader = new BufferedReader(Channels.newReader(FileChannel.open(theFile.toPath()), StandardCharsets.UTF_8), 1024 * 1024)) {
+			String next;
+			while ((next = reader.readLine()) != null) {
+				lines++;
+				if (next.startsWith(COMPLETED)) {
+					String key = next.substring(COMPLETED.length());
+					myCompleted.add(key);
+					myFailed.remove(key);
+					myPieceProgress.remove(key);
+				} else if (next.startsWith(FAILED)) {
+					String key = next.substring(FAILED.length());
+					if (!myCompleted.contains(key)) {
+						myFailed.add(key);
+					}
+				} else if (next.startsWith(PIECE_COMPLETED)) {
+					replayPieceCompleted(next.substring(PIECE_COMPLETED.length()));
+				}
+			}
+		}
+		ourLog.info("Replayed {} journal entries in {} - {} files completed, {} files previously failed and will be retried, {} files partly uploaded", lines, sw, myCompleted.size(), myFailed.size(), myPieceProgress.size());
+	}
+
+	private void replayPieceCompleted(String theLine) throws IOException {
+		// The IDs are last, and neither they nor the counts contain tabs
+		int idsStart = theLine.lastIndexOf('\t');
+		int pieceStart = theLine.lastIndexOf('\t', idsStart - 1);
+		int countStart = theLine.lastIndexOf('\t', pieceStart - 1);
+		String key = theLine.substring(0, countStart);
+		int pieceCount = Integer.parseInt(theLine.substring(countStart + 1, pieceStart));
+		int piece = Integer.parseInt(theLine.substring(pieceStart + 1, idsStart));
+		Map<String, String> ids = ourObjectMapper.readValue(theLine.substring(idsStart + 1), new TypeReference<Map<String, String>>() {
+		});
+		if (myCompleted.contains(key)) {
+			return;
+		}
+
+		PieceProgress progress = myPieceProgress.get(key);
+		if (progress == null || progress.myPieceCount != pieceCount) {
+			progress = new PieceProgress(pieceCount);
+			myPieceProgress.put(key, progress);
+		}
+		progress.myCompletedPieceCount = Math.max(progress.myCompletedPieceCount, piece + 1);
+		progress.myResolvedReferences.putAll(ids);
+	}
+
+	/**
+	 * If the previous run died in the middle of writing a line, cut it off so
+	 * that new entries start on a fresh line.
+	 */
+	private void truncatePartialLastLine() throws IOException {
+		long size = myChannel.size();
+		if (size == 0) {
+			return;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(1);
+		long pos = size;
+		while (pos > 0) {
+			buffer.clear();
+			myChannel.read(buffer, pos - 1);
+			if (buffer.get(0) == '\n') {
+				break;
+			}
+			pos--;
+		}
+		if (pos != size) {
+			ourLog.warn("Discarding {} bytes of incomplete journal entry", size - pos);
+			myChannel.truncate(pos);
+		}
+		myChannel.position(pos);
+	}
+
+	public boolean isCompleted(String theKey) {
+		return myCompleted.contains(theKey);
+	}
+
+	public void recordCompleted(String theKey) {
+		append(COMPLETED, theKey);
+	}
+
+	public void recordFailed(String theKey) {
+		append(FAILED, theKey);
+	}
+
+	/**
+	 * @return The pieces of a split file that a previous run already uploaded, or <code>null</code> if there are none
+	 */
+	public PieceProgress getPieceProgress(String theKey) {
+		return myPieceProgress.get(theKey);
+	}
+
+	/**
+	 * @param theResolvedReferences The IDs the server assigned to entries of this piece that later pieces reference, keyed by <code>fullUrl</code>
+	 */
+	public void recordPieceCompleted(String theKey, int thePieceCount, int thePiece, Map<String, String> theResolvedReferences) {
+		try {
+			append(PIECE_COMPLETED, theKey + "\t" + thePieceCount + "\t" + thePiece + "\t" + ourObjectMapper.writeValueAsString(theResolvedReferences));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void append(String thePrefix, String theKey) {
+		byte[] line = (thePrefix + theKey + "\n").getBytes(StandardCharsets.UTF_8);
+		myLock.lock();
+		try {
+			myPending.write(line, 0, line.length);
+			if (++myPendingCount == mySyncBatchSize) {
+				myBatchFull.signal();
+			}
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes and fsyncs any pending entries. This uses locks rather than
+	 * <code>synchronized</code> so that a virtual thread waiting on the fsync
+	 * does not pin its carrier thread.
+	 */
+	private void sync() {
+		mySyncLock.lock();
+		try {
+			byte[] pending;
+			myLock.lock();
+			try {
+				if (myPendingCount == 0) {
+					return;
+				}
+				pending = myPending.toByteArray();
+				myPending.reset();
+				myPendingCount = 0;
+			} finally {
+				myLock.unlock();
+			}
+
+			ByteBuffer buffer = ByteBuffer.wrap(pending);
+			while (buffer.hasRemaining()) {
+				myChannel.write(buffer);
+			}
+			myChannel.force(false);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			mySyncLock.unlock();
+		}
+	}
+
+	/**
+	 * Syncs whenever a batch fills up, and at least once per second
+	 */
+	private void syncLoop() {
+		while (!myClosed) {
+			myLock.lock();
+			try {
+				long nanos = TimeUnit.SECONDS.toNanos(1);
+				while (myPendingCount < mySyncBatchSize && nanos > 0 && !myClosed) {
+					nanos = myBatchFull.awaitNanos(nanos);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} finally {
+				myLock.unlock();
+			}
+
+			try {
+				sync();
+			} catch (Exception e) {
+				ourLog.error("Failed to sync upload journal", e);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		myLock.lock();
+		try {
+			myClosed = true;
+			myBatchFull.signal();
+		} finally {
+			myLock.unlock();
+		}
+		try {
+			mySyncThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		mySyncLock.lock();
+		try {
+			sync();
+			myChannel.close();
+		} finally {
+			mySyncLock.unlock();
+		}
+	}
+
+	public static class PieceProgress {
+		private final int myPieceCount;
+		private final Map<String, String> myResolvedReferences = new HashMap<>();
+		private int myCompletedPieceCount;
+
+		private PieceProgress(int thePieceCount) {
+			myPieceCount = thePieceCount;
+		}
+
+		public int getPieceCount() {
+			return myPieceCount;
+		}
+
+		public int getCompletedPieceCount() {
+			return myCompletedPieceCount;
+		}
+
+		public Map<String, String> getResolvedReferences() {
+			return myResolvedReferences;
+		}
+	}
+}
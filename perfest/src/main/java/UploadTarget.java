@@ -0,0 +1,310 @@
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Everything {@link BaseUploader} keeps for one upload target (a base URL, or one
+ * MegaScale partition): its own connection pool, request slots, concurrency
+ * limit, circuit breaker and metrics. Targets share none of these, so a slow
+ * target can't use up the connections or request slots of the others.
+ * <p>
+ * A target can also be a <em>lane</em>, with its own queue and threads. Uploads
+ * for a lane are handed to its queue instead of being sent from the caller's
+ * thread, and handing them over never blocks, so the caller never waits on a
+ * slow target. Retries go to the front of the queue. The queue size is a soft
+ * limit: a lane over it still takes new uploads, but reports itself as
+ * {@link #isLaneFull() full} so that the caller can stop reading more files
+ * once every lane is full.
+ */
+public class UploadTarget implements Closeable {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(UploadTarget.class);
+
+	private final String myName;
+	private final int myMaxConcurrency;
+	private final CircuitBreaker myBreaker;
+	private final AdaptiveConcurrencyLimit myConcurrencyLimit;
+	private final CloseableHttpClient myClient;
+	private final AsyncHttpEngine myAsyncEngine;
+	private final Semaphore myRequestSlots;
+	private final ExecutorService myLane;
+	private final LinkedBlockingDeque<Runnable> myLaneQueue;
+	private final int myLaneQueueSize;
+	private final Runnable myLaneDrained;
+	private final Meter myResourcesUploadedMeter = Uploader.newMeter();
+	private final Histogram myLatencyHistogram = Uploader.newHistogram();
+	private final AtomicLong myFilesUploadedCount = new AtomicLong(0);
+	private final AtomicLong myResourcesUploadedCount = new AtomicLong(0);
+	private final AtomicInteger myFailureCount = new AtomicInteger(0);
+	private final AtomicInteger myRetryCount = new AtomicInteger(0);
+
+	/**
+	 * @param theMaxConcurrency The most requests this target can have in flight
+	 * @param theIoThreads      IO reactor threads, only used with the async engine
+	 * @param theLaneQueueSize  If greater than zero, this target gets its own lane, which is full once it has this many queued uploads
+	 * @param theLaneDrained    Called by the lane each time it takes an upload and is no longer full. May be null.
+	 */
+	public UploadTarget(String theName, int theMaxConcurrency, int theIoThreads, int theLaneQueueSize, Runnable theLaneDrained) throws IOException {
+		myName = theName;
+		myMaxConcurrency = theMaxConcurrency;
+		myBreaker = CircuitBreaker.newBreaker(theName);
+		myConcurrencyLimit = AdaptiveConcurrencyLimit.newLimitIfEnabled(theMaxConcurrency);
+
+		int laneThreads;
+		if (AsyncHttpEngine.isAsyncEnabled()) {
+			myAsyncEngine = new AsyncHttpEngine(theMaxConcurrency, theIoThreads);
+			myClient = null;
+			myRequestSlots = null;
+			// The lane thread only waits for a free slot and hands the request over
+			laneThreads = 1;
+		} else {
+			myAsyncEngine = null;
+			myClient = Uploader.createHttpClient(true);
+			myRequestSlots = new Semaphore(theMaxConcurrency);
+			laneThreads = theMaxConcurrency;
+		}
+
+		myLaneQueueSize = theLaneQueueSize;
+		myLaneDrained = theLaneDrained;
+		if (theLaneQueueSize > 0) {
+			myLaneQueue = new LinkedBlockingDeque<>();
+			myLane = PerfTestExecutors.newExecutor(laneThreads, theName + "-", 0);
+			for (int i = 0; i < laneThreads; i++) {
+				myLane.execute(this::runLane);
+			}
+			ourLog.info("Created upload lane {} with a concurrency of {} and a queue of {}", theName, theMaxConcurrency, theLaneQueueSize);
+		} else {
+			myLaneQueue = null;
+			myLane = null;
+		}
+	}
+
+	private void runLane() {
+		try {
+			while (true) {
+				Runnable next = myLaneQueue.takeFirst();
+				if (myLaneDrained != null && myLaneQueue.size() < myLaneQueueSize) {
+					myLaneDrained.run();
+				}
+				try {
+					next.run();
+				} catch (Exception e) {
+					ourLog.error("Failed to run upload on lane {}", myName, e);
+				}
+			}
+		} catch (InterruptedException e) {
+			// The lane is being shut down
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public String getName() {
+		return myName;
+	}
+
+	public CloseableHttpClient getClient() {
+		return myClient;
+	}
+
+	public AsyncHttpEngine getAsyncEngine() {
+		return myAsyncEngine;
+	}
+
+	/**
+	 * Queues the task on this target's lane, or runs it on the calling thread if
+	 * this target doesn't have one. Never waits for a lane, even a full one.
+	 */
+	public void dispatch(Runnable theTask) {
+		if (myLane == null) {
+			theTask.run();
+			return;
+		}
+		myLaneQueue.offerLast(theTask);
+	}
+
+	/**
+	 * Like {@link #dispatch(Runnable)}, but a lane runs the task before anything
+	 * already queued. Used for retries and the later pieces of a split transaction,
+	 * which have already waited their turn once.
+	 */
+	public void dispatchFirst(Runnable theTask) {
+		if (myLane == null) {
+			theTask.run();
+			return;
+		}
+		myLaneQueue.offerFirst(theTask);
+	}
+
+	public boolean isLane() {
+		return myLane != null;
+	}
+
+	/**
+	 * @return <code>true</code> if this is a lane with at least its queue size of uploads waiting
+	 */
+	public boolean isLaneFull() {
+		return myLane != null && myLaneQueue.size() >= myLaneQueueSize;
+	}
+
+	/**
+	 * Blocks while the circuit breaker is open, and then until there is a free
+	 * request slot
+	 *
+	 * @return The permit to pass to {@link #recordResponse(CircuitBreaker.Permit, int, long, int)} or {@link #recordIoFailure(CircuitBreaker.Permit)}
+	 */
+	public CircuitBreaker.Permit acquire() throws InterruptedException {
+		CircuitBreaker.Permit permit = myBreaker.awaitPermission();
+		try {
+			if (myAsyncEngine != null) {
+				myAsyncEngine.acquire();
+			} else {
+				myRequestSlots.acquire();
+			}
+		} catch (InterruptedException e) {
+			myBreaker.cancelProbe(permit);
+			throw e;
+		}
+		if (myConcurrencyLimit != null) {
+			try {
+				myConcurrencyLimit.acquire();
+			} catch (InterruptedException e) {
+				releaseSlot();
+				myBreaker.cancelProbe(permit);
+				throw e;
+			}
+		}
+		return permit;
+	}
+
+	public void release() {
+		if (myConcurrencyLimit != null) {
+			myConcurrencyLimit.release();
+		}
+		releaseSlot();
+	}
+
+	private void releaseSlot() {
+		if (myAsyncEngine != null) {
+			myAsyncEngine.release();
+		} else {
+			myRequestSlots.release();
+		}
+	}
+
+	/**
+	 * Records an HTTP response. Other 4xx responses are problems with the file
+	 * itself rather than with the load, so they don't count against the target.
+	 */
+	public void recordResponse(CircuitBreaker.Permit thePermit, int theStatusCode, long theLatencyNanos, int theResourceCount) {
+		myLatencyHistogram.update(TimeUnit.NANOSECONDS.toMillis(theLatencyNanos));
+		if (theStatusCode == 200) {
+			myBreaker.onSuccess(thePermit);
+			if (myConcurrencyLimit != null) {
+				myConcurrencyLimit.onSuccess(theLatencyNanos, theResourceCount);
+			}
+		} else if (isOverloadStatus(theStatusCode)) {
+			recordOverload(thePermit);
+		} else {
+			myBreaker.onSuccess(thePermit);
+		}
+	}
+
+	/**
+	 * Records a request that got no response at all
+	 */
+	public void recordIoFailure(CircuitBreaker.Permit thePermit) {
+		recordOverload(thePermit);
+	}
+
+	private void recordOverload(CircuitBreaker.Permit thePermit) {
+		myBreaker.onFailure(thePermit);
+		if (myConcurrencyLimit != null) {
+			myConcurrencyLimit.onOverload();
+		}
+	}
+
+	public void recordUploaded(int theFileCount, int theResourceCount) {
+		myFilesUploadedCount.addAndGet(theFileCount);
+		myResourcesUploadedCount.addAndGet(theResourceCount);
+		myResourcesUploadedMeter.mark(theResourceCount);
+	}
+
+	public void recordRetry() {
+		myRetryCount.incrementAndGet();
+	}
+
+	public void recordFailed() {
+		myFailureCount.incrementAndGet();
+	}
+
+	public int getConcurrencyLimit() {
+		return myConcurrencyLimit != null ? myConcurrencyLimit.getLimit() : myMaxConcurrency;
+	}
+
+	public int getInFlightCount() {
+		if (myAsyncEngine != null) {
+			return myAsyncEngine.getInFlightCount();
+		}
+		return myMaxConcurrency - myRequestSlots.availablePermits();
+	}
+
+	public boolean isBreakerClosed() {
+		return myBreaker.isClosed();
+	}
+
+	public long getFilesUploadedCount() {
+		return myFilesUploadedCount.get();
+	}
+
+	public long getResourcesUploadedCount() {
+		return myResourcesUploadedCount.get();
+	}
+
+	public int getResourcesPerSecondSliding() {
+		return (int) myResourcesUploadedMeter.getOneMinuteRate();
+	}
+
+	public Histogram getLatencyHistogram() {
+		return myLatencyHistogram;
+	}
+
+	public int getRetryCount() {
+		return myRetryCount.get();
+	}
+
+	public int getFailureCount() {
+		return myFailureCount.get();
+	}
+
+	public int getQueuedCount() {
+		return myLaneQueue != null ? myLaneQueue.size() : 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (myLane != null) {
+			myLane.shutdownNow();
+		}
+		if (myAsyncEngine != null) {
+			myAsyncEngine.close();
+		}
+		if (myClient != null) {
+			myClient.close();
+		}
+	}
+
+	private static boolean isOverloadStatus(int theStatusCode) {
+		return theStatusCode >= 500 || theStatusCode == 429;
+	}
+}
@@ -1,243 +1,96 @@
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.jpa.dao.GZipUtil;
-import ca.uhn.fhir.rest.client.impl.HttpBasicAuthInterceptor;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
-import ca.uhn.fhir.util.StopWatch;
 import ca.uhn.fhir.util.StringUtil;
-import com.codahale.metrics.Histogram;
-import com.codahale.metrics.Meter;
-import com.codahale.metrics.SlidingTimeWindowMovingAverages;
-import com.codahale.metrics.SlidingWindowReservoir;
-import org.apache.commons.io.IOUtils;
+import com.smilecdr.demo.benchmark2.PartitionStrategy;
 import org.apache.commons.lang3.Validate;
-import org.apache.commons.lang3.time.DateUtils;
-import org.apache.http.HttpRequestInterceptor;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.config.SocketConfig;
-import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.DefaultClientConnectionReuseStrategy;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.IdType;
-import org.hl7.fhir.r4.model.InstantType;
-import org.hl7.fhir.r4.model.Patient;
-import org.hl7.fhir.r4.model.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
+import java.util.List;
 
-import static ca.uhn.fhir.rest.api.Constants.CT_FHIR_JSON_NEW;
-import static ca.uhn.fhir.rest.api.Constants.ENCODING_GZIP;
-import static ca.uhn.fhir.rest.api.Constants.HEADER_CONTENT_ENCODING;
-import static ca.uhn.fhir.rest.api.Constants.HEADER_CONTENT_TYPE;
-import static ca.uhn.fhir.rest.api.Constants.HEADER_PREFER;
-import static ca.uhn.fhir.rest.api.Constants.HEADER_PREFER_RETURN;
-import static ca.uhn.fhir.rest.api.Constants.HEADER_PREFER_RETURN_MINIMAL;
+public class UploaderDirect extends BaseUploader {
 
-public class UploaderDirect extends BaseFileIterator {
-
-	private static final FhirContext ourCtx = FhirContext.forR4Cached();
 	private static final Logger ourLog = LoggerFactory.getLogger(UploaderDirect.class);
-	private final AtomicInteger myFailureCount = new AtomicInteger(0);
-	private final AtomicInteger myRetryCount = new AtomicInteger(0);
-	private Meter myResourcesUploadedMeter;
-	private CloseableHttpClient myClient;
 	private String myBaseUrl;
-	private Timer myLogTimer;
-	private FileWriter myCsvWriter;
-	private int ourMegascaleCount;
+	private int myMegascaleCount;
+	private PartitionStrategy myPartitionStrategy;
 
 	private void run(String[] args) throws Exception {
-		String syntaxMsg = "Syntax: " + UploaderDirect.class.getName() + " [baseUrl] [directory containing .gz synthea files] [number of threads] [megascale count] [start index]";
+		String syntaxMsg = "Syntax: " + UploaderDirect.class.getName() + " [baseUrl] [directory containing .gz synthea files, or pack directory] [number of threads] [megascale count] [journal file or start index]";
 		Validate.isTrue(args.length == 5, syntaxMsg);
 		myBaseUrl = StringUtil.chompCharacter(args[0], '/');
 		Validate.isTrue(myBaseUrl.startsWith("http"), syntaxMsg);
 		File sourceDir = new File(args[1]);
 		Validate.isTrue(sourceDir.exists() && sourceDir.isDirectory() && sourceDir.canRead(), "Directory " + args[0] + " does not exist or can't be read");
 		int threadCount = Integer.parseInt(args[2]);
-		ourMegascaleCount = Integer.parseInt(args[3]);
-		int startIndex = Integer.parseInt(args[4]);
-
-		ourLog.info("Starting {} thread uploader from directory {}", threadCount, sourceDir.getAbsolutePath());
-		myClient = createHttpClient(true);
+		myMegascaleCount = Integer.parseInt(args[3]);
+		// Always from the properties, never MEGASCALE_REGISTRY_FILE, so these must match what the gateway routes with
+		myPartitionStrategy = PartitionStrategy.fromProperties(myMegascaleCount);
+		int startIndex = parseStartIndexOrJournal(args[4]);
+
+		ourLog.info("Starting {} thread uploader from directory {} with {} partitioning", threadCount, sourceDir.getAbsolutePath(), myPartitionStrategy.getName());
+		initHttpEngine(threadCount);
+
+		// One lane per partition, so a slow partition can't hold up the others
+		List<String> partitionNames = new ArrayList<>();
+		for (int i = 1; i <= myMegascaleCount; i++) {
+			partitionNames.add("MS" + i);
+		}
+		initLanes(partitionNames);
+		initRebundler(myMegascaleCount);
 
 		processFilesInDirectory(sourceDir, threadCount, startIndex);
 
 	}
 
-	protected void handleFile(File theFile, byte[] bytes, int theResourceCount, int theIndex) {
-		StopWatch fileSw = new StopWatch();
-
-		String bundleString = GZipUtil.decompress(bytes);
-		Bundle bundle = ourCtx.newJsonParser().parseResource(Bundle.class, bundleString);
-		Resource patient = bundle
-			.getEntry()
-			.stream()
-			.map(Bundle.BundleEntryComponent::getResource)
-			.filter(t -> t instanceof Patient)
-			.findFirst()
-			.orElseThrow(() -> new InternalErrorException("No Patient resource found in bundle"));
-		String patientId = patient.getIdElement().getIdPart();
-		int partition = patientIdToPartitionId(patientId);
-
-		HttpPost request = new HttpPost(myBaseUrl + "/MS" + partition);
-		request.setEntity(new ByteArrayEntity(bytes));
-		request.addHeader(HEADER_CONTENT_ENCODING, ENCODING_GZIP);
-		request.addHeader(HEADER_CONTENT_TYPE, CT_FHIR_JSON_NEW);
-		request.addHeader(HEADER_PREFER, HEADER_PREFER_RETURN + "=" + HEADER_PREFER_RETURN_MINIMAL);
-
-		int errors = 0;
-		while (true) {
-			try (CloseableHttpResponse resp = myClient.execute(request)) {
-                if (resp.getStatusLine().getStatusCode() == 200) {
-                    if (errors > 0) {
-						myRetryCount.addAndGet(errors);
-					}
-                    break;
-                } else {
-                    String respContent = IOUtils.toString(resp.getEntity().getContent(), StandardCharsets.UTF_8);
-                    ourLog.warn("Failure in File[{}] HTTP {}: {}", theFile.getName(), resp.getStatusLine().getStatusCode(), respContent);
-                    errors++;
-                }
-            } catch (Exception e) {
-				ourLog.warn("Failure in File[{}]: {} - Cause {}", theFile.getName(), e, e.getCause() != null ? e.getCause().toString() : null);
-				errors++;
-			}
-
-			if (errors > 3) {
-				// Give up after 3
-				myFailureCount.incrementAndGet();
-				return;
-			}
+	@Override
+	protected void handleFile(File theFile, int theResourceCount, int theIndex) {
+		int partition;
+		try {
+			String patientId = PatientIdExtractor.extractPatientId(theFile);
+			partition = patientIdToPartitionId(patientId, myPartitionStrategy);
+		} catch (IOException e) {
+			throw new InternalErrorException(e);
 		}
 
-		long filesUploaded = myFilesUploadedCount.incrementAndGet();
-		long resourcesUploaded = myResourcesUploadedCount.addAndGet(theResourceCount);
-		int resourcePerSecondOverall = (int) mySw.getThroughput(resourcesUploaded, TimeUnit.SECONDS);
-		int filesPerSecondOverall = (int) mySw.getThroughput(filesUploaded, TimeUnit.SECONDS);
-		int resourcePerSecondFile = (int) fileSw.getThroughput(theResourceCount, TimeUnit.SECONDS);
-
-		myResourcesUploadedMeter.mark(theResourceCount);
-		int resourcesPerSecondSliding = (int) (myResourcesUploadedMeter.getOneMinuteRate() / 60.0);
-
-		String estRemaining = mySw.getEstimatedTimeRemaining(filesUploaded, myTotalFiles);
-		int retryCount = myRetryCount.get();
-		int failureCount = myFailureCount.get();
-		ourLog.info("Uploaded file {}/{} to {} in {} ({} res/sec), {} resources - {} files/sec(overall) - {} res/sec(sliding) - {} res/sec(overall) - Retry[{}] Fail[{}] EstRemaining {}: {}", theIndex, myTotalFiles, "MS" + partition, fileSw, resourcePerSecondFile, resourcesUploaded, filesPerSecondOverall, resourcesPerSecondSliding, resourcePerSecondOverall, retryCount, failureCount, estRemaining, theFile.getName());
+		uploadFile(theFile, myBaseUrl + "/MS" + partition, "MS" + partition, theResourceCount, theIndex);
 	}
 
-
-	private int patientIdToPartitionId(String patientIdRaw) {
-		String patientId = new IdType(patientIdRaw).getIdPart();
-		Validate.notBlank(patientId, "No patient ID provided");
-		int partition = Math.abs(patientId.hashCode() % ourMegascaleCount) + 1;
-		return partition;
-	}
-
-
+	/**
+	 * Packs store the patient ID of each bundle, so routing doesn't need to look at
+	 * the payload even if the packs were built for a different megascale count
+	 */
 	@Override
-	protected void starting() throws Exception {
-		super.starting();
-
-		myResourcesUploadedMeter = newMeter();
-
-		myCsvWriter = new FileWriter("upload-synthea.csv", true);
-		myCsvWriter.append("\n\n# Written: " + InstantType.now().asStringValue());
-		myCsvWriter.append("\n# MillisSinceStart, TimeSinceStart, FilesPerSecond, ResPerSecondOverall, ResPerSecondMovingAvg, Retries, Failures\n");
-		myCsvWriter.flush();
-
-		myLogTimer = new Timer();
-		long delay = DateUtils.MILLIS_PER_MINUTE;
-		myLogTimer.scheduleAtFixedRate(new LogTask(), 0, delay);
+	protected void handlePackEntry(DatasetPack.Entry theEntry, int theIndex) {
+		int partition = patientIdToPartitionId(theEntry.getPatientId(), myPartitionStrategy);
+		uploadPackEntry(theEntry, myBaseUrl + "/MS" + partition, "MS" + partition, theIndex);
 	}
 
 	@Override
-	protected void finishing() throws Exception {
-		myLogTimer.cancel();
-		myCsvWriter.close();
-	}
-
-	public static void main(String[] args) throws Exception {
-		new UploaderDirect().run(args);
-	}
-
-	public static CloseableHttpClient createHttpClient(boolean theCompression) {
-		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(600, TimeUnit.SECONDS);
-		connectionManager.setMaxTotal(10000);
-		connectionManager.setDefaultMaxPerRoute(10000);
-
-		SocketConfig socketConfig = SocketConfig
-			.copy(SocketConfig.DEFAULT)
-			.setSoTimeout((int) (600 * DateUtils.MILLIS_PER_SECOND))
-			.setSoKeepAlive(true)
-			.build();
-		connectionManager.setDefaultSocketConfig(socketConfig);
-
-		HttpClientBuilder builder = HttpClientBuilder
-			.create()
-			.setConnectionReuseStrategy(new DefaultClientConnectionReuseStrategy())
-			.setConnectionManager(connectionManager);
-
-		if (!theCompression) {
-			builder.disableContentCompression();
-		}
-
-		HttpRequestInterceptor auth = new HttpBasicAuthInterceptor("admin", "password");
-		builder.addInterceptorFirst(auth);
-
-        return builder.build();
+	protected boolean isPatientIdNeeded() {
+		return true;
 	}
 
-	public static Meter newMeter() {
-		return new Meter(new SlidingTimeWindowMovingAverages());
+	@Override
+	protected void handleStagedFile(StagedFile theFile, int theIndex) {
+		int partition = patientIdToPartitionId(theFile.getPatientId(), myPartitionStrategy);
+		uploadStagedFile(theFile, myBaseUrl + "/MS" + partition, "MS" + partition, theIndex);
 	}
 
-	public static Histogram newHistogram() {
-		return new Histogram(new SlidingWindowReservoir(1000));
+	/**
+	 * Must give the same answer as <code>GatewayInterceptor</code>, which is why the
+	 * partitioning itself lives in {@link PartitionStrategy}
+	 */
+	static int patientIdToPartitionId(String patientIdRaw, PartitionStrategy thePartitionStrategy) {
+		String patientId = new IdType(patientIdRaw).getIdPart();
+		Validate.notBlank(patientId, "No patient ID provided");
+		return thePartitionStrategy.partitionFor(patientId);
 	}
 
-	private class LogTask extends TimerTask {
-		@Override
-		public void run() {
-			long filesUploaded = myFilesUploadedCount.get();
-			long resourcesUploaded = myResourcesUploadedCount.get();
-			int resourcePerSecondOverall = (int) mySw.getThroughput(resourcesUploaded, TimeUnit.SECONDS);
-			int filesPerSecondOverall = (int) mySw.getThroughput(filesUploaded, TimeUnit.SECONDS);
-
-			int resourcesPerSecondSliding = (int) (myResourcesUploadedMeter.getOneMinuteRate() / 60.0);
-
-			int retryCount = myRetryCount.get();
-			int failureCount = myFailureCount.get();
-
-			try {
-				long millis = mySw.getMillis();
-				millis = millis - (millis % 1000);
-				myCsvWriter.append(
-					millis + "," +
-						StopWatch.formatMillis(millis) + "," +
-						filesPerSecondOverall + "," +
-						resourcePerSecondOverall + "," +
-						resourcesPerSecondSliding + "," +
-						retryCount + "," +
-						failureCount +
-						"\n"
-				);
-				myCsvWriter.flush();
-			} catch (IOException e) {
-				ourLog.error("Failed to write CSV row", e);
-				System.exit(0);
-			}
-		}
+	public static void main(String[] args) throws Exception {
+		new UploaderDirect().run(args);
 	}
 }
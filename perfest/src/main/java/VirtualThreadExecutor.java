@@ -0,0 +1,116 @@
+import org.apache.commons.lang3.Validate;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs each task on a new virtual thread, with the same limits as a pool from
+ * <code>ThreadPoolUtil.newThreadPool(threads, threads, prefix, queueCapacity)</code>:
+ * at most <code>threads</code> tasks run at once, at most <code>queueCapacity</code>
+ * more wait to start, and {@link #execute(Runnable)} blocks the submitter once
+ * both are full.
+ * <p>
+ * The perftest module is compiled for Java 11, so the virtual thread builder is
+ * looked up reflectively and this class can only be created on Java 21 or newer.
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+
+	private final ThreadFactory myThreadFactory;
+	private final Semaphore mySubmitPermits;
+	private final Semaphore myRunPermits;
+	private final Set<Thread> myThreads = ConcurrentHashMap.newKeySet();
+	private final Object myTerminationLock = new Object();
+	private volatile boolean myShutdown;
+
+	public VirtualThreadExecutor(int theThreadCount, String theThreadNamePrefix, int theQueueCapacity) {
+		Validate.isTrue(theThreadCount > 0, "Thread count must be positive");
+		Validate.isTrue(theQueueCapacity >= 0, "Queue capacity must not be negative");
+		myThreadFactory = newVirtualThreadFactory(theThreadNamePrefix);
+		mySubmitPermits = new Semaphore(theThreadCount + theQueueCapacity);
+		myRunPermits = new Semaphore(theThreadCount);
+	}
+
+	@Override
+	public void execute(Runnable theTask) {
+		if (myShutdown) {
+			throw new RejectedExecutionException("Executor has been shut down");
+		}
+		mySubmitPermits.acquireUninterruptibly();
+
+		Thread thread = myThreadFactory.newThread(() -> {
+			try {
+				myRunPermits.acquireUninterruptibly();
+				try {
+					theTask.run();
+				} finally {
+					myRunPermits.release();
+				}
+			} finally {
+				myThreads.remove(Thread.currentThread());
+				mySubmitPermits.release();
+				synchronized (myTerminationLock) {
+					myTerminationLock.notifyAll();
+				}
+			}
+		});
+		myThreads.add(thread);
+		thread.start();
+	}
+
+	@Override
+	public void shutdown() {
+		myShutdown = true;
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown();
+		myThreads.forEach(Thread::interrupt);
+		return List.of();
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return myShutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return myShutdown && myThreads.isEmpty();
+	}
+
+	@Override
+	public boolean awaitTermination(long theTimeout, TimeUnit theUnit) throws InterruptedException {
+		long deadline = System.nanoTime() + theUnit.toNanos(theTimeout);
+		synchronized (myTerminationLock) {
+			while (!isTerminated()) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(myTerminationLock, remaining);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Equivalent to <code>Thread.ofVirtual().name(prefix, 0).factory()</code>
+	 */
+	private static ThreadFactory newVirtualThreadFactory(String theThreadNamePrefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, theThreadNamePrefix, 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Virtual threads require Java 21 or newer (running on Java " + Runtime.version().feature() + ")", e);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.Encounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The patient IDs and encounters that {@link Benchmarker} sends requests for,
+ * saved to a local file so that later runs against the same dataset don't need
+ * to search the servers for them again.
+ * <p>
+ * The file is gzipped:
+ * <code>[magic][UTF key][int patient count][UTF patient ID]...[int encounter count]([int length][encounter JSON])...</code>.
+ * The key describes what the working set was loaded from, and a file with a
+ * different key is ignored. Patient IDs are stored without a base URL, so the
+ * same file works with any gateway.
+ */
+public class WorkingSet {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(WorkingSet.class);
+	private static final FhirContext ourCtx = FhirContext.forR4Cached();
+	private static final byte[] MAGIC = "BENCHWS1".getBytes(StandardCharsets.US_ASCII);
+
+	private final List<String> myPatientIds;
+	private final List<Encounter> myEncounters;
+
+	/**
+	 * @param thePatientIds The patient ID parts as the gateway knows them, e.g. <code>ms1-123</code>
+	 */
+	public WorkingSet(List<String> thePatientIds, List<Encounter> theEncounters) {
+		myPatientIds = thePatientIds;
+		myEncounters = theEncounters;
+	}
+
+	public List<String> getPatientIds() {
+		return myPatientIds;
+	}
+
+	public List<Encounter> getEncounters() {
+		return myEncounters;
+	}
+
+	public void write(File theFile, String theKey) throws IOException {
+		File tempFile = new File(theFile.getAbsolutePath() + ".tmp");
+		IParser parser = ourCtx.newJsonParser();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tempFile))))) {
+			out.write(MAGIC);
+			out.writeUTF(theKey);
+			out.writeInt(myPatientIds.size());
+			for (String next : myPatientIds) {
+				out.writeUTF(next);
+			}
+			out.writeInt(myEncounters.size());
+			for (Encounter next : myEncounters) {
+				byte[] json = parser.encodeResourceToString(next).getBytes(StandardCharsets.UTF_8);
+				out.writeInt(json.length);
+				out.write(json);
+			}
+		}
+		if (!tempFile.renameTo(theFile)) {
+			throw new IOException("Failed to rename " + tempFile + " to " + theFile);
+		}
+		ourLog.info("Saved working set of {} patients and {} encounters to {} ({} bytes)", myPatientIds.size(), myEncounters.size(), theFile.getAbsolutePath(), theFile.length());
+	}
+
+	/**
+	 * @return The saved working set, or <code>null</code> if there is no file or it was saved with a different key
+	 */
+	public static WorkingSet read(File theFile, String theKey) throws IOException {
+		if (!theFile.isFile()) {
+			return null;
+		}
+
+		IParser parser = ourCtx.newJsonParser();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(theFile))))) {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(MAGIC, magic)) {
+				ourLog.warn("Ignoring working set file {}, it is not in a known format", theFile.getAbsolutePath());
+				return null;
+			}
+			String key = in.readUTF();
+			if (!theKey.equals(key)) {
+				ourLog.info("Ignoring working set file {}, it was saved for [{}] and this run is for [{}]", theFile.getAbsolutePath(), key, theKey);
+				return null;
+			}
+
+			int patientCount = in.readInt();
+			List<String> patientIds = new ArrayList<>(patientCount);
+			for (int i = 0; i < patientCount; i++) {
+				patientIds.add(in.readUTF());
+			}
+			int encounterCount = in.readInt();
+			List<Encounter> encounters = new ArrayList<>(encounterCount);
+			for (int i = 0; i < encounterCount; i++) {
+				byte[] json = new byte[in.readInt()];
+				in.readFully(json);
+				encounters.add(parser.parseResource(Encounter.class, new String(json, StandardCharsets.UTF_8)));
+			}
+			ourLog.info("Loaded working set of {} patients and {} encounters from {}", patientCount, encounterCount, theFile.getAbsolutePath());
+			return new WorkingSet(patientIds, encounters);
+		}
+	}
+}
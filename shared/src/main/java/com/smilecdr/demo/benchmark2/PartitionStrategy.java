@@ -0,0 +1,225 @@
+package com.smilecdr.demo.benchmark2;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.Arrays;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * Decides which MegaScale DB (1-indexed) a patient belongs to. The uploaders
+ * and the gateway interceptor both compile this same source, so they always
+ * agree as long as they are given the same settings:
+ * <ul>
+ *    <li><code>PARTITION_STRATEGY</code> - one of the names below (default <code>legacy</code>)</li>
+ *    <li><code>PARTITION_WEIGHTS</code> - comma separated relative weights, one per
+ *    partition, for <code>rendezvous</code> (default all equal)</li>
+ * </ul>
+ * The strategies are:
+ * <ul>
+ *    <li><code>legacy</code> - <code>abs(hashCode % count) + 1</code>, which is how data
+ *    loaded before this setting existed was partitioned. Changing the count moves
+ *    nearly every patient.</li>
+ *    <li><code>jump</code> - Lamping and Veach's jump consistent hash. Adding a partition
+ *    moves only the <code>1/count</code> of patients that the new partition takes, and
+ *    nothing moves between the existing partitions.</li>
+ *    <li><code>rendezvous</code> - weighted highest random weight hashing. Like
+ *    <code>jump</code>, only the patients the new partition takes move, but partitions
+ *    can also be given different weights, and any partition (not just the last) can
+ *    be drained by setting its weight to 0. Each lookup is <code>O(count)</code>.</li>
+ * </ul>
+ */
+public abstract class PartitionStrategy {
+
+	public static final String LEGACY = "legacy";
+	public static final String JUMP = "jump";
+	public static final String RENDEZVOUS = "rendezvous";
+
+	private final int myPartitionCount;
+
+	private PartitionStrategy(int thePartitionCount) {
+		Validate.isTrue(thePartitionCount > 0, "Partition count must be positive: %s", thePartitionCount);
+		myPartitionCount = thePartitionCount;
+	}
+
+	public int getPartitionCount() {
+		return myPartitionCount;
+	}
+
+	public abstract String getName();
+
+	/**
+	 * @param thePatientId The patient ID part, without a resource type or version
+	 * @return The partition, from 1 to the partition count
+	 */
+	public abstract int partitionFor(String thePatientId);
+
+	/**
+	 * Creates the strategy named by <code>PARTITION_STRATEGY</code>
+	 */
+	public static PartitionStrategy fromProperties(int thePartitionCount) {
+		String name = getProperty("PARTITION_STRATEGY", LEGACY);
+		String weights = getProperty("PARTITION_WEIGHTS", null);
+		return create(name, thePartitionCount, weights != null ? parseWeights(weights) : null);
+	}
+
+	/**
+	 * @param theWeights Only used by <code>rendezvous</code>. May be null for equal weights.
+	 */
+	public static PartitionStrategy create(String theName, int thePartitionCount, double[] theWeights) {
+		switch (theName) {
+			case LEGACY:
+				return new Legacy(thePartitionCount);
+			case JUMP:
+				return new Jump(thePartitionCount);
+			case RENDEZVOUS:
+				return new Rendezvous(thePartitionCount, theWeights);
+			default:
+				throw new IllegalArgumentException("Unknown PARTITION_STRATEGY: " + theName + " (valid names are " + LEGACY + ", " + JUMP + ", " + RENDEZVOUS + ")");
+		}
+	}
+
+	public static double[] parseWeights(String theWeights) {
+		return Arrays
+			.stream(theWeights.split(","))
+			.map(String::trim)
+			.mapToDouble(Double::parseDouble)
+			.toArray();
+	}
+
+	/**
+	 * A 64 bit hash of the ID. String.hashCode() is too weak to use directly,
+	 * since IDs that differ only in their last character hash to neighbouring values.
+	 */
+	static long hash64(String theId) {
+		// FNV-1a over the chars, so nothing is allocated
+		long retVal = 0xcbf29ce484222325L;
+		for (int i = 0; i < theId.length(); i++) {
+			retVal ^= theId.charAt(i);
+			retVal *= 0x100000001b3L;
+		}
+		return mix64(retVal);
+	}
+
+	/**
+	 * The MurmurHash3 finalizer
+	 */
+	private static long mix64(long theValue) {
+		long retVal = theValue;
+		retVal ^= retVal >>> 33;
+		retVal *= 0xff51afd7ed558ccdL;
+		retVal ^= retVal >>> 33;
+		retVal *= 0xc4ceb9fe1a85ec53L;
+		retVal ^= retVal >>> 33;
+		return retVal;
+	}
+
+	private static String getProperty(String theName, String theDefault) {
+		String retVal = System.getProperty(theName);
+		if (isNotBlank(retVal)) {
+			return retVal;
+		}
+		retVal = System.getenv(theName);
+		return isNotBlank(retVal) ? retVal : theDefault;
+	}
+
+	private static class Legacy extends PartitionStrategy {
+
+		private Legacy(int thePartitionCount) {
+			super(thePartitionCount);
+		}
+
+		@Override
+		public String getName() {
+			return LEGACY;
+		}
+
+		@Override
+		public int partitionFor(String thePatientId) {
+			return Math.abs(thePatientId.hashCode() % getPartitionCount()) + 1;
+		}
+	}
+
+	private static class Jump extends PartitionStrategy {
+
+		private Jump(int thePartitionCount) {
+			super(thePartitionCount);
+		}
+
+		@Override
+		public String getName() {
+			return JUMP;
+		}
+
+		/**
+		 * From "A Fast, Minimal Memory, Consistent Hash Algorithm" (Lamping and Veach, 2014)
+		 */
+		@Override
+		public int partitionFor(String thePatientId) {
+			long key = hash64(thePatientId);
+			long bucket = -1;
+			long next = 0;
+			while (next < getPartitionCount()) {
+				bucket = next;
+				key = key * 2862933555777941757L + 1;
+				next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+			}
+			return (int) bucket + 1;
+		}
+	}
+
+	private static class Rendezvous extends PartitionStrategy {
+		private final double[] myWeights;
+		private final long[] mySeeds;
+
+		private Rendezvous(int thePartitionCount, double[] theWeights) {
+			super(thePartitionCount);
+			if (theWeights == null) {
+				myWeights = new double[thePartitionCount];
+				Arrays.fill(myWeights, 1.0);
+			} else {
+				Validate.isTrue(theWeights.length == thePartitionCount, "PARTITION_WEIGHTS has %s weights but there are %s partitions", theWeights.length, thePartitionCount);
+				Validate.isTrue(Arrays.stream(theWeights).allMatch(t -> t >= 0), "PARTITION_WEIGHTS must not be negative");
+				Validate.isTrue(Arrays.stream(theWeights).anyMatch(t -> t > 0), "PARTITION_WEIGHTS must not all be 0");
+				myWeights = theWeights.clone();
+			}
+
+			// A partition's seed depends only on its number, so adding partitions doesn't change the existing scores
+			mySeeds = new long[thePartitionCount];
+			for (int i = 0; i < thePartitionCount; i++) {
+				mySeeds[i] = mix64((i + 1) * 0x9e3779b97f4a7c15L);
+			}
+		}
+
+		@Override
+		public String getName() {
+			return RENDEZVOUS;
+		}
+
+		/**
+		 * Each partition scores the patient as <code>-weight / ln(u)</code> where
+		 * <code>u</code> is a uniform hash of the patient and partition, and the
+		 * highest score wins. This gives each partition its weight's share of the
+		 * patients.
+		 */
+		@Override
+		public int partitionFor(String thePatientId) {
+			long key = hash64(thePatientId);
+			int retVal = 0;
+			double bestScore = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < mySeeds.length; i++) {
+				if (myWeights[i] == 0) {
+					continue;
+				}
+				// A double in (0, 1), never exactly 0 or 1
+				double uniform = ((mix64(key ^ mySeeds[i]) >>> 11) + 0.5) * 0x1.0p-53;
+				double score = -myWeights[i] / Math.log(uniform);
+				if (score > bestScore) {
+					bestScore = score;
+					retVal = i;
+				}
+			}
+			return retVal + 1;
+		}
+	}
+}